@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.commands.slimsettings;
+
+import android.content.IContentProvider;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.Settings;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import slim.provider.SlimSettings;
+
+/**
+ * Measures the latency of the settings provider as seen by a client: gets through the call()
+ * fast path, gets through the query() fallback, and puts. Works on a few scratch keys of the
+ * system table, which are deleted when done.
+ */
+final class SettingsBench {
+
+    private static final String KEY_PREFIX = "slimsettings_bench_";
+    private static final int KEY_COUNT = 16;
+
+    private static final int OP_CALL_GET = 0;
+    private static final int OP_QUERY_GET = 1;
+    private static final int OP_CALL_PUT = 2;
+    private static final int OP_COUNT = 3;
+    private static final String[] OP_NAMES = { "call get", "query get", "call put" };
+
+    private static final String[] VALUE_PROJECTION = { Settings.NameValueTable.VALUE };
+    private static final String NAME_SELECTION = Settings.NameValueTable.NAME + " = ?";
+
+    private final IContentProvider mProvider;
+    private final String mCallingPackage;
+    private final int mThreads;
+    private final int mOps;
+    private final int mGetWeight;
+    private final int mPutWeight;
+
+    /**
+     * @param threads The number of threads calling the provider at the same time.
+     * @param ops The number of operations each thread performs.
+     * @param getWeight The share of gets; they alternate between call() and query().
+     * @param putWeight The share of puts.
+     */
+    SettingsBench(IContentProvider provider, String callingPackage, int threads, int ops,
+            int getWeight, int putWeight) {
+        mProvider = provider;
+        mCallingPackage = callingPackage;
+        mThreads = threads;
+        mOps = ops;
+        mGetWeight = getWeight;
+        mPutWeight = putWeight;
+    }
+
+    private static final class Worker extends Thread {
+        final SettingsBench bench;
+        final Random random;
+        // Latency in nanoseconds of every operation, per operation type
+        final long[][] latencies = new long[OP_COUNT][];
+        final int[] counts = new int[OP_COUNT];
+        RemoteException error;
+
+        Worker(SettingsBench bench, int index) {
+            super("SettingsBench-" + index);
+            this.bench = bench;
+            random = new Random(index);
+            for (int op = 0; op < OP_COUNT; op++) {
+                latencies[op] = new long[bench.mOps];
+            }
+        }
+
+        @Override
+        public void run() {
+            int gets = 0;
+            try {
+                for (int i = 0; i < bench.mOps; i++) {
+                    final String key = KEY_PREFIX + random.nextInt(KEY_COUNT);
+                    final int op;
+                    if (random.nextInt(bench.mGetWeight + bench.mPutWeight) < bench.mGetWeight) {
+                        op = (gets++ & 1) == 0 ? OP_CALL_GET : OP_QUERY_GET;
+                    } else {
+                        op = OP_CALL_PUT;
+                    }
+                    final long start = SystemClock.elapsedRealtimeNanos();
+                    bench.perform(op, key, i);
+                    latencies[op][counts[op]++] = SystemClock.elapsedRealtimeNanos() - start;
+                }
+            } catch (RemoteException e) {
+                error = e;
+            }
+        }
+    }
+
+    private void perform(int op, String key, int i) throws RemoteException {
+        switch (op) {
+            case OP_CALL_GET:
+                mProvider.call(mCallingPackage, SlimSettings.CALL_METHOD_GET_SYSTEM, key, null);
+                break;
+            case OP_QUERY_GET:
+                final Cursor cursor = mProvider.query(mCallingPackage,
+                        Uri.withAppendedPath(SlimSettings.System.CONTENT_URI, key),
+                        VALUE_PROJECTION, null, null, null, null);
+                if (cursor != null) {
+                    try {
+                        // The rows are only transferred once read
+                        if (cursor.moveToFirst()) {
+                            cursor.getString(0);
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                }
+                break;
+            case OP_CALL_PUT:
+                Bundle arg = new Bundle();
+                arg.putString(Settings.NameValueTable.VALUE, Integer.toString(i));
+                mProvider.call(mCallingPackage, SlimSettings.CALL_METHOD_PUT_SYSTEM, key, arg);
+                break;
+        }
+    }
+
+    /**
+     * Runs the benchmark and prints the results to stdout.
+     */
+    void run() throws RemoteException, InterruptedException {
+        try {
+            // Gets should find something
+            for (int i = 0; i < KEY_COUNT; i++) {
+                perform(OP_CALL_PUT, KEY_PREFIX + i, i);
+            }
+
+            final Worker[] workers = new Worker[mThreads];
+            for (int i = 0; i < mThreads; i++) {
+                workers[i] = new Worker(this, i);
+            }
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (Worker worker : workers) {
+                worker.start();
+            }
+            for (Worker worker : workers) {
+                worker.join();
+            }
+            final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+
+            for (Worker worker : workers) {
+                if (worker.error != null) {
+                    throw worker.error;
+                }
+            }
+            printResults(workers, elapsed);
+        } finally {
+            cleanUp();
+        }
+    }
+
+    private void printResults(Worker[] workers, long elapsed) {
+        System.out.println(String.format(Locale.ROOT,
+                "%d thread(s) x %d ops, get:put %d:%d, %.1f ms", mThreads, mOps, mGetWeight,
+                mPutWeight, elapsed / 1000000.0));
+        System.out.println(String.format(Locale.ROOT, "%-10s %8s %10s %9s %9s %9s %9s",
+                "op", "count", "ops/s", "p50 us", "p90 us", "p99 us", "max us"));
+
+        final long[] all = new long[mThreads * mOps];
+        int allCount = 0;
+        for (int op = 0; op < OP_COUNT; op++) {
+            int count = 0;
+            for (Worker worker : workers) {
+                count += worker.counts[op];
+            }
+            final long[] latencies = new long[count];
+            count = 0;
+            for (Worker worker : workers) {
+                System.arraycopy(worker.latencies[op], 0, latencies, count, worker.counts[op]);
+                count += worker.counts[op];
+            }
+            System.arraycopy(latencies, 0, all, allCount, count);
+            allCount += count;
+            printLine(OP_NAMES[op], latencies, elapsed);
+        }
+        printLine("total", all, elapsed);
+    }
+
+    private static void printLine(String name, long[] latencies, long elapsed) {
+        if (latencies.length == 0) {
+            return;
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.ROOT,
+                "%-10s %8d %10.0f %9.1f %9.1f %9.1f %9.1f", name, latencies.length,
+                latencies.length * 1e9 / elapsed, percentile(latencies, 50) / 1000.0,
+                percentile(latencies, 90) / 1000.0, percentile(latencies, 99) / 1000.0,
+                latencies[latencies.length - 1] / 1000.0));
+    }
+
+    /**
+     * @param sorted Latencies in ascending order; must not be empty.
+     * @return The latency at the given percentile, by the nearest rank.
+     */
+    private static long percentile(long[] sorted, int percent) {
+        final int rank = (int) Math.ceil(sorted.length * percent / 100.0);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private void cleanUp() throws RemoteException {
+        // Deleting also writes any puts the provider still holds back first
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mProvider.delete(mCallingPackage, SlimSettings.System.CONTENT_URI, NAME_SELECTION,
+                    new String[] { KEY_PREFIX + i });
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.commands.slimsettings;
+
+import android.content.ContentResolver;
+import android.content.IContentProvider;
+import android.content.IContentService;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+import slim.provider.SlimSettings;
+
+/**
+ * Prints every change of the watched tables to stdout as it is notified, with the time, the
+ * old and new values, and the uid that wrote it if the provider knows. Notifications for a
+ * whole table, sent when many keys changed at once, are resolved by comparing the table with
+ * what was last seen.
+ */
+final class SettingsWatcher {
+
+    private final IContentProvider mProvider;
+    private final String mCallingPackage;
+    private final int mUserHandle;
+    private final String[] mTables;
+    private final String mPrefix;
+
+    private final SimpleDateFormat mDateFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+
+    // Guarded by 'this'. table -> values last seen
+    private final HashMap<String, Map<String, String>> mValues =
+            new HashMap<String, Map<String, String>>();
+
+    /**
+     * @param tables The tables to watch.
+     * @param prefix Only keys starting with this are shown; empty for all keys.
+     */
+    SettingsWatcher(IContentProvider provider, String callingPackage, int userHandle,
+            String[] tables, String prefix) {
+        mProvider = provider;
+        mCallingPackage = callingPackage;
+        mUserHandle = userHandle;
+        mTables = tables;
+        mPrefix = prefix;
+    }
+
+    /**
+     * Watches until the process is killed.
+     */
+    void run() throws RemoteException, InterruptedException {
+        final IContentService contentService = ContentResolver.getContentService();
+        synchronized (this) {
+            for (final String table : mTables) {
+                mValues.put(table, readTable(table));
+                // Without a handler, changes are delivered on a binder thread
+                final ContentObserver observer = new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        onTableChange(table, uri);
+                    }
+                };
+                contentService.registerContentObserver(getTableUri(table), true,
+                        observer.getContentObserver(), mUserHandle);
+            }
+            System.err.println("Watching " + mTables.length + " table(s) for user "
+                    + mUserHandle + "; press Ctrl-C to stop");
+            while (true) {
+                wait();
+            }
+        }
+    }
+
+    private synchronized void onTableChange(String table, Uri uri) {
+        final Map<String, String> seen = mValues.get(table);
+        try {
+            final List<String> segments = (uri == null) ? null : uri.getPathSegments();
+            if (segments != null && segments.size() > 1) {
+                final String key = segments.get(1);
+                if (!key.startsWith(mPrefix)) {
+                    return;
+                }
+                final String value = readValue(table, key);
+                // Printed even if unchanged, so repeated writes show up
+                print(table, key, seen.get(key), value);
+                seen.put(key, value);
+                return;
+            }
+
+            final Map<String, String> values = readTable(table);
+            final TreeSet<String> keys = new TreeSet<String>(seen.keySet());
+            keys.addAll(values.keySet());
+            int changed = 0;
+            for (String key : keys) {
+                final String oldValue = seen.get(key);
+                final String newValue = values.get(key);
+                if (oldValue == null ? newValue != null : !oldValue.equals(newValue)) {
+                    print(table, key, oldValue, newValue);
+                    changed++;
+                }
+            }
+            if (changed == 0) {
+                System.out.println(mDateFormat.format(new Date()) + " " + table
+                        + ": notified, nothing changed");
+            }
+            mValues.put(table, values);
+        } catch (RemoteException e) {
+            System.err.println("Can't read " + table + " for user " + mUserHandle);
+        }
+    }
+
+    private void print(String table, String key, String oldValue, String newValue)
+            throws RemoteException {
+        final StringBuilder line = new StringBuilder();
+        line.append(mDateFormat.format(new Date())).append(' ').append(table).append(' ')
+                .append(key).append(": ").append(oldValue).append(" -> ").append(newValue);
+        final int uid = readWriter(table, key);
+        if (uid >= 0) {
+            line.append(" (uid ").append(uid).append(')');
+        }
+        System.out.println(line);
+    }
+
+    private Map<String, String> readTable(String table) throws RemoteException {
+        final Bundle b = mProvider.call(mCallingPackage, forTable(table,
+                SlimSettings.CALL_METHOD_GET_PREFIX_SYSTEM,
+                SlimSettings.CALL_METHOD_GET_PREFIX_SECURE,
+                SlimSettings.CALL_METHOD_GET_PREFIX_GLOBAL), mPrefix, userArgs());
+        final HashMap<String, String> values = new HashMap<String, String>();
+        if (b != null) {
+            for (String key : b.keySet()) {
+                values.put(key, b.getString(key));
+            }
+        }
+        return values;
+    }
+
+    private String readValue(String table, String key) throws RemoteException {
+        final Bundle b = mProvider.call(mCallingPackage, forTable(table,
+                SlimSettings.CALL_METHOD_GET_SYSTEM, SlimSettings.CALL_METHOD_GET_SECURE,
+                SlimSettings.CALL_METHOD_GET_GLOBAL), key, userArgs());
+        return b == null ? null : b.getPairValue();
+    }
+
+    private int readWriter(String table, String key) throws RemoteException {
+        final Bundle b = mProvider.call(mCallingPackage, forTable(table,
+                SlimSettings.CALL_METHOD_GET_WRITER_SYSTEM,
+                SlimSettings.CALL_METHOD_GET_WRITER_SECURE,
+                SlimSettings.CALL_METHOD_GET_WRITER_GLOBAL), key, userArgs());
+        return b == null ? -1 : b.getInt(SlimSettings.CALL_METHOD_UID_KEY, -1);
+    }
+
+    private Bundle userArgs() {
+        Bundle arg = new Bundle();
+        arg.putInt(SlimSettings.CALL_METHOD_USER_KEY, mUserHandle);
+        return arg;
+    }
+
+    private static Uri getTableUri(String table) {
+        return "system".equals(table) ? SlimSettings.System.CONTENT_URI
+                : "secure".equals(table) ? SlimSettings.Secure.CONTENT_URI
+                : SlimSettings.Global.CONTENT_URI;
+    }
+
+    private static String forTable(String table, String system, String secure, String global) {
+        return "system".equals(table) ? system : "secure".equals(table) ? secure : global;
+    }
+}
@@ -25,14 +25,27 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
+import android.text.TextUtils;
 
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 import slim.provider.SlimSettings;
 
@@ -44,8 +57,17 @@ public final class SlimSettingsCmd {
         PUT,
         DELETE,
         LIST,
+        STATS,
+        EXPORT,
+        IMPORT,
+        BATCH,
+        BENCH,
+        WATCH,
     }
 
+    // 'stats' argument selecting the provider's own statistics instead of a process
+    private static final String PROVIDER_STATS = "provider";
+
     static String[] mArgs;
     int mNextArg;
     int mUser = -1;     // unspecified
@@ -53,9 +75,14 @@ public final class SlimSettingsCmd {
     String mTable = null;
     String mKey = null;
     String mValue = null;
+    boolean mAtomic = false;
+    int mBenchThreads = 1;
+    int mBenchOps = 1000;
+    int mBenchGetWeight = 9;
+    int mBenchPutWeight = 1;
 
     public static void main(String[] args) {
-        if (args == null || args.length < 2) {
+        if (args == null || args.length < 1) {
             printUsage();
             return;
         }
@@ -93,11 +120,92 @@ public final class SlimSettingsCmd {
                         mVerb = CommandVerb.DELETE;
                     } else if ("list".equalsIgnoreCase(arg)) {
                         mVerb = CommandVerb.LIST;
+                    } else if ("stats".equalsIgnoreCase(arg)) {
+                        mVerb = CommandVerb.STATS;
+                        // the process is optional
+                        valid = mNextArg >= mArgs.length;
+                    } else if ("export".equalsIgnoreCase(arg)) {
+                        mVerb = CommandVerb.EXPORT;
+                        valid = mNextArg >= mArgs.length;
+                    } else if ("import".equalsIgnoreCase(arg)) {
+                        mVerb = CommandVerb.IMPORT;
+                        valid = mNextArg >= mArgs.length;
+                    } else if ("batch".equalsIgnoreCase(arg)) {
+                        mVerb = CommandVerb.BATCH;
+                        // the options and the file are optional
+                        valid = true;
+                    } else if ("bench".equalsIgnoreCase(arg)) {
+                        mVerb = CommandVerb.BENCH;
+                        // the options are optional
+                        valid = true;
+                    } else if ("watch".equalsIgnoreCase(arg)) {
+                        mVerb = CommandVerb.WATCH;
+                        // the namespace and the prefix are optional
+                        valid = true;
                     } else {
                         // invalid
                         System.err.println("Invalid command: " + arg);
                         break;
                     }
+                } else if (mVerb == CommandVerb.BATCH) {
+                    if ("--atomic".equals(arg)) {
+                        mAtomic = true;
+                    } else if (mKey == null) {
+                        mKey = arg;
+                    } else {
+                        System.err.println("Too many arguments");
+                        valid = false;
+                        break;
+                    }
+                } else if (mVerb == CommandVerb.BENCH) {
+                    valid = false;
+                    if ("--threads".equals(arg)) {
+                        mBenchThreads = Integer.parseInt(nextArg());
+                    } else if ("--ops".equals(arg)) {
+                        mBenchOps = Integer.parseInt(nextArg());
+                    } else if ("--mix".equals(arg)) {
+                        final String[] mix = nextArg().split(":");
+                        if (mix.length != 2) {
+                            System.err.println("Invalid mix; expected get:put");
+                            break;
+                        }
+                        mBenchGetWeight = Integer.parseInt(mix[0]);
+                        mBenchPutWeight = Integer.parseInt(mix[1]);
+                    } else {
+                        System.err.println("Invalid option '" + arg + "'");
+                        break;
+                    }
+                    valid = mBenchThreads > 0 && mBenchOps > 0 && mBenchGetWeight >= 0
+                            && mBenchPutWeight >= 0 && mBenchGetWeight + mBenchPutWeight > 0;
+                    if (!valid) {
+                        System.err.println("Invalid value for " + arg);
+                        break;
+                    }
+                } else if (mVerb == CommandVerb.WATCH) {
+                    valid = false;
+                    if ("--prefix".equals(arg) && mKey == null) {
+                        mKey = nextArg();
+                        valid = mKey != null;
+                    } else if (mTable == null && ("system".equalsIgnoreCase(arg)
+                            || "secure".equalsIgnoreCase(arg)
+                            || "global".equalsIgnoreCase(arg))) {
+                        mTable = arg.toLowerCase();
+                        valid = true;
+                    } else {
+                        System.err.println("Invalid argument '" + arg + "'");
+                        break;
+                    }
+                } else if (mVerb == CommandVerb.STATS) {
+                    if (mKey == null) {
+                        mKey = arg;
+                    } else if (PROVIDER_STATS.equals(mKey) && mValue == null
+                            && ("reset".equals(arg) || "stop".equals(arg))) {
+                        mValue = arg;
+                    } else {
+                        System.err.println("Too many arguments");
+                        break;
+                    }
+                    valid = mNextArg >= mArgs.length;
                 } else if (mTable == null) {
                     if (!"system".equalsIgnoreCase(arg)
                             && !"secure".equalsIgnoreCase(arg)
@@ -107,9 +215,17 @@ public final class SlimSettingsCmd {
                     }
                     mTable = arg.toLowerCase();
                     if (mVerb == CommandVerb.LIST) {
-                        valid = true;
+                        // the prefix is optional
+                        valid = mNextArg >= mArgs.length;
+                    }
+                } else if (mVerb == CommandVerb.LIST) {
+                    if (!"--prefix".equals(arg) || mKey != null) {
+                        System.err.println("Invalid argument '" + arg + "'");
+                        valid = false;
                         break;
                     }
+                    mKey = nextArg();
+                    valid = mKey != null && mNextArg >= mArgs.length;
                 } else if (mVerb == CommandVerb.GET || mVerb == CommandVerb.DELETE) {
                     mKey = arg;
                     if (mNextArg >= mArgs.length) {
@@ -166,10 +282,40 @@ public final class SlimSettingsCmd {
                                     + deleteForUser(provider, mUser, mTable, mKey) + " rows");
                             break;
                         case LIST:
-                            for (String line : listForUser(provider, mUser, mTable)) {
+                            for (String line : listForUser(provider, mUser, mTable, mKey)) {
                                 System.out.println(line);
                             }
                             break;
+                        case STATS:
+                            if (PROVIDER_STATS.equals(mKey)) {
+                                dumpProviderStats(provider, mValue);
+                            } else {
+                                dumpStats(provider, mKey);
+                            }
+                            break;
+                        case EXPORT:
+                            // stdout carries the settings
+                            System.err.println("Exported "
+                                    + transferForUser(provider, mUser, true) + " settings");
+                            break;
+                        case IMPORT:
+                            System.out.println("Imported "
+                                    + transferForUser(provider, mUser, false) + " settings");
+                            break;
+                        case BATCH:
+                            runBatch(provider, mUser, mKey, mAtomic);
+                            break;
+                        case BENCH:
+                            new SettingsBench(provider, resolveCallingPackage(), mBenchThreads,
+                                    mBenchOps, mBenchGetWeight, mBenchPutWeight).run();
+                            break;
+                        case WATCH:
+                            new SettingsWatcher(provider, resolveCallingPackage(), mUser,
+                                    mTable == null
+                                            ? new String[] { "system", "secure", "global" }
+                                            : new String[] { mTable },
+                                    mKey == null ? "" : mKey).run();
+                            break;
                         default:
                             System.err.println("Unspecified command");
                             break;
@@ -190,7 +336,11 @@ public final class SlimSettingsCmd {
         }
     }
 
-    private List<String> listForUser(IContentProvider provider, int userHandle, String table) {
+    private List<String> listForUser(IContentProvider provider, int userHandle, String table,
+            String prefix) {
+        if (prefix != null) {
+            return listPrefixForUser(provider, userHandle, table, prefix);
+        }
         final Uri uri = "system".equals(table) ? SlimSettings.System.CONTENT_URI
                 : "secure".equals(table) ? SlimSettings.Secure.CONTENT_URI
                 : "global".equals(table) ? SlimSettings.Global.CONTENT_URI
@@ -218,6 +368,218 @@ public final class SlimSettingsCmd {
         return lines;
     }
 
+    private List<String> listPrefixForUser(IContentProvider provider, int userHandle,
+            String table, String prefix) {
+        final String callListCommand = "system".equals(table)
+                ? SlimSettings.CALL_METHOD_GET_PREFIX_SYSTEM
+                : "secure".equals(table) ? SlimSettings.CALL_METHOD_GET_PREFIX_SECURE
+                : SlimSettings.CALL_METHOD_GET_PREFIX_GLOBAL;
+        final ArrayList<String> lines = new ArrayList<String>();
+        try {
+            Bundle arg = new Bundle();
+            arg.putInt(SlimSettings.CALL_METHOD_USER_KEY, userHandle);
+            Bundle b = provider.call(resolveCallingPackage(), callListCommand, prefix, arg);
+            if (b != null) {
+                for (String key : b.keySet()) {
+                    lines.add(key + "=" + b.getString(key));
+                }
+            }
+            Collections.sort(lines);
+        } catch (RemoteException e) {
+            System.err.println("List failed in " + table + " for user " + userHandle);
+        }
+        return lines;
+    }
+
+    private void dumpStats(IContentProvider provider, String process) {
+        try {
+            Bundle b = provider.call(resolveCallingPackage(), SlimSettings.CALL_METHOD_GET_STATS,
+                    process, null);
+            if (process == null) {
+                final String[] processes = (b == null)
+                        ? null : b.getStringArray(SlimSettings.CALL_METHOD_PROCESSES_KEY);
+                if (processes != null) {
+                    Arrays.sort(processes);
+                    for (String line : processes) {
+                        System.out.println(line);
+                    }
+                }
+                return;
+            }
+
+            final IBinder stats = (b == null)
+                    ? null : b.getBinder(SlimSettings.CALL_METHOD_STATS_KEY);
+            if (stats == null) {
+                System.err.println("No settings cache stats for process " + process);
+                return;
+            }
+            stats.dump(FileDescriptor.out, new String[0]);
+        } catch (RemoteException e) {
+            System.err.println("Can't dump settings cache stats of " + process);
+        }
+    }
+
+    /**
+     * Has the provider write its request statistics to stdout.
+     * @param request "reset" to clear them afterwards, "stop" to clear them and stop
+     *     recording, or {@code null}.
+     */
+    private void dumpProviderStats(IContentProvider provider, String request) {
+        try {
+            Bundle arg = new Bundle();
+            arg.putParcelable(SlimSettings.CALL_METHOD_STREAM_KEY,
+                    ParcelFileDescriptor.dup(FileDescriptor.out));
+            provider.call(resolveCallingPackage(), SlimSettings.CALL_METHOD_GET_PROVIDER_STATS,
+                    request, arg);
+        } catch (IOException e) {
+            System.err.println("Can't pass stdout to the settings provider");
+        } catch (RemoteException e) {
+            System.err.println("Can't dump settings provider stats");
+        }
+    }
+
+    /**
+     * Has the provider write all settings of a user to stdout, or read them from stdin.
+     * @return The number of values transferred, or -1 on failure.
+     */
+    private int transferForUser(IContentProvider provider, int userHandle, boolean export) {
+        try {
+            Bundle arg = new Bundle();
+            arg.putParcelable(SlimSettings.CALL_METHOD_STREAM_KEY, ParcelFileDescriptor.dup(
+                    export ? FileDescriptor.out : FileDescriptor.in));
+            arg.putInt(SlimSettings.CALL_METHOD_USER_KEY, userHandle);
+            Bundle b = provider.call(resolveCallingPackage(), export
+                    ? SlimSettings.CALL_METHOD_EXPORT : SlimSettings.CALL_METHOD_IMPORT,
+                    null, arg);
+            return b == null ? -1 : b.getInt(SlimSettings.CALL_METHOD_COUNT_KEY, -1);
+        } catch (IOException e) {
+            System.err.println("Can't pass " + (export ? "stdout" : "stdin")
+                    + " to the settings provider");
+        } catch (RemoteException e) {
+            System.err.println((export ? "Export" : "Import") + " failed for user " + userHandle);
+        }
+        return -1;
+    }
+
+    /**
+     * Runs the get, put and delete commands of a script over a single provider connection,
+     * one per line in the form of the single commands:
+     * <pre>
+     *   get namespace key
+     *   put namespace key value...
+     *   delete namespace key
+     * </pre>
+     * Empty lines and lines starting with '#' are skipped. The whole script is parsed before
+     * anything runs. Timings go to stderr so stdout only carries the results.
+     * @param path The script to run, or {@code null} to read it from stdin.
+     * @param atomic Whether to write all puts at the end, in one transaction per namespace,
+     *     rather than one by one. Deletes can't be part of such a transaction.
+     */
+    private void runBatch(IContentProvider provider, int userHandle, String path,
+            boolean atomic) throws IOException {
+        final List<String[]> commands = readBatch(path, atomic);
+        if (commands == null) {
+            return;
+        }
+
+        // namespace -> key -> value, in order of first appearance
+        final LinkedHashMap<String, LinkedHashMap<String, String>> pending =
+                new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        final long batchStart = SystemClock.elapsedRealtimeNanos();
+        for (String[] command : commands) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            if ("get".equals(command[0])) {
+                System.out.println(getForUser(provider, userHandle, command[1], command[2]));
+            } else if ("delete".equals(command[0])) {
+                System.out.println("Deleted "
+                        + deleteForUser(provider, userHandle, command[1], command[2]) + " rows");
+            } else if (atomic) {
+                LinkedHashMap<String, String> values = pending.get(command[1]);
+                if (values == null) {
+                    values = new LinkedHashMap<String, String>();
+                    pending.put(command[1], values);
+                }
+                values.put(command[2], command[3]);
+            } else {
+                putForUser(provider, userHandle, command[1], command[2], command[3]);
+            }
+            printTiming(start, TextUtils.join(" ", command));
+        }
+        for (String table : pending.keySet()) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            putMultipleForUser(provider, userHandle, table, pending.get(table));
+            printTiming(start, "commit " + table + " (" + pending.get(table).size()
+                    + " values)");
+        }
+        printTiming(batchStart, "total (" + commands.size() + " commands)");
+    }
+
+    /**
+     * Reads and checks a batch script.
+     * @return The commands, split into their arguments, or {@code null} if the script is
+     *     invalid.
+     */
+    private List<String[]> readBatch(String path, boolean atomic) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(path == null
+                ? System.in : new FileInputStream(path), StandardCharsets.UTF_8));
+        final ArrayList<String[]> commands = new ArrayList<String[]>();
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                // The value of a put is the rest of the line, spaces included
+                final String[] command = line.split("\\s+", 4);
+                command[0] = command[0].toLowerCase(Locale.ROOT);
+                if (command.length > 1) {
+                    command[1] = command[1].toLowerCase(Locale.ROOT);
+                }
+                final String error = checkBatchCommand(command, atomic);
+                if (error != null) {
+                    System.err.println("line " + lineNumber + ": " + error);
+                    return null;
+                }
+                commands.add(command);
+            }
+        } finally {
+            if (path != null) {
+                reader.close();
+            }
+        }
+        return commands;
+    }
+
+    /**
+     * @return Why a batch command is invalid, or {@code null} if it is valid.
+     */
+    private static String checkBatchCommand(String[] command, boolean atomic) {
+        final String verb = command[0];
+        final boolean put = "put".equals(verb);
+        if (!put && !"get".equals(verb) && !"delete".equals(verb)) {
+            return "invalid command '" + verb + "'";
+        }
+        if (command.length != (put ? 4 : 3)) {
+            return "wrong number of arguments for " + verb;
+        }
+        if (!"system".equals(command[1]) && !"secure".equals(command[1])
+                && !"global".equals(command[1])) {
+            return "invalid namespace '" + command[1] + "'";
+        }
+        if (atomic && "delete".equals(verb)) {
+            return "delete can't be part of an atomic batch";
+        }
+        return null;
+    }
+
+    private static void printTiming(long start, String what) {
+        final double millis = (SystemClock.elapsedRealtimeNanos() - start) / 1000000.0;
+        System.err.println(String.format(Locale.ROOT, "%9.3f ms  %s", millis, what));
+    }
+
     private String nextArg() {
         if (mNextArg >= mArgs.length) {
             return null;
@@ -273,6 +635,33 @@ public final class SlimSettingsCmd {
         }
     }
 
+    void putMultipleForUser(IContentProvider provider, int userHandle,
+            final String table, final Map<String, String> values) {
+        final String callPutCommand = "system".equals(table)
+                ? SlimSettings.CALL_METHOD_PUT_MULTI_SYSTEM
+                : "secure".equals(table) ? SlimSettings.CALL_METHOD_PUT_MULTI_SECURE
+                : "global".equals(table) ? SlimSettings.CALL_METHOD_PUT_MULTI_GLOBAL
+                : null;
+        if (callPutCommand == null) {
+            System.err.println("Invalid table; no put performed");
+            return;
+        }
+
+        try {
+            Bundle pairs = new Bundle();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                pairs.putString(entry.getKey(), entry.getValue());
+            }
+            Bundle arg = new Bundle();
+            arg.putBundle(SlimSettings.CALL_METHOD_VALUES_KEY, pairs);
+            arg.putInt(SlimSettings.CALL_METHOD_USER_KEY, userHandle);
+            provider.call(resolveCallingPackage(), callPutCommand, null, arg);
+        } catch (RemoteException e) {
+            System.err.println("Can't set " + values.size() + " keys in " + table + " for user "
+                    + userHandle);
+        }
+    }
+
     int deleteForUser(IContentProvider provider, int userHandle,
             final String table, final String key) {
         Uri targetUri;
@@ -298,10 +687,40 @@ public final class SlimSettingsCmd {
         System.err.println("usage:  slimsettings [--user <USER_ID> | current] get namespace key");
         System.err.println("        slimsettings [--user <USER_ID> | current] put namespace key value");
         System.err.println("        slimsettings [--user <USER_ID> | current] delete namespace key");
-        System.err.println("        slimsettings [--user <USER_ID> | current] list namespace");
+        System.err.println("        slimsettings [--user <USER_ID> | current] list namespace "
+                + "[--prefix prefix]");
+        System.err.println("        slimsettings stats [process | pid]");
+        System.err.println("        slimsettings stats provider [reset | stop]");
+        System.err.println("        slimsettings [--user <USER_ID> | current] export > file");
+        System.err.println("        slimsettings [--user <USER_ID> | current] import < file");
+        System.err.println("        slimsettings [--user <USER_ID> | current] batch [--atomic] "
+                + "[file]");
+        System.err.println("        slimsettings bench [--threads N] [--ops M] [--mix get:put]");
+        System.err.println("        slimsettings [--user <USER_ID> | current] watch [namespace] "
+                + "[--prefix prefix]");
         System.err.println("\n'namespace' is one of {system, secure, global}, case-insensitive");
         System.err.println("If '--user <USER_ID> | current' is not given, the operations are "
                 + "performed on the system user.");
+        System.err.println("'list --prefix' only lists the keys starting with the prefix, "
+                + "such as navigation_bar_");
+        System.err.println("'stats' prints the settings cache statistics of a process, or "
+                + "lists the processes that have some if none is given.");
+        System.err.println("'stats provider' prints the requests served by the settings "
+                + "provider by method, caller and key; 'reset' clears them afterwards. "
+                + "The provider only records them after the first 'stats provider' or "
+                + "dumpsys; 'stop' clears them and stops recording.");
+        System.err.println("'export' writes all settings of the user as JSON to stdout; "
+                + "'import' reads such a file from stdin and writes all of it or nothing.");
+        System.err.println("'batch' runs get, put and delete commands, one per line of the file "
+                + "or stdin, over one connection and prints their timing to stderr; with "
+                + "'--atomic' all puts are written at the end in one transaction per "
+                + "namespace.");
+        System.err.println("'bench' measures get (through call() and query()) and put latency "
+                + "of the provider for the system user, using N threads doing M operations "
+                + "each (default 1 x 1000, mix 9:1); its scratch keys are deleted afterwards. "
+                + "Puts may be held back by the provider's write throttling.");
+        System.err.println("'watch' prints every change of the namespace, or of all of them, "
+                + "with the time, the old and new values and the writing uid until stopped.");
     }
 
     public static String resolveCallingPackage() {
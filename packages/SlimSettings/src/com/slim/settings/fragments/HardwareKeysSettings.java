@@ -504,14 +504,14 @@ public class HardwareKeysSettings extends SettingsPreferenceFragment implements
     }
 
     private void resetToDefault() {
+        final Map<String, String> defaults = new HashMap<String, String>();
         for (String settingsKey : mKeySettings.keySet()) {
             if (settingsKey != null) {
-                SlimSettings.System.putString(getActivity().getContentResolver(),
-                settingsKey, null);
+                defaults.put(settingsKey, null);
             }
         }
-        SlimSettings.System.putInt(getContentResolver(),
-                SlimSettings.System.DISABLE_HW_KEYS, 0);
+        defaults.put(SlimSettings.System.DISABLE_HW_KEYS, "0");
+        SlimSettings.System.putStrings(getContentResolver(), defaults);
         reloadSettings();
     }
 
@@ -29,6 +29,7 @@ import android.support.v7.preference.Preference;
 import android.support.v7.preference.Preference.OnPreferenceChangeListener;
 import android.support.v7.preference.PreferenceCategory;
 import android.support.v7.preference.PreferenceScreen;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -41,6 +42,8 @@ import org.slim.framework.internal.logging.SlimMetricsLogger;
 import slim.provider.SlimSettings;
 import slim.utils.DeviceUtils;
 
+import java.util.Map;
+
 public class NavbarStyleDimenSettings extends SettingsPreferenceFragment implements
         OnPreferenceChangeListener {
 
@@ -120,18 +123,13 @@ public class NavbarStyleDimenSettings extends SettingsPreferenceFragment impleme
         alertDialog.setMessage(R.string.navbar_dimensions_reset_message);
         alertDialog.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
             public void onClick(DialogInterface dialog, int id) {
-                int height = mapChosenDpToPixels(48);
-                SlimSettings.System.putInt(getContentResolver(),
-                        SlimSettings.System.NAVIGATION_BAR_HEIGHT_LANDSCAPE,
-                        48);
-                height = mapChosenDpToPixels(48);
-                SlimSettings.System.putInt(getContentResolver(),
-                        SlimSettings.System.NAVIGATION_BAR_HEIGHT,
-                        height);
-                height = mapChosenDpToPixels(42);
-                SlimSettings.System.putInt(getContentResolver(),
-                        SlimSettings.System.NAVIGATION_BAR_WIDTH,
-                        height);
+                final Map<String, String> defaults = new ArrayMap<String, String>();
+                defaults.put(SlimSettings.System.NAVIGATION_BAR_HEIGHT_LANDSCAPE, "48");
+                defaults.put(SlimSettings.System.NAVIGATION_BAR_HEIGHT,
+                        Integer.toString(mapChosenDpToPixels(48)));
+                defaults.put(SlimSettings.System.NAVIGATION_BAR_WIDTH,
+                        Integer.toString(mapChosenDpToPixels(42)));
+                SlimSettings.System.putStrings(getContentResolver(), defaults);
                 mNavigationBarHeight.setValue("48");
                 mNavigationBarHeightLandscape.setValue("48");
                 mNavigationBarWidth.setValue("42");
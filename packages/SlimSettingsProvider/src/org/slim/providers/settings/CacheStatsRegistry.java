@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Keeps the binders through which client processes dump their settings cache statistics.
+ * Each process registers once, on its first call into the provider, and is dropped again
+ * when it dies. Thread-safe.
+ */
+final class CacheStatsRegistry {
+    private static final String TAG = "CacheStatsRegistry";
+    private static final boolean LOCAL_LOGV = false;
+
+    private final class Client implements IBinder.DeathRecipient {
+        final int pid;
+        final String processName;
+        final IBinder binder;
+
+        Client(int pid, String processName, IBinder binder) {
+            this.pid = pid;
+            this.processName = processName;
+            this.binder = binder;
+        }
+
+        @Override
+        public void binderDied() {
+            synchronized (mClients) {
+                if (mClients.get(pid) == this) {
+                    mClients.remove(pid);
+                }
+            }
+            if (LOCAL_LOGV) Log.v(TAG, "Dropped stats of " + pid + " " + processName);
+        }
+    }
+
+    // pid -> registered client
+    private final SparseArray<Client> mClients = new SparseArray<Client>();
+
+    /**
+     * Registers the statistics binder of a process, replacing an earlier one of the same pid.
+     */
+    void register(int pid, String processName, IBinder binder) {
+        final Client client = new Client(pid, processName, binder);
+        try {
+            binder.linkToDeath(client, 0);
+        } catch (RemoteException e) {
+            // Already dead
+            return;
+        }
+        final Client old;
+        synchronized (mClients) {
+            old = mClients.get(pid);
+            mClients.put(pid, client);
+        }
+        if (old != null) {
+            old.binder.unlinkToDeath(old, 0);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "Registered stats of " + pid + " " + processName);
+    }
+
+    /**
+     * Finds the statistics binder of a process.
+     * @param process The pid or the name of the process.
+     * @return The binder, or {@code null} if no such process registered.
+     */
+    IBinder find(String process) {
+        int pid = -1;
+        try {
+            pid = Integer.parseInt(process);
+        } catch (NumberFormatException e) {
+            // Not a pid; match the name
+        }
+        synchronized (mClients) {
+            for (int i = 0; i < mClients.size(); i++) {
+                final Client client = mClients.valueAt(i);
+                if (client.pid == pid || process.equals(client.processName)) {
+                    return client.binder;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return One "pid name" line per registered process.
+     */
+    String[] list() {
+        synchronized (mClients) {
+            final String[] processes = new String[mClients.size()];
+            for (int i = 0; i < mClients.size(); i++) {
+                final Client client = mClients.valueAt(i);
+                processes[i] = client.pid + " " + client.processName;
+            }
+            return processes;
+        }
+    }
+}
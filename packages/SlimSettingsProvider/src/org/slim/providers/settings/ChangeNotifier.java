@@ -0,0 +1,179 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Batches the change notifications sent to content observers. Changes arriving within a short
+ * window are collected per user, duplicates are dropped, and each changed uri is notified once
+ * when the window closes. If many keys of a table changed, observers get a single notification
+ * for the whole table instead, which also reaches the observers of every key. Thread-safe.
+ */
+final class ChangeNotifier {
+    private static final String TAG = "ChangeNotifier";
+    private static final boolean LOCAL_LOGV = false;
+
+    /**
+     * Sends a notification to the observers of a uri.
+     */
+    interface Sender {
+        void send(Uri uri, int userId);
+    }
+
+    private final Sender mSender;
+    private final Handler mHandler;
+    private final long mDelayMillis;
+    private final int mMaxUrisPerTable;
+
+    // Guarded by 'this'. userId -> (table uri -> changed uris of that table)
+    private final SparseArray<ArrayMap<Uri, ArraySet<Uri>>> mPending =
+            new SparseArray<ArrayMap<Uri, ArraySet<Uri>>>();
+    private boolean mFlushScheduled;
+
+    // Guarded by 'this'
+    private long mRequested;
+    private long mSent;
+    private long mDuplicates;
+    private long mCollapsed;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param sender Sends the notifications.
+     * @param handler The handler to send the notifications on.
+     * @param delayMillis How long to collect changes for; 0 sends every change right away.
+     * @param maxUrisPerTable How many uris of a table are notified one by one before the
+     *     whole table is notified instead.
+     */
+    ChangeNotifier(Sender sender, Handler handler, long delayMillis, int maxUrisPerTable) {
+        mSender = sender;
+        mHandler = handler;
+        mDelayMillis = delayMillis;
+        mMaxUrisPerTable = maxUrisPerTable;
+    }
+
+    /**
+     * Schedules a notification.
+     * @param uri The uri that changed, either a table or a key of it.
+     * @param tableUri The uri of the table.
+     * @param userId The user to notify, possibly {@link android.os.UserHandle#USER_ALL}.
+     */
+    void notifyChange(Uri uri, Uri tableUri, int userId) {
+        if (mDelayMillis <= 0) {
+            synchronized (this) {
+                mRequested++;
+                mSent++;
+            }
+            mSender.send(uri, userId);
+            return;
+        }
+
+        synchronized (this) {
+            mRequested++;
+
+            ArrayMap<Uri, ArraySet<Uri>> tables = mPending.get(userId);
+            if (tables == null) {
+                tables = new ArrayMap<Uri, ArraySet<Uri>>();
+                mPending.put(userId, tables);
+            }
+            ArraySet<Uri> uris = tables.get(tableUri);
+            if (uris == null) {
+                uris = new ArraySet<Uri>();
+                tables.put(tableUri, uris);
+            }
+
+            if (uris.contains(tableUri) || uris.contains(uri)) {
+                mDuplicates++;
+            } else if (uri.equals(tableUri) || uris.size() >= mMaxUrisPerTable) {
+                // The table notification covers all of its keys
+                mCollapsed += uris.size();
+                uris.clear();
+                uris.add(tableUri);
+                if (!uri.equals(tableUri)) {
+                    mCollapsed++;
+                }
+            } else {
+                uris.add(uri);
+            }
+
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, mDelayMillis);
+            }
+        }
+    }
+
+    /**
+     * Sends all pending notifications on the calling thread.
+     */
+    void flush() {
+        final ArrayList<Uri> uris = new ArrayList<Uri>();
+        final ArrayList<Integer> users = new ArrayList<Integer>();
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            for (int i = 0; i < mPending.size(); i++) {
+                final ArrayMap<Uri, ArraySet<Uri>> tables = mPending.valueAt(i);
+                for (int j = 0; j < tables.size(); j++) {
+                    final ArraySet<Uri> tableUris = tables.valueAt(j);
+                    for (int k = 0; k < tableUris.size(); k++) {
+                        uris.add(tableUris.valueAt(k));
+                        users.add(mPending.keyAt(i));
+                    }
+                }
+            }
+            mPending.clear();
+            mSent += uris.size();
+        }
+
+        // Not under our lock: observers may call back into the provider
+        for (int i = 0; i < uris.size(); i++) {
+            mSender.send(uris.get(i), users.get(i));
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "Sent " + uris.size() + " notification(s)");
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.print("  notifications: delay=");
+        pw.print(mDelayMillis);
+        pw.print("ms requested=");
+        pw.print(mRequested);
+        pw.print(" sent=");
+        pw.print(mSent);
+        pw.print(" suppressed=");
+        pw.print(mRequested - mSent);
+        pw.print(" (duplicates=");
+        pw.print(mDuplicates);
+        pw.print(" collapsed=");
+        pw.print(mCollapsed);
+        pw.println(")");
+    }
+}
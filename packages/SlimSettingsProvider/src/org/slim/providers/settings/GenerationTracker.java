@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+import slim.provider.GenerationRegistry;
+
+/**
+ * Keeps track of the table version at which each key was last written. The table version itself
+ * is published through the shared {@link GenerationRegistry}; clients that see it move work out
+ * the changed keys from the registry or, if it can't tell, ask which keys changed since the
+ * version they cached, and drop only those entries.
+ */
+final class GenerationTracker {
+    private static final String TAG = "GenerationTracker";
+    private static final boolean LOCAL_LOGV = false;
+
+    private final GenerationRegistry mRegistry;
+    private final int mTable;
+
+    // Changes made before this provider instance started are unknown to us.
+    private final long mBaseVersion;
+
+    // Guarded by 'this'. userId -> (key -> table version of the last write to that key)
+    private final SparseArray<ArrayMap<String, Long>> mKeyVersions =
+            new SparseArray<ArrayMap<String, Long>>();
+
+    // Guarded by 'this'. userId -> table version of the last change that could not be
+    // attributed to individual keys (deletes and updates by selection).
+    private final SparseLongArray mResetVersions = new SparseLongArray();
+
+    // Guarded by 'this'. userId -> table version at which the user was removed, so clients
+    // can evict the caches they hold for that user. User ids are never reused.
+    private final SparseLongArray mRemovedUsers = new SparseLongArray();
+
+    /**
+     * @param registry The registry to publish versions in; may be shared between trackers.
+     * @param table The table in the registry, one of the GenerationRegistry TABLE constants.
+     */
+    GenerationTracker(GenerationRegistry registry, int table) {
+        mRegistry = registry;
+        mTable = table;
+        mBaseVersion = registry.getVersion(table);
+    }
+
+    /**
+     * Bumps the table version and records it for the given keys.
+     * @param userId The user whose table changed.
+     * @param keys The changed keys, or {@code null} if the change affected an unknown set of keys.
+     * @return The new table version.
+     */
+    synchronized long onKeysChanged(int userId, String[] keys) {
+        final long version;
+        synchronized (mRegistry) {
+            version = mRegistry.bump(mTable, keys);
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "table " + mTable + " version=" + version);
+
+        if (keys == null) {
+            mResetVersions.put(userId, version);
+            mKeyVersions.remove(userId);
+            return version;
+        }
+
+        ArrayMap<String, Long> keyVersions = mKeyVersions.get(userId);
+        if (keyVersions == null) {
+            keyVersions = new ArrayMap<String, Long>();
+            mKeyVersions.put(userId, keyVersions);
+        }
+        for (String key : keys) {
+            keyVersions.put(key, version);
+        }
+        return version;
+    }
+
+    /**
+     * Returns the keys written after the given table version.
+     * @param userId The user whose table is queried.
+     * @param version The table version the caller's cache is valid for.
+     * @return The changed keys, or {@code null} if the caller must drop its whole cache.
+     */
+    synchronized String[] getKeysChangedSince(int userId, long version) {
+        final long current = mRegistry.getVersion(mTable);
+        if (version < mBaseVersion || version > current
+                || version < mResetVersions.get(userId, 0)
+                || mRemovedUsers.indexOfKey(userId) >= 0) {
+            return null;
+        }
+
+        final ArrayMap<String, Long> keyVersions = mKeyVersions.get(userId);
+        if (keyVersions == null) {
+            return new String[0];
+        }
+
+        int count = 0;
+        final int size = keyVersions.size();
+        for (int i = 0; i < size; i++) {
+            if (keyVersions.valueAt(i) > version) {
+                count++;
+            }
+        }
+        final String[] changed = new String[count];
+        for (int i = 0, j = 0; i < size; i++) {
+            if (keyVersions.valueAt(i) > version) {
+                changed[j++] = keyVersions.keyAt(i);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Returns the users removed after the given table version.
+     * @param version The table version the caller's cache is valid for.
+     * @return The ids of the removed users, possibly empty.
+     */
+    synchronized int[] getUsersRemovedSince(long version) {
+        int count = 0;
+        final int size = mRemovedUsers.size();
+        for (int i = 0; i < size; i++) {
+            if (mRemovedUsers.valueAt(i) > version) {
+                count++;
+            }
+        }
+        final int[] removed = new int[count];
+        for (int i = 0, j = 0; i < size; i++) {
+            if (mRemovedUsers.valueAt(i) > version) {
+                removed[j++] = mRemovedUsers.keyAt(i);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Forgets everything recorded for a removed user and bumps the table version, so clients
+     * caching values of that user find out about the removal.
+     * @param userId The id of the removed user.
+     */
+    synchronized void onUserRemoved(int userId) {
+        mRemovedUsers.put(userId, onKeysChanged(userId, null));
+        mKeyVersions.remove(userId);
+        mResetVersions.delete(userId);
+    }
+}
@@ -0,0 +1,286 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Statistics of the requests served by the provider: counts, latencies and the share of time
+ * spent in SQLite, broken down by method, key and calling uid.
+ * <p>
+ * Nothing is recorded until {@link #start} is called, which the provider does when the
+ * statistics are dumped, so a provider nobody inspects only pays a volatile read per request.
+ * Once on, recording takes no lock and allocates nothing once a method, key or uid has been
+ * seen, so the cost is a few atomic increments and clock reads per request.
+ */
+final class ProviderStats {
+
+    // Keys are chosen by callers; don't let a misbehaving one grow the map without bound
+    private static final int MAX_KEYS = 512;
+    private static final String OTHER_KEYS = "(other)";
+
+    /**
+     * Latency histogram with power of two buckets: bucket i counts samples below 2^i
+     * microseconds, the last bucket everything above.
+     */
+    static final class Histogram {
+        private static final int BUCKET_COUNT = 24;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+        void record(long nanos) {
+            final long micros = nanos / 1000;
+            final int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        }
+
+        /** @return The upper bound in microseconds of the bucket holding the percentile. */
+        long percentile(long count, int percent) {
+            final long rank = (count * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKET_COUNT - 1);
+        }
+    }
+
+    static final class Stats {
+        final String name;
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong sqliteNanos = new AtomicLong();
+        final Histogram latency = new Histogram();
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        void record(long nanos, long sqlite) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            if (sqlite > 0) {
+                sqliteNanos.addAndGet(sqlite);
+            }
+            latency.record(nanos);
+        }
+
+        void dump(PrintWriter pw) {
+            final long n = count.get();
+            pw.print("    ");
+            pw.print(name);
+            pw.print(": n=");
+            pw.print(n);
+            pw.print(" total=");
+            pw.print(totalNanos.get() / 1000000);
+            pw.print("ms sqlite=");
+            pw.print(sqliteNanos.get() / 1000000);
+            pw.print("ms");
+            if (n > 0) {
+                pw.print(" p50<");
+                pw.print(latency.percentile(n, 50));
+                pw.print("us p99<");
+                pw.print(latency.percentile(n, 99));
+                pw.print("us");
+            }
+            pw.println();
+        }
+    }
+
+    private volatile boolean mRecording;
+
+    private final ConcurrentHashMap<String, Stats> mMethods =
+            new ConcurrentHashMap<String, Stats>();
+    private final ConcurrentHashMap<String, Stats> mKeys = new ConcurrentHashMap<String, Stats>();
+    // Copy-on-write, so the lookup of a known uid takes no lock; never modified once
+    // published. Replaced with mUidsLock held.
+    private volatile SparseArray<Stats> mUids = new SparseArray<Stats>();
+    private final Object mUidsLock = new Object();
+
+    // SQLite time of the request running on each thread
+    private final ThreadLocal<long[]> mSqliteNanos = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    /**
+     * Starts timing a request on the calling thread.
+     * @return The start time, to be passed to {@link #end}, or 0 if nothing is recorded.
+     */
+    long begin() {
+        if (!mRecording) {
+            return 0;
+        }
+        mSqliteNanos.get()[0] = 0;
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * @return The start time of a database operation, to be passed to {@link #endSqlite}, or
+     *     0 if nothing is recorded.
+     */
+    long beginSqlite() {
+        return mRecording ? SystemClock.elapsedRealtimeNanos() : 0;
+    }
+
+    /**
+     * Adds the time since the given start to the SQLite time of the current request.
+     */
+    void endSqlite(long start) {
+        if (start == 0) {
+            return;
+        }
+        mSqliteNanos.get()[0] += SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    /**
+     * Records a request that started at the given time.
+     * @param method The method, including the table it went to.
+     * @param table The table of the key, or {@code null} if it was not about a single key.
+     * @param name The key it was about, or {@code null} if it was not about a single key.
+     * @param uid The calling uid.
+     */
+    void end(long start, String method, String table, String name, int uid) {
+        if (start == 0) {
+            // Not recording, or it was turned on while the request ran
+            return;
+        }
+        final long nanos = SystemClock.elapsedRealtimeNanos() - start;
+        final long sqlite = mSqliteNanos.get()[0];
+
+        getStats(mMethods, method).record(nanos, sqlite);
+        if (table != null && name != null) {
+            // The same name may be set in more than one table
+            final String key = table + "/" + name;
+            getStats(mKeys, mKeys.size() < MAX_KEYS || mKeys.containsKey(key)
+                    ? key : OTHER_KEYS).record(nanos, sqlite);
+        }
+        Stats stats = mUids.get(uid);
+        if (stats == null) {
+            stats = getUidStats(uid);
+        }
+        stats.record(nanos, sqlite);
+    }
+
+    private Stats getUidStats(int uid) {
+        synchronized (mUidsLock) {
+            Stats stats = mUids.get(uid);
+            if (stats == null) {
+                stats = new Stats("uid " + uid);
+                final SparseArray<Stats> uids = mUids.clone();
+                uids.put(uid, stats);
+                mUids = uids;
+            }
+            return stats;
+        }
+    }
+
+    private static Stats getStats(ConcurrentHashMap<String, Stats> map, String name) {
+        Stats stats = map.get(name);
+        if (stats == null) {
+            stats = new Stats(name);
+            final Stats existing = map.putIfAbsent(name, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    void start() {
+        mRecording = true;
+    }
+
+    /**
+     * Stops recording and drops what was recorded.
+     */
+    void stop() {
+        mRecording = false;
+        reset();
+    }
+
+    void reset() {
+        mMethods.clear();
+        mKeys.clear();
+        synchronized (mUidsLock) {
+            mUids = new SparseArray<Stats>();
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        if (!mRecording) {
+            pw.println("  requests: not recorded");
+            return;
+        }
+        pw.println("  requests by method:");
+        dump(pw, mMethods.values());
+        pw.println("  requests by calling uid:");
+        final SparseArray<Stats> uids = mUids;
+        final ArrayList<Stats> uidStats = new ArrayList<Stats>(uids.size());
+        for (int i = 0; i < uids.size(); i++) {
+            uidStats.add(uids.valueAt(i));
+        }
+        dump(pw, uidStats);
+        pw.println("  requests by table/key:");
+        dump(pw, mKeys.values());
+    }
+
+    private static final class Row {
+        final Stats stats;
+        // The counters keep moving, so sort by the total as of the dump
+        final long totalNanos;
+
+        Row(Stats stats) {
+            this.stats = stats;
+            totalNanos = stats.totalNanos.get();
+        }
+    }
+
+    private static void dump(PrintWriter pw, Collection<Stats> stats) {
+        final ArrayList<Row> rows = new ArrayList<Row>(stats.size());
+        for (Stats s : stats) {
+            rows.add(new Row(s));
+        }
+        // Busiest first
+        Collections.sort(rows, new Comparator<Row>() {
+            @Override
+            public int compare(Row lhs, Row rhs) {
+                final long diff = rhs.totalNanos - lhs.totalNanos;
+                return diff == 0
+                        ? lhs.stats.name.compareTo(rhs.stats.name) : (diff < 0 ? -1 : 1);
+            }
+        });
+        for (Row row : rows) {
+            row.stats.dump(pw);
+        }
+    }
+}
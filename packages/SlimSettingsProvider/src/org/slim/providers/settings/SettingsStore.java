@@ -0,0 +1,366 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Holds the contents of every table in memory, so reads never touch SQLite. Each table is
+ * loaded from the database the first time it is read and then kept in sync by the writers.
+ * <p>
+ * The values of a table are copy-on-write: a write publishes a new map, so readers never
+ * take a lock and may hold on to a map they got. Writers must lock {@link #getWriteLock}
+ * around both the database write and the matching update here, so the memory copy sees
+ * writes in the same order as the database.
+ * <p>
+ * With write-behind enabled, {@link #putDeferred} updates memory right away and leaves the
+ * database write to a background flush that batches everything written within a short
+ * window, the way the framework's SettingsState does. Anything that reads or writes the
+ * database directly has to {@link #flush} the table first.
+ * <p>
+ * For lookups by key range, a sorted copy of a table is built on the first such lookup after
+ * the table changed and kept until the next change.
+ */
+final class SettingsStore {
+    private static final String TAG = "SettingsStore";
+    private static final boolean LOCAL_LOGV = false;
+
+    // Quiet period after a deferred write before flushing
+    private static final long WRITE_DELAY_MILLIS = 200;
+    // Longest a deferred write may wait while writes keep coming in
+    private static final long MAX_WRITE_DELAY_MILLIS = 2000;
+    // Longest wait before trying again after flushes failed
+    private static final long MAX_RETRY_DELAY_MILLIS = 60 * 1000;
+
+    /**
+     * Reads a table from the database.
+     */
+    interface Loader {
+        Map<String, String> load(int userId, String tableName);
+    }
+
+    /**
+     * Writes name/value pairs of a table to the database in one transaction.
+     */
+    interface Writer {
+        void write(int userId, String tableName, Map<String, String> values);
+    }
+
+    private static final class Table {
+        final int userId;
+        final String name;
+
+        // Never modified once published; null until loaded
+        volatile Map<String, String> values;
+
+        // Sorted copy of 'values', or null if not built since they were published
+        volatile SortedIndex index;
+
+        // Values in memory but not in the database yet; guarded by the table
+        ArrayMap<String, String> pending;
+
+        Table(int userId, String name) {
+            this.userId = userId;
+            this.name = name;
+        }
+    }
+
+    private static final class SortedIndex {
+        final Map<String, String> source;
+        final SortedMap<String, String> values;
+
+        SortedIndex(Map<String, String> source) {
+            this.source = source;
+            values = Collections.unmodifiableSortedMap(new TreeMap<String, String>(source));
+        }
+    }
+
+    private final Loader mLoader;
+    private final Writer mWriter;
+    private final Handler mHandler;
+
+    // Guarded by mTables; 0 if nothing is pending
+    private long mFirstPendingTime;
+
+    // Guarded by mTables; flushes in a row that left values unwritten
+    private int mFailedFlushes;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushAll();
+        }
+    };
+
+    // userId -> (table -> values)
+    private final SparseArray<ArrayMap<String, Table>> mTables =
+            new SparseArray<ArrayMap<String, Table>>();
+
+    SettingsStore(Loader loader) {
+        this(loader, null, null);
+    }
+
+    /**
+     * Creates a store that can defer database writes.
+     * @param writer Writes deferred values to the database.
+     * @param handler The handler to flush on.
+     */
+    SettingsStore(Loader loader, Writer writer, Handler handler) {
+        mLoader = loader;
+        mWriter = writer;
+        mHandler = handler;
+    }
+
+    /**
+     * @return Whether {@link #putDeferred} may be used.
+     */
+    boolean isWriteBehind() {
+        return mWriter != null;
+    }
+
+    private Table getTable(int userId, String tableName) {
+        synchronized (mTables) {
+            ArrayMap<String, Table> tables = mTables.get(userId);
+            if (tables == null) {
+                tables = new ArrayMap<String, Table>();
+                mTables.put(userId, tables);
+            }
+            Table table = tables.get(tableName);
+            if (table == null) {
+                table = new Table(userId, tableName);
+                tables.put(tableName, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Returns the lock writers of the given table have to hold.
+     */
+    Object getWriteLock(int userId, String tableName) {
+        return getTable(userId, tableName);
+    }
+
+    /**
+     * Returns all name/value pairs of a table, loading it first if needed. The map must not
+     * be modified.
+     */
+    Map<String, String> getValues(int userId, String tableName) {
+        final Table table = getTable(userId, tableName);
+        Map<String, String> values = table.values;
+        if (values == null) {
+            synchronized (table) {
+                values = table.values;
+                if (values == null) {
+                    values = table.values = mLoader.load(userId, tableName);
+                    if (LOCAL_LOGV) Log.v(TAG, "Loaded " + values.size() + " values of "
+                            + tableName + " for user " + userId);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns all name/value pairs of a table sorted by name, loading it first if needed.
+     */
+    SortedMap<String, String> getSortedValues(int userId, String tableName) {
+        final Map<String, String> values = getValues(userId, tableName);
+        final Table table = getTable(userId, tableName);
+        SortedIndex index = table.index;
+        if (index == null || index.source != values) {
+            // A racing reader may store an index of older values; the check above catches it
+            index = table.index = new SortedIndex(values);
+        }
+        return index.values;
+    }
+
+    /**
+     * Applies values just written to the database. Must be called with the write lock held.
+     */
+    void put(int userId, String tableName, Map<String, String> changes) {
+        final Table table = getTable(userId, tableName);
+        final Map<String, String> values = table.values;
+        if (values == null) {
+            // Not loaded yet; the load will read the new values
+            return;
+        }
+        final ArrayMap<String, String> updated = new ArrayMap<String, String>(
+                values.size() + changes.size());
+        updated.putAll(values);
+        updated.putAll(changes);
+        table.values = updated;
+    }
+
+    /**
+     * Applies a single value just written to the database. Must be called with the write
+     * lock held.
+     */
+    void put(int userId, String tableName, String name, String value) {
+        final ArrayMap<String, String> changes = new ArrayMap<String, String>(1);
+        changes.put(name, value);
+        put(userId, tableName, changes);
+    }
+
+    /**
+     * Applies values to memory and schedules writing them to the database. Unlike
+     * {@link #put}, the table is loaded first if needed, since the database does not have the
+     * values yet. Must be called with the write lock held.
+     */
+    void putDeferred(int userId, String tableName, Map<String, String> changes) {
+        getValues(userId, tableName);
+        put(userId, tableName, changes);
+
+        final Table table = getTable(userId, tableName);
+        if (table.pending == null) {
+            table.pending = new ArrayMap<String, String>(changes.size());
+        }
+        table.pending.putAll(changes);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        synchronized (mTables) {
+            if (mFailedFlushes > 0) {
+                // The retry that is scheduled writes these as well
+                return;
+            }
+            final long now = SystemClock.uptimeMillis();
+            if (mFirstPendingTime == 0) {
+                mFirstPendingTime = now;
+            }
+            final long delay = Math.max(0, Math.min(WRITE_DELAY_MILLIS,
+                    mFirstPendingTime + MAX_WRITE_DELAY_MILLIS - now));
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.postDelayed(mFlushRunnable, delay);
+        }
+    }
+
+    /**
+     * Schedules another flush after one failed, waiting longer after each failure in a row.
+     */
+    private void scheduleRetry() {
+        synchronized (mTables) {
+            mFailedFlushes++;
+            final long delay = Math.min(MAX_RETRY_DELAY_MILLIS,
+                    WRITE_DELAY_MILLIS << Math.min(mFailedFlushes, 16));
+            mHandler.removeCallbacks(mFlushRunnable);
+            mHandler.postDelayed(mFlushRunnable, delay);
+        }
+    }
+
+    /**
+     * Writes the deferred values of a table to the database, on the calling thread.
+     * @throws SQLiteException if they could not be written. They are kept and written again
+     *     later, so callers must not touch the database directly.
+     */
+    void flush(int userId, String tableName) {
+        if (mWriter != null && !flush(getTable(userId, tableName))) {
+            scheduleRetry();
+            throw new SQLiteException("Unable to write deferred values of " + tableName
+                    + " for user " + userId);
+        }
+    }
+
+    /**
+     * @return Whether nothing is left pending.
+     */
+    private boolean flush(Table table) {
+        synchronized (table) {
+            if (table.pending == null) {
+                return true;
+            }
+            try {
+                mWriter.write(table.userId, table.name, table.pending);
+            } catch (SQLiteException e) {
+                // Keep the values; the caller tries again
+                Log.e(TAG, "Failed to write " + table.pending.size() + " values of "
+                        + table.name + " for user " + table.userId, e);
+                return false;
+            }
+            if (LOCAL_LOGV) Log.v(TAG, "Wrote " + table.pending.size() + " values of "
+                    + table.name + " for user " + table.userId);
+            table.pending = null;
+            return true;
+        }
+    }
+
+    /**
+     * Writes the deferred values of every table to the database, on the calling thread.
+     */
+    void flushAll() {
+        if (mWriter == null) {
+            return;
+        }
+        final ArrayList<Table> tables = new ArrayList<Table>();
+        synchronized (mTables) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFirstPendingTime = 0;
+            for (int i = 0; i < mTables.size(); i++) {
+                tables.addAll(mTables.valueAt(i).values());
+            }
+        }
+        // Table locks are taken before mTables, never while holding it
+        boolean flushed = true;
+        for (Table table : tables) {
+            flushed &= flush(table);
+        }
+        if (flushed) {
+            synchronized (mTables) {
+                mFailedFlushes = 0;
+            }
+        } else {
+            scheduleRetry();
+        }
+    }
+
+    /**
+     * Drops the memory copy of a table after a write whose effect is not known, such as a
+     * delete by selection. The next read loads it again. The copy is kept if deferred values
+     * of the table cannot be written, since the database does not have them. Must be called
+     * with the write lock held.
+     */
+    void invalidate(int userId, String tableName) {
+        final Table table = getTable(userId, tableName);
+        if (mWriter != null && !flush(table)) {
+            // A reload would lose the deferred values; keep the copy that has them
+            scheduleRetry();
+            return;
+        }
+        table.values = null;
+    }
+
+    /**
+     * Drops all tables of a removed user, including values not written yet.
+     */
+    void onUserRemoved(int userId) {
+        synchronized (mTables) {
+            mTables.remove(userId);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.content.res.XmlResourceParser;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
@@ -32,10 +33,17 @@ import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.TypedValue;
+
+import com.android.internal.util.XmlUtils;
+
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
+import java.io.IOException;
 
 import slim.provider.SlimSettings;
 
@@ -48,7 +56,7 @@ public class SlimDatabaseHelper extends SQLiteOpenHelper{
     private static final boolean DEBUG = false;
 
     private static final String DATABASE_NAME = "slim_settings.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 2;
 
     public static final String TABLE_SYSTEM = "system";
     public static final String TABLE_SECURE = "secure";
@@ -62,10 +70,6 @@ public class SlimDatabaseHelper extends SQLiteOpenHelper{
 
     private static final String CREATE_INDEX_SQL_FORMAT = "CREATE INDEX %sIndex%d ON %s (name);";
 
-    private static final String DROP_TABLE_SQL_FORMAT = "DROP TABLE IF EXISTS %s;";
-
-    private static final String DROP_INDEX_SQL_FORMAT = "DROP INDEX IF EXISTS %sIndex%d;";
-
     private static final String MCC_PROP_NAME = "ro.prebundled.mcc";
 
     private Context mContext;
@@ -100,6 +104,10 @@ public class SlimDatabaseHelper extends SQLiteOpenHelper{
         mContext = context;
         mUserHandle = userId;
 
+        // Let reads run on their own pooled connections while a write is in progress,
+        // instead of queueing behind it on the database lock
+        setWriteAheadLoggingEnabled(true);
+
         try {
             String packageName = mContext.getPackageName();
             mPublicSrcDir = mContext.getPackageManager().getApplicationInfo(packageName, 0)
@@ -126,7 +134,7 @@ public class SlimDatabaseHelper extends SQLiteOpenHelper{
                 createDbTable(db, TABLE_GLOBAL);
             }
 
-            loadSettings(db);
+            loadDefaults(db, 0);
 
             db.setTransactionSuccessful();
 
@@ -155,120 +163,128 @@ public class SlimDatabaseHelper extends SQLiteOpenHelper{
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         int upgradeVersion = oldVersion;
 
+        // Schema changes go here, one step per version. Defaults that were added or removed
+        // in a version are applied from the defaults file once the schema is current, so a
+        // version that only changed defaults needs no step.
         // *** Remember to update DATABASE_VERSION above!
 
-        if (upgradeVersion < newVersion) {
-            Log.w(TAG, "Got stuck trying to upgrade db. Old version: " + oldVersion
-                    + ", version stuck at: " +  upgradeVersion + ", new version: "
-                            + newVersion + ". Must wipe the slim settings provider.");
-
-            dropDbTable(db, TABLE_SYSTEM);
-            dropDbTable(db, TABLE_SECURE);
-
-            if (mUserHandle == UserHandle.USER_OWNER) {
-                dropDbTable(db, TABLE_GLOBAL);
-            }
-
-            onCreate(db);
+        if (upgradeVersion == 1) {
+            // Defaults moved to res/xml/slim_defaults.xml; the schema is unchanged
+            upgradeVersion = 2;
         }
-    }
 
-    /**
-     * Drops the table and index for the specified database and table name
-     * @param db The {@link SQLiteDatabase} to drop the table and index in.
-     * @param tableName The name of the database table to drop.
-     */
-    private void dropDbTable(SQLiteDatabase db, String tableName) {
-        if (DEBUG) Log.d(TAG, "Dropping table and index for: " + tableName);
-
-        String dropTableSql = String.format(DROP_TABLE_SQL_FORMAT, tableName);
-        db.execSQL(dropTableSql);
+        if (upgradeVersion < newVersion) {
+            // No schema step from here on; user values are kept rather than wiped
+            if (DEBUG) Log.d(TAG, "No schema change from version " + upgradeVersion
+                    + " to " + newVersion);
+        }
 
-        String dropIndexSql = String.format(DROP_INDEX_SQL_FORMAT, tableName, 1);
-        db.execSQL(dropIndexSql);
+        loadDefaults(db, oldVersion);
     }
 
     /**
-     * Loads default values for specific settings into the database.
+     * Loads the default values declared in res/xml/slim_defaults.xml, all in the caller's
+     * transaction and with one prepared statement per table and kind of change.
      * @param db The {@link SQLiteDatabase} to insert into.
+     * @param oldVersion The database version the defaults were last loaded for, 0 for a new
+     *     database. Only entries of later versions are applied.
      */
-    private void loadSettings(SQLiteDatabase db) {
-        loadSystemSettings(db);
-        loadSecureSettings(db);
-        // The global table only exists for the 'owner' user
-        if (mUserHandle == UserHandle.USER_OWNER) {
-            loadGlobalSettings(db);
-        }
-    }
-
-    private void loadSecureSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
+    private void loadDefaults(SQLiteDatabase db, int oldVersion) {
+        final ArrayMap<String, SQLiteStatement> statements =
+                new ArrayMap<String, SQLiteStatement>();
+        final Resources res = mContext.getResources();
+        final XmlResourceParser parser = res.getXml(R.xml.slim_defaults);
+        int applied = 0;
         try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO secure(name,value)"
-                    + " VALUES(?,?);");
-        } finally {
-            if (stmt != null) stmt.close();
-        }
-    }
-
-    private void loadSystemSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO system(name,value)"
-                    + " VALUES(?,?);");
+            XmlUtils.beginDocument(parser, "slim-defaults");
+            while (true) {
+                XmlUtils.nextElement(parser);
+                final String element = parser.getName();
+                if (element == null) {
+                    break;
+                }
+
+                final int version = parser.getAttributeIntValue(null, "version", 1);
+                final String table = parser.getAttributeValue(null, "table");
+                final String name = parser.getAttributeValue(null, "name");
+                if (version <= oldVersion) {
+                    continue;
+                }
+                if (name == null || !(TABLE_SYSTEM.equals(table)
+                        || TABLE_SECURE.equals(table) || TABLE_GLOBAL.equals(table))) {
+                    Log.w(TAG, "Ignoring default without a valid table or name at "
+                            + parser.getPositionDescription());
+                    continue;
+                }
+                // The global table only exists for the 'owner' user
+                if (TABLE_GLOBAL.equals(table) && mUserHandle != UserHandle.USER_OWNER) {
+                    continue;
+                }
+
+                final SQLiteStatement stmt;
+                if ("setting".equals(element)) {
+                    final boolean replace = parser.getAttributeBooleanValue(null, "replace",
+                            false);
+                    stmt = getStatement(db, statements, (replace
+                            ? "INSERT OR REPLACE INTO " : "INSERT OR IGNORE INTO ")
+                            + table + "(name,value) VALUES(?,?);");
+                    final String value = getDefaultValue(res, parser);
+                    stmt.bindString(1, name);
+                    if (value == null) {
+                        stmt.bindNull(2);
+                    } else {
+                        stmt.bindString(2, value);
+                    }
+                } else if ("removed".equals(element)) {
+                    stmt = getStatement(db, statements,
+                            "DELETE FROM " + table + " WHERE name=?;");
+                    stmt.bindString(1, name);
+                } else {
+                    Log.w(TAG, "Unknown element in defaults: " + element);
+                    continue;
+                }
+                stmt.execute();
+                applied++;
+            }
+        } catch (XmlPullParserException e) {
+            // A broken defaults file must not keep the database from opening
+            Log.e(TAG, "Unable to load slim settings defaults", e);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to load slim settings defaults", e);
         } finally {
-            if (stmt != null) stmt.close();
+            parser.close();
+            for (int i = 0; i < statements.size(); i++) {
+                statements.valueAt(i).close();
+            }
         }
+        if (DEBUG) Log.d(TAG, "Applied " + applied + " default(s) newer than version "
+                + oldVersion + " for user " + mUserHandle);
     }
 
-    private void loadGlobalSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO global(name,value)"
-                    + " VALUES(?,?);");
-        } finally {
-            if (stmt != null) stmt.close();
+    private static SQLiteStatement getStatement(SQLiteDatabase db,
+            ArrayMap<String, SQLiteStatement> statements, String sql) {
+        SQLiteStatement stmt = statements.get(sql);
+        if (stmt == null) {
+            stmt = db.compileStatement(sql);
+            statements.put(sql, stmt);
         }
+        return stmt;
     }
 
     /**
-     * Loads a string resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the string resource.
-     */
-    private void loadStringSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name, mContext.getResources().getString(resId));
-    }
-
-    /**
-     * Loads a boolean resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the boolean resource.
-     */
-    private void loadBooleanSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
-                mContext.getResources().getBoolean(resId) ? "1" : "0");
-    }
-
-    /**
-     * Loads an integer resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
-     * @param name The name of the value to insert into the table.
-     * @param resId The name of the integer resource.
+     * Returns the value of a setting element, resolving resource references. Booleans are
+     * stored as 1 and 0, like the setters in {@link SlimSettings} do.
      */
-    private void loadIntegerSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
-                Integer.toString(mContext.getResources().getInteger(resId)));
-    }
-
-    private void loadSetting(SQLiteStatement stmt, String key, Object value) {
-        stmt.bindString(1, key);
-        stmt.bindString(2, value.toString());
-        stmt.execute();
+    private static String getDefaultValue(Resources res, XmlResourceParser parser) {
+        final int resId = parser.getAttributeResourceValue(null, "value", 0);
+        if (resId == 0) {
+            return parser.getAttributeValue(null, "value");
+        }
+        final TypedValue value = new TypedValue();
+        res.getValue(resId, value, true);
+        if (value.type == TypedValue.TYPE_INT_BOOLEAN) {
+            return value.data != 0 ? "1" : "0";
+        }
+        return value.coerceToString().toString();
     }
 }
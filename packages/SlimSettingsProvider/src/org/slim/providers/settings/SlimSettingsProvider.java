@@ -38,20 +38,49 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
 import android.util.Log;
 import android.util.SparseArray;
 
+import com.android.internal.os.BackgroundThread;
+
+import libcore.io.IoUtils;
+
+import slim.provider.GenerationRegistry;
+import slim.provider.SettingsSchema;
 import slim.provider.SlimSettings;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 
 /**
  * The SlimSettingsProvider serves as a {@link ContentProvider} for Slim specific settings
@@ -64,9 +93,35 @@ public class SlimSettingsProvider extends ContentProvider {
 
     private static final Bundle NULL_SETTING = Bundle.forPair("value", null);
 
-    // Each defined user has their own settings
-    protected final SparseArray<SlimDatabaseHelper> mDbHelpers
-            = new SparseArray<SlimDatabaseHelper>();
+    // Set to defer database writes and batch them in the background
+    private static final String WRITE_BEHIND_PROPERTY = "persist.sys.slim_settings_write_behind";
+
+    // How long to collect change notifications before sending them; 0 sends them right away
+    private static final String NOTIFY_DELAY_PROPERTY = "persist.sys.slim_settings_notify_delay";
+    private static final long DEFAULT_NOTIFY_DELAY_MILLIS = 5;
+    // Changed keys of a table notified one by one before notifying the whole table instead
+    private static final int MAX_NOTIFIED_KEYS_PER_TABLE = 16;
+
+    // Writes of a key by a caller within this window of the last one are notified together;
+    // 0 disables
+    private static final String COALESCE_WINDOW_PROPERTY =
+            "persist.sys.slim_settings_coalesce_window";
+    private static final long DEFAULT_COALESCE_WINDOW_MILLIS = 100;
+    // Sustained and burst single-key writes notified per calling uid; a rate of 0 disables
+    private static final String WRITE_RATE_PROPERTY = "persist.sys.slim_settings_write_rate";
+    private static final int DEFAULT_WRITES_PER_SECOND = 20;
+    private static final String WRITE_BURST_PROPERTY = "persist.sys.slim_settings_write_burst";
+    private static final int DEFAULT_WRITE_BURST = 50;
+    private static final String SYSTEMUI_PACKAGE = "com.android.systemui";
+
+    // Format version of exported settings streams
+    private static final int EXPORT_VERSION = 1;
+
+    private static final String[] TABLES = { SlimDatabaseHelper.TABLE_SYSTEM,
+            SlimDatabaseHelper.TABLE_SECURE, SlimDatabaseHelper.TABLE_GLOBAL };
+
+    // Each defined user has their own settings. Must be locked while looking up holders.
+    private final SparseArray<DatabaseHolder> mDbHelpers = new SparseArray<DatabaseHolder>();
 
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
@@ -100,13 +155,48 @@ public class SlimSettingsProvider extends ContentProvider {
     private Uri.Builder mUriBuilder;
     private SharedPreferences mSharedPrefs;
 
+    // Shared memory copies of the tables, read by clients without a binder call.
+    // Must be locked while publishing.
+    private SnapshotManager mSnapshotManager;
+
+    // Shared memory table and key versions, mapped read-only by client-side caches
+    private GenerationRegistry mGenerationRegistry;
+    // Handed to every client; null if the registry could not be shared
+    private ParcelFileDescriptor mGenerationRegistryFd;
+
+    // Per-key version bookkeeping for each table, used by client-side caches
+    private final ArrayMap<String, GenerationTracker> mGenerationTrackers =
+            new ArrayMap<String, GenerationTracker>();
+
+    // Binders through which client processes dump their settings cache statistics
+    private final CacheStatsRegistry mCacheStatsRegistry = new CacheStatsRegistry();
+
+    // Memory copy of every table that was read; answers all lookups
+    private SettingsStore mStore;
+
+    // Counts and latencies of the requests served, for dump() and 'slimsettings stats'
+    private final ProviderStats mProviderStats = new ProviderStats();
+
+    // Batches the notifications sent to content observers
+    private ChangeNotifier mChangeNotifier;
+
+    // Holds back the notifications of single-key writes that come in too fast
+    private WriteCoalescer mWriteCoalescer;
+    // App id of SystemUI, which is not throttled like other apps; -1 if not found
+    private int mSystemUiAppId = -1;
+
+    // userId -> "table/key" -> uid of the caller that last wrote the key, since the provider
+    // started. Must be locked.
+    private final SparseArray<ArrayMap<String, Integer>> mLastWriters =
+            new SparseArray<ArrayMap<String, Integer>>();
+
     @Override
     public boolean onCreate() {
         if (LOCAL_LOGV) Log.d(TAG, "Creating SlimSettingsProvider");
 
         mUserManager = UserManager.get(getContext());
 
-        establishDbTracking(UserHandle.USER_OWNER);
+        getOrEstablishDatabase(UserHandle.USER_OWNER);
 
         mUriBuilder = new Uri.Builder();
         mUriBuilder.scheme(ContentResolver.SCHEME_CONTENT);
@@ -114,8 +204,88 @@ public class SlimSettingsProvider extends ContentProvider {
 
         mSharedPrefs = getContext().getSharedPreferences(TAG, Context.MODE_PRIVATE);
 
+        mSnapshotManager = new SnapshotManager(new File(getContext().getFilesDir(), "snapshots"));
+
+        final SettingsStore.Loader loader = new SettingsStore.Loader() {
+            @Override
+            public Map<String, String> load(int userId, String tableName) {
+                return readTable(userId, tableName);
+            }
+        };
+        if (SystemProperties.getBoolean(WRITE_BEHIND_PROPERTY, false)) {
+            mStore = new SettingsStore(loader, new SettingsStore.Writer() {
+                @Override
+                public void write(int userId, String tableName, Map<String, String> values) {
+                    writeTable(userId, tableName, values);
+                }
+            }, BackgroundThread.getHandler());
+        } else {
+            mStore = new SettingsStore(loader);
+        }
+
+        createGenerationRegistry(new File(getContext().getFilesDir(), "generations"));
+        mGenerationTrackers.put(SlimDatabaseHelper.TABLE_SYSTEM,
+                new GenerationTracker(mGenerationRegistry, GenerationRegistry.TABLE_SYSTEM));
+        mGenerationTrackers.put(SlimDatabaseHelper.TABLE_SECURE,
+                new GenerationTracker(mGenerationRegistry, GenerationRegistry.TABLE_SECURE));
+        mGenerationTrackers.put(SlimDatabaseHelper.TABLE_GLOBAL,
+                new GenerationTracker(mGenerationRegistry, GenerationRegistry.TABLE_GLOBAL));
+
+        // Clients may still have snapshots of the previous run mapped; they must not trust
+        // them before they are published again
+        final SparseArray<ArraySet<String>> staleSnapshots;
+        synchronized (mSnapshotManager) {
+            staleSnapshots = mSnapshotManager.invalidateExisting();
+        }
+        if (staleSnapshots.size() > 0) {
+            BackgroundThread.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    republishSnapshots(staleSnapshots);
+                }
+            });
+        }
+
+        mChangeNotifier = new ChangeNotifier(new ChangeNotifier.Sender() {
+            @Override
+            public void send(Uri uri, int userId) {
+                final long oldId = Binder.clearCallingIdentity();
+                try {
+                    getContext().getContentResolver().notifyChange(uri, null, true, userId);
+                } finally {
+                    Binder.restoreCallingIdentity(oldId);
+                }
+                if (LOCAL_LOGV) Log.v(TAG, "notifying for " + userId + ": " + uri);
+            }
+        }, BackgroundThread.getHandler(),
+                SystemProperties.getLong(NOTIFY_DELAY_PROPERTY, DEFAULT_NOTIFY_DELAY_MILLIS),
+                MAX_NOTIFIED_KEYS_PER_TABLE);
+
+        mWriteCoalescer = new WriteCoalescer(new WriteCoalescer.Sender() {
+            @Override
+            public void send(int userId, String tableName, ArrayList<String> names) {
+                for (int i = 0; i < names.size(); i++) {
+                    notifyObservers(Uri.withAppendedPath(getTableUri(tableName), names.get(i)),
+                            tableName, userId);
+                }
+            }
+        }, BackgroundThread.getHandler(),
+                SystemProperties.getLong(COALESCE_WINDOW_PROPERTY, DEFAULT_COALESCE_WINDOW_MILLIS),
+                SystemProperties.getInt(WRITE_RATE_PROPERTY, DEFAULT_WRITES_PER_SECOND),
+                SystemProperties.getInt(WRITE_BURST_PROPERTY, DEFAULT_WRITE_BURST));
+        try {
+            mSystemUiAppId = UserHandle.getAppId(getContext().getPackageManager()
+                    .getApplicationInfo(SYSTEMUI_PACKAGE, 0).uid);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Can't find " + SYSTEMUI_PACKAGE + "; its writes are throttled");
+        }
+
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_USER_ADDED);
+        userFilter.addAction(Intent.ACTION_USER_STARTING);
+        userFilter.addAction(Intent.ACTION_USER_SWITCHED);
+        userFilter.addAction(Intent.ACTION_SHUTDOWN);
         getContext().registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -127,6 +297,14 @@ public class SlimSettingsProvider extends ContentProvider {
 
                 if (action.equals(Intent.ACTION_USER_REMOVED)) {
                     onUserRemoved(userId);
+                } else if (action.equals(Intent.ACTION_USER_ADDED)
+                        || action.equals(Intent.ACTION_USER_STARTING)) {
+                    preOpenDatabase(userId);
+                } else if (action.equals(Intent.ACTION_USER_SWITCHED)
+                        || action.equals(Intent.ACTION_SHUTDOWN)) {
+                    // Don't leave deferred writes or held notifications behind
+                    mWriteCoalescer.flush(true);
+                    mStore.flushAll();
                 }
             }
         }, userFilter);
@@ -134,18 +312,56 @@ public class SlimSettingsProvider extends ContentProvider {
         return true;
     }
 
+    /**
+     * Maps the generation registry shared with clients. If that fails, versions are kept in
+     * private memory and clients don't cache.
+     * @param file The file backing the registry; reused so versions never go back.
+     */
+    private void createGenerationRegistry(File file) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(GenerationRegistry.SIZE);
+            mGenerationRegistry = GenerationRegistry.map(raf.getChannel(), true);
+            mGenerationRegistryFd = ParcelFileDescriptor.open(file,
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create generation registry " + file, e);
+            mGenerationRegistry = new GenerationRegistry(
+                    ByteBuffer.allocate(GenerationRegistry.SIZE));
+            mGenerationRegistryFd = null;
+        } finally {
+            // The mapping stays valid after the file is closed
+            IoUtils.closeQuietly(raf);
+        }
+        mGenerationRegistry.initialize();
+    }
+
     /**
      * Performs cleanup for the removed user.
      * @param userId The id of the user that is removed.
      */
     private void onUserRemoved(int userId) {
-        synchronized (this) {
-            // the db file itself will be deleted automatically, but we need to tear down
-            // our helpers and other internal bookkeeping.
-
+        // the db file itself will be deleted automatically, but we need to tear down
+        // our helpers and other internal bookkeeping.
+        synchronized (mDbHelpers) {
             mDbHelpers.delete(userId);
+        }
+        mStore.onUserRemoved(userId);
+        mWriteCoalescer.onUserRemoved(userId);
+        synchronized (mLastWriters) {
+            mLastWriters.delete(userId);
+        }
+
+        for (int i = 0; i < mGenerationTrackers.size(); i++) {
+            mGenerationTrackers.valueAt(i).onUserRemoved(userId);
+        }
 
-            if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
+        if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
+
+        // Publishing a snapshot may open a database while holding the manager
+        synchronized (mSnapshotManager) {
+            mSnapshotManager.onUserRemoved(userId);
         }
     }
 
@@ -153,6 +369,34 @@ public class SlimSettingsProvider extends ContentProvider {
 
     @Override
     public Bundle call(String method, String request, Bundle args) {
+        final long start = mProviderStats.begin();
+        try {
+            return callForMethod(method, request, args);
+        } finally {
+            mProviderStats.end(start, method, getSingleKeyTable(method), request,
+                    Binder.getCallingUid());
+        }
+    }
+
+    /**
+     * @return The table a call() method reads or writes a single key of, with the key passed
+     *     as the request, or {@code null} for any other method.
+     */
+    private static String getSingleKeyTable(String method) {
+        if (SlimSettings.CALL_METHOD_GET_SYSTEM.equals(method)
+                || SlimSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
+            return SlimDatabaseHelper.TABLE_SYSTEM;
+        } else if (SlimSettings.CALL_METHOD_GET_SECURE.equals(method)
+                || SlimSettings.CALL_METHOD_PUT_SECURE.equals(method)) {
+            return SlimDatabaseHelper.TABLE_SECURE;
+        } else if (SlimSettings.CALL_METHOD_GET_GLOBAL.equals(method)
+                || SlimSettings.CALL_METHOD_PUT_GLOBAL.equals(method)) {
+            return SlimDatabaseHelper.TABLE_GLOBAL;
+        }
+        return null;
+    }
+
+    private Bundle callForMethod(String method, String request, Bundle args) {
         if (LOCAL_LOGV) Log.d(TAG, "Call method: " + method + " " + request);
 
         int callingUserId = UserHandle.getCallingUserId();
@@ -177,6 +421,98 @@ public class SlimSettingsProvider extends ContentProvider {
             return lookupSingleValue(callingUserId, SlimSettings.Global.CONTENT_URI, request);
         }
 
+        // Multi get methods
+        if (SlimSettings.CALL_METHOD_GET_MULTI_SYSTEM.equals(method)) {
+            return lookupMultipleValues(callingUserId, SlimSettings.System.CONTENT_URI, args);
+        }
+        else if (SlimSettings.CALL_METHOD_GET_MULTI_SECURE.equals(method)) {
+            return lookupMultipleValues(callingUserId, SlimSettings.Secure.CONTENT_URI, args);
+        }
+        else if (SlimSettings.CALL_METHOD_GET_MULTI_GLOBAL.equals(method)) {
+            return lookupMultipleValues(callingUserId, SlimSettings.Global.CONTENT_URI, args);
+        }
+
+        // Get all methods
+        if (SlimSettings.CALL_METHOD_GET_ALL_SYSTEM.equals(method)) {
+            return lookupAllValues(callingUserId, SlimDatabaseHelper.TABLE_SYSTEM);
+        }
+        else if (SlimSettings.CALL_METHOD_GET_ALL_SECURE.equals(method)) {
+            return lookupAllValues(callingUserId, SlimDatabaseHelper.TABLE_SECURE);
+        }
+        else if (SlimSettings.CALL_METHOD_GET_ALL_GLOBAL.equals(method)) {
+            return lookupAllValues(callingUserId, SlimDatabaseHelper.TABLE_GLOBAL);
+        }
+
+        // Prefix and range methods
+        if (SlimSettings.CALL_METHOD_GET_PREFIX_SYSTEM.equals(method)) {
+            return lookupValueRange(callingUserId, SlimDatabaseHelper.TABLE_SYSTEM, request, args);
+        }
+        else if (SlimSettings.CALL_METHOD_GET_PREFIX_SECURE.equals(method)) {
+            return lookupValueRange(callingUserId, SlimDatabaseHelper.TABLE_SECURE, request, args);
+        }
+        else if (SlimSettings.CALL_METHOD_GET_PREFIX_GLOBAL.equals(method)) {
+            return lookupValueRange(callingUserId, SlimDatabaseHelper.TABLE_GLOBAL, request, args);
+        }
+
+        // Snapshot methods
+        if (SlimSettings.CALL_METHOD_SNAPSHOT_SYSTEM.equals(method)) {
+            return openSnapshot(callingUserId, SlimDatabaseHelper.TABLE_SYSTEM);
+        }
+        else if (SlimSettings.CALL_METHOD_SNAPSHOT_SECURE.equals(method)) {
+            return openSnapshot(callingUserId, SlimDatabaseHelper.TABLE_SECURE);
+        }
+        else if (SlimSettings.CALL_METHOD_SNAPSHOT_GLOBAL.equals(method)) {
+            return openSnapshot(callingUserId, SlimDatabaseHelper.TABLE_GLOBAL);
+        }
+
+        // Generation registry method
+        if (SlimSettings.CALL_METHOD_GET_GENERATIONS.equals(method)) {
+            return openGenerationRegistry();
+        }
+
+        // Change tracking methods
+        if (SlimSettings.CALL_METHOD_CHANGES_SYSTEM.equals(method)) {
+            return lookupChangedKeys(callingUserId, SlimDatabaseHelper.TABLE_SYSTEM, args);
+        }
+        else if (SlimSettings.CALL_METHOD_CHANGES_SECURE.equals(method)) {
+            return lookupChangedKeys(callingUserId, SlimDatabaseHelper.TABLE_SECURE, args);
+        }
+        else if (SlimSettings.CALL_METHOD_CHANGES_GLOBAL.equals(method)) {
+            return lookupChangedKeys(callingUserId, SlimDatabaseHelper.TABLE_GLOBAL, args);
+        }
+
+        // Cache statistics methods
+        if (SlimSettings.CALL_METHOD_REGISTER_STATS.equals(method)) {
+            registerStats(args);
+            return null;
+        }
+        else if (SlimSettings.CALL_METHOD_GET_STATS.equals(method)) {
+            return lookupStats(request);
+        }
+        else if (SlimSettings.CALL_METHOD_GET_PROVIDER_STATS.equals(method)) {
+            dumpProviderStats(request, args);
+            return null;
+        }
+        else if (SlimSettings.CALL_METHOD_GET_WRITER_SYSTEM.equals(method)) {
+            return lookupLastWriter(callingUserId, SlimDatabaseHelper.TABLE_SYSTEM, request);
+        }
+        else if (SlimSettings.CALL_METHOD_GET_WRITER_SECURE.equals(method)) {
+            return lookupLastWriter(callingUserId, SlimDatabaseHelper.TABLE_SECURE, request);
+        }
+        else if (SlimSettings.CALL_METHOD_GET_WRITER_GLOBAL.equals(method)) {
+            return lookupLastWriter(callingUserId, SlimDatabaseHelper.TABLE_GLOBAL, request);
+        }
+
+        // Backup methods
+        if (SlimSettings.CALL_METHOD_EXPORT.equals(method)) {
+            return exportForUser(callingUserId, args);
+        }
+        else if (SlimSettings.CALL_METHOD_IMPORT.equals(method)) {
+            enforceWritePermission(slim.Manifest.permission.WRITE_SETTINGS);
+            enforceWritePermission(slim.Manifest.permission.WRITE_SECURE_SETTINGS);
+            return importForUser(callingUserId, args);
+        }
+
         // Put methods - new value is in the args bundle under the key named by
         // the Settings.NameValueTable.VALUE static.
         final String newValue = (args == null)
@@ -184,12 +520,27 @@ public class SlimSettingsProvider extends ContentProvider {
 
         // Framework can't do automatic permission checking for calls, so we need
         // to do it here.
-        if (SlimSettings.CALL_METHOD_PUT_SYSTEM.equals(method)) {
+        if (SlimSettings.CALL_METHOD_PUT_SYSTEM.equals(method)
+                || SlimSettings.CALL_METHOD_PUT_MULTI_SYSTEM.equals(method)) {
             enforceWritePermission(slim.Manifest.permission.WRITE_SETTINGS);
         } else {
             enforceWritePermission(slim.Manifest.permission.WRITE_SECURE_SETTINGS);
         }
 
+        // Multi put methods
+        if (SlimSettings.CALL_METHOD_PUT_MULTI_SYSTEM.equals(method)) {
+            insertMultipleForUser(callingUserId, SlimSettings.System.CONTENT_URI, args);
+            return null;
+        }
+        else if (SlimSettings.CALL_METHOD_PUT_MULTI_SECURE.equals(method)) {
+            insertMultipleForUser(callingUserId, SlimSettings.Secure.CONTENT_URI, args);
+            return null;
+        }
+        else if (SlimSettings.CALL_METHOD_PUT_MULTI_GLOBAL.equals(method)) {
+            insertMultipleForUser(callingUserId, SlimSettings.Global.CONTENT_URI, args);
+            return null;
+        }
+
         // Put methods
         final ContentValues values = new ContentValues();
         values.put(Settings.NameValueTable.NAME, request);
@@ -225,34 +576,569 @@ public class SlimSettingsProvider extends ContentProvider {
      * @return A single value stored in a {@link Bundle}.
      */
     private Bundle lookupSingleValue(int userId, Uri uri, String key) {
-        Cursor cursor = null;
+        final String tableName = getTableNameFromUri(uri);
+        final String value;
         try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
+            value = getValues(userId, tableName).get(key);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
+        return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE, value);
+    }
 
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
-            }
+    /**
+     * Looks up several values for a specific user and uri at once.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param args The call arguments, holding the keys to perform the lookup with.
+     * @return A {@link Bundle} mapping every requested key to its value, or to {@code null} if
+     *     the key is not set.
+     */
+    private Bundle lookupMultipleValues(int userId, Uri uri, Bundle args) {
+        final String[] keys = (args == null)
+                ? null : args.getStringArray(SlimSettings.CALL_METHOD_NAMES_KEY);
+        if (keys == null || keys.length == 0) {
+            return new Bundle();
+        }
+
+        final Map<String, String> values;
+        try {
+            values = getValues(userId, getTableNameFromUri(uri));
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
+
+        Bundle result = new Bundle();
+        for (String key : keys) {
+            result.putString(key, values.get(key));
+        }
+        return result;
+    }
+
+    /**
+     * Looks up every key of a table.
+     * @param userId The id of the user to perform the lookup for.
+     * @param tableName The table to perform the lookup in.
+     * @return A {@link Bundle} mapping every key that is set to its value.
+     */
+    private Bundle lookupAllValues(int userId, String tableName) {
+        final Map<String, String> values;
+        try {
+            values = getValues(userId, tableName);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "settings lookup error", e);
+            return null;
+        }
+
+        Bundle result = new Bundle();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            result.putString(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Looks up every key of a table starting with a prefix, or within a range of keys.
+     * @param userId The id of the user to perform the lookup for.
+     * @param tableName The table to perform the lookup in.
+     * @param prefix The prefix of the keys, or the first key of the range; {@code null} or
+     *     empty for all keys.
+     * @param args The call arguments, optionally holding the key the range ends before.
+     * @return A {@link Bundle} mapping every matching key that is set to its value.
+     */
+    private Bundle lookupValueRange(int userId, String tableName, String prefix, Bundle args) {
+        final String end = (args == null)
+                ? null : args.getString(SlimSettings.CALL_METHOD_END_KEY);
+        if (prefix == null) {
+            prefix = "";
+        }
+
+        SortedMap<String, String> values;
+        try {
+            values = mStore.getSortedValues(getUserIdForTable(tableName, userId), tableName);
         } catch (SQLiteException e) {
             Log.w(TAG, "settings lookup error", e);
             return null;
+        }
+
+        Bundle result = new Bundle();
+        if (end != null) {
+            if (prefix.compareTo(end) < 0) {
+                values = values.subMap(prefix, end);
+            } else {
+                return result;
+            }
+        } else {
+            values = values.tailMap(prefix);
+        }
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (end == null && !entry.getKey().startsWith(prefix)) {
+                // Past the last key with the prefix
+                break;
+            }
+            result.putString(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Publishes the snapshots invalidated at startup again, so clients that kept them mapped
+     * read them instead of calling the provider.
+     * @param tables userId -> tables whose snapshot was invalidated.
+     */
+    private void republishSnapshots(SparseArray<ArraySet<String>> tables) {
+        for (int i = 0; i < tables.size(); i++) {
+            final int userId = tables.keyAt(i);
+            if (mUserManager.getUserInfo(userId) == null) {
+                // Removed while we were not running
+                continue;
+            }
+            for (String tableName : tables.valueAt(i)) {
+                if (!mGenerationTrackers.containsKey(tableName)) {
+                    continue;
+                }
+                synchronized (mSnapshotManager) {
+                    if (!mSnapshotManager.isPublished(userId, tableName)) {
+                        mSnapshotManager.publish(userId, tableName,
+                                mStore.getValues(userId, tableName));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Publishes the shared memory snapshot of a table if needed and returns it.
+     * @param userId The id of the user to open the snapshot for.
+     * @param tableName The table to open the snapshot of.
+     * @return A {@link Bundle} holding a read-only descriptor of the snapshot, or {@code null}
+     *     if it could not be created.
+     */
+    private Bundle openSnapshot(int userId, String tableName) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        final ParcelFileDescriptor fd;
+        synchronized (mSnapshotManager) {
+            if (!mSnapshotManager.isPublished(tableUserId, tableName)) {
+                mSnapshotManager.publish(tableUserId, tableName,
+                        mStore.getValues(tableUserId, tableName));
+            }
+            fd = mSnapshotManager.getReadOnlyFd(tableUserId, tableName);
+        }
+        if (fd == null) {
+            return null;
+        }
+
+        Bundle result = new Bundle();
+        result.putParcelable(SlimSettings.CALL_METHOD_SNAPSHOT_KEY, fd);
+        return result;
+    }
+
+    /**
+     * Returns the shared generation registry.
+     * @return A {@link Bundle} holding a read-only descriptor of the registry, or {@code null}
+     *     if it is not shared.
+     */
+    private Bundle openGenerationRegistry() {
+        if (mGenerationRegistryFd == null) {
+            return null;
+        }
+        Bundle result = new Bundle();
+        result.putParcelable(SlimSettings.CALL_METHOD_GENERATIONS_KEY, mGenerationRegistryFd);
+        return result;
+    }
+
+    /**
+     * Re-publishes the snapshot of a table after a write, if a client asked for it.
+     * @param userId The owner of the table.
+     * @param tableName The table that changed.
+     */
+    private void updateSnapshot(int userId, String tableName) {
+        synchronized (mSnapshotManager) {
+            if (mSnapshotManager.isPublished(userId, tableName)) {
+                mSnapshotManager.publish(userId, tableName, mStore.getValues(userId, tableName));
+            }
+        }
+    }
+
+    /**
+     * Returns all name/value pairs of a table from memory.
+     * @param userId The id of the user to perform the lookup for.
+     * @param tableName The table to read.
+     * @return The contents of the table; must not be modified.
+     */
+    private Map<String, String> getValues(int userId, String tableName) {
+        return mStore.getValues(getUserIdForTable(tableName, userId), tableName);
+    }
+
+    /**
+     * Writes the request statistics of the provider to the stream passed in the arguments.
+     * Recording starts with the first request for them.
+     * @param request "reset" to clear the statistics after writing them, "stop" to clear them
+     *     and stop recording, or {@code null}.
+     * @param args The call arguments, holding the stream.
+     */
+    private void dumpProviderStats(String request, Bundle args) {
+        getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP,
+                "Permission denial: reading settings provider stats");
+
+        final ParcelFileDescriptor fd = (args == null)
+                ? null : (ParcelFileDescriptor) args.getParcelable(
+                        SlimSettings.CALL_METHOD_STREAM_KEY);
+        if (fd == null) {
+            throw new IllegalArgumentException("No stream to write the stats to");
+        }
+        final PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+                new ParcelFileDescriptor.AutoCloseOutputStream(fd), StandardCharsets.UTF_8));
+        try {
+            mWriteCoalescer.dump(pw);
+            mProviderStats.dump(pw);
+        } finally {
+            pw.close();
+        }
+        if ("stop".equals(request)) {
+            mProviderStats.stop();
+            return;
+        }
+        if ("reset".equals(request)) {
+            mProviderStats.reset();
+        }
+        // Record from now on, so the next dump has something to show
+        mProviderStats.start();
+    }
+
+    /**
+     * Looks up the uid of the caller that last wrote a key.
+     * @param userId The id of the user to perform the lookup for.
+     * @param tableName The table of the key.
+     * @param key The key.
+     * @return A {@link Bundle} holding the uid, or -1 if the key was not written since the
+     *     provider started.
+     */
+    private Bundle lookupLastWriter(int userId, String tableName, String key) {
+        getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP,
+                "Permission denial: reading settings writers");
+
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        Integer uid = null;
+        synchronized (mLastWriters) {
+            final ArrayMap<String, Integer> writers = mLastWriters.get(tableUserId);
+            if (writers != null) {
+                uid = writers.get(tableName + "/" + key);
+            }
+        }
+        Bundle result = new Bundle();
+        result.putInt(SlimSettings.CALL_METHOD_UID_KEY, uid == null ? -1 : uid);
+        return result;
+    }
+
+    /**
+     * Remembers the calling uid as the last writer of some keys.
+     * @param userId The owner of the table.
+     * @param tableName The table of the keys.
+     * @param names The keys written.
+     * @param count How many of the keys were written.
+     */
+    private void recordWriters(int userId, String tableName, String[] names, int count) {
+        final Integer uid = Binder.getCallingUid();
+        synchronized (mLastWriters) {
+            ArrayMap<String, Integer> writers = mLastWriters.get(userId);
+            if (writers == null) {
+                writers = new ArrayMap<String, Integer>();
+                mLastWriters.put(userId, writers);
+            }
+            for (int i = 0; i < count; i++) {
+                writers.put(tableName + "/" + names[i], uid);
+            }
+        }
+    }
+
+    /**
+     * Reads all name/value pairs of a table from the database.
+     * @param userId The owner of the table.
+     * @param tableName The table to read.
+     * @return The contents of the table.
+     */
+    private Map<String, String> readTable(int userId, String tableName) {
+        final ArrayMap<String, String> values = new ArrayMap<String, String>();
+        SQLiteDatabase db = getOrEstablishDatabase(userId).getReadableDatabase();
+        final long start = mProviderStats.beginSqlite();
+        Cursor cursor = db.query(tableName, new String[] { Settings.NameValueTable.NAME,
+                Settings.NameValueTable.VALUE }, null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                values.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+            mProviderStats.endSqlite(start);
+        }
+        return values;
+    }
+
+    /**
+     * Writes name/value pairs of a table to the database in a single transaction.
+     * @param userId The owner of the table.
+     * @param tableName The table to write to.
+     * @param values The values to write.
+     */
+    private void writeTable(int userId, String tableName, Map<String, String> values) {
+        SQLiteDatabase db = getOrEstablishDatabase(userId).getWritableDatabase();
+        final ContentValues row = new ContentValues();
+        final long start = mProviderStats.beginSqlite();
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                row.put(Settings.NameValueTable.NAME, entry.getKey());
+                row.put(Settings.NameValueTable.VALUE, entry.getValue());
+                db.insertOrThrow(tableName, null, row);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mProviderStats.endSqlite(start);
+        }
+    }
+
+    /**
+     * Writes every table of a user as a JSON stream of the form
+     * <pre>{"version": 1, "tables": {"system": {"key": "value", ...}, ...}}</pre>
+     * @param userId The id of the user to export the settings of.
+     * @param args The call arguments, holding the descriptor to write to. It is closed when
+     *     done.
+     * @return A {@link Bundle} holding the number of exported values.
+     */
+    private Bundle exportForUser(int userId, Bundle args) {
+        final ParcelFileDescriptor fd = (args == null)
+                ? null : (ParcelFileDescriptor) args.getParcelable(
+                        SlimSettings.CALL_METHOD_STREAM_KEY);
+        if (fd == null) {
+            throw new IllegalArgumentException("No stream to export to");
+        }
+
+        int count = 0;
+        final JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                new BufferedOutputStream(new ParcelFileDescriptor.AutoCloseOutputStream(fd)),
+                StandardCharsets.UTF_8));
+        try {
+            writer.beginObject();
+            writer.name("version").value(EXPORT_VERSION);
+            writer.name("tables").beginObject();
+            for (String tableName : TABLES) {
+                writer.name(tableName).beginObject();
+                for (Map.Entry<String, String> entry : getValues(userId, tableName).entrySet()) {
+                    writer.name(entry.getKey()).value(entry.getValue());
+                    count++;
+                }
+                writer.endObject();
+            }
+            writer.endObject();
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to export settings for user " + userId, e);
+        } finally {
+            IoUtils.closeQuietly(writer);
+        }
+
+        if (LOCAL_LOGV) Log.d(TAG, "Exported " + count + " values for user " + userId);
+        Bundle result = new Bundle();
+        result.putInt(SlimSettings.CALL_METHOD_COUNT_KEY, count);
+        return result;
+    }
+
+    /**
+     * Reads a stream written by {@link #exportForUser} and writes its values. The whole stream
+     * is read and validated before anything is written; each table is then written in one
+     * transaction.
+     * @param userId The id of the user to import the settings for.
+     * @param args The call arguments, holding the descriptor to read from. It is closed when
+     *     done.
+     * @return A {@link Bundle} holding the number of imported values.
+     */
+    private Bundle importForUser(int userId, Bundle args) {
+        final ParcelFileDescriptor fd = (args == null)
+                ? null : (ParcelFileDescriptor) args.getParcelable(
+                        SlimSettings.CALL_METHOD_STREAM_KEY);
+        if (fd == null) {
+            throw new IllegalArgumentException("No stream to import from");
+        }
+
+        final ArrayMap<String, Map<String, String>> tables =
+                new ArrayMap<String, Map<String, String>>();
+        final JsonReader reader = new JsonReader(new InputStreamReader(
+                new BufferedInputStream(new ParcelFileDescriptor.AutoCloseInputStream(fd)),
+                StandardCharsets.UTF_8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if ("version".equals(name)) {
+                    final int version = reader.nextInt();
+                    if (version > EXPORT_VERSION) {
+                        throw new IllegalArgumentException("Unsupported settings version "
+                                + version);
+                    }
+                } else if ("tables".equals(name)) {
+                    readTables(reader, tables);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Malformed settings stream", e);
+        } catch (IllegalStateException e) {
+            // Unexpected token
+            throw new IllegalArgumentException("Malformed settings stream", e);
+        } finally {
+            IoUtils.closeQuietly(reader);
+        }
+
+        for (int i = 0; i < tables.size(); i++) {
+            final String tableName = tables.keyAt(i);
+            for (Map.Entry<String, String> entry : tables.valueAt(i).entrySet()) {
+                validateSettingValue(tableName, entry.getKey(), entry.getValue());
+            }
+        }
+
+        int count = 0;
+        for (int i = 0; i < tables.size(); i++) {
+            count += insertValuesForUser(userId, getTableUri(tables.keyAt(i)),
+                    tables.valueAt(i));
+        }
+
+        if (LOCAL_LOGV) Log.d(TAG, "Imported " + count + " values for user " + userId);
+        Bundle result = new Bundle();
+        result.putInt(SlimSettings.CALL_METHOD_COUNT_KEY, count);
+        return result;
+    }
+
+    private static void readTables(JsonReader reader,
+            ArrayMap<String, Map<String, String>> tables) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String tableName = reader.nextName();
+            if (!Arrays.asList(TABLES).contains(tableName)) {
+                throw new IllegalArgumentException("Unknown table " + tableName);
+            }
+            final ArrayMap<String, String> values = new ArrayMap<String, String>();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    values.put(name, null);
+                } else {
+                    values.put(name, reader.nextString());
+                }
+            }
+            reader.endObject();
+            tables.put(tableName, values);
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Keeps the cache statistics binder of the calling process.
+     * @param args The call arguments, holding the binder.
+     */
+    private void registerStats(Bundle args) {
+        final IBinder binder = (args == null)
+                ? null : args.getBinder(SlimSettings.CALL_METHOD_STATS_KEY);
+        if (binder == null) {
+            return;
+        }
+        // Anyone may register, so the name stats are looked up by must not come from the
+        // caller
+        final int pid = Binder.getCallingPid();
+        final String processName = getProcessName(pid);
+        if (processName == null) {
+            // Already gone
+            return;
+        }
+        mCacheStatsRegistry.register(pid, processName, binder);
+    }
+
+    /**
+     * @return The name of the running process with the given pid, or {@code null}.
+     */
+    private String getProcessName(int pid) {
+        final ActivityManager am =
+                (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
+        final List<ActivityManager.RunningAppProcessInfo> processes;
+        final long token = Binder.clearCallingIdentity();
+        try {
+            processes = am.getRunningAppProcesses();
         } finally {
-            if (cursor != null) {
-                cursor.close();
+            Binder.restoreCallingIdentity(token);
+        }
+        if (processes != null) {
+            for (ActivityManager.RunningAppProcessInfo process : processes) {
+                if (process.pid == pid) {
+                    return process.processName;
+                }
             }
         }
+        return null;
+    }
+
+    /**
+     * Looks up the cache statistics binder of a process.
+     * @param process The pid or name of the process, or {@code null} to list the processes.
+     * @return A {@link Bundle} holding the binder or the list of registered processes, or
+     *     {@code null} if the process did not register.
+     */
+    private Bundle lookupStats(String process) {
+        getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP,
+                "Permission denial: reading settings cache stats");
+
+        Bundle result = new Bundle();
+        if (process == null) {
+            result.putStringArray(SlimSettings.CALL_METHOD_PROCESSES_KEY,
+                    mCacheStatsRegistry.list());
+            return result;
+        }
+        final IBinder binder = mCacheStatsRegistry.find(process);
+        if (binder == null) {
+            return null;
+        }
+        result.putBinder(SlimSettings.CALL_METHOD_STATS_KEY, binder);
+        return result;
+    }
 
-        return NULL_SETTING;
+    /**
+     * Looks up the keys of a table that were written after a given table version.
+     * @param userId The id of the user to perform the lookup for.
+     * @param tableName The table to perform the lookup in.
+     * @param args The call arguments, holding the caller's cached table version.
+     * @return A {@link Bundle} holding the changed keys and the users removed since. The keys
+     *     are left out if the caller has to drop its whole cache.
+     */
+    private Bundle lookupChangedKeys(int userId, String tableName, Bundle args) {
+        final long version = (args == null)
+                ? -1 : args.getLong(SlimSettings.CALL_METHOD_GENERATION_KEY, -1);
+        final GenerationTracker tracker = mGenerationTrackers.get(tableName);
+
+        Bundle result = new Bundle();
+        result.putStringArray(SlimSettings.CALL_METHOD_KEYS_KEY,
+                tracker.getKeysChangedSince(getUserIdForTable(tableName, userId), version));
+        result.putIntArray(SlimSettings.CALL_METHOD_REMOVED_USERS_KEY,
+                tracker.getUsersRemovedSince(version));
+        return result;
     }
 
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
-        return queryForUser(UserHandle.getCallingUserId(), uri, projection, selection,
-                selectionArgs, sortOrder);
+        final long start = mProviderStats.begin();
+        try {
+            return queryForUser(UserHandle.getCallingUserId(), uri, projection, selection,
+                    selectionArgs, sortOrder);
+        } finally {
+            endStats(start, "query", uri, null);
+        }
     }
 
     /**
@@ -275,12 +1161,19 @@ public class SlimSettingsProvider extends ContentProvider {
         int code = sUriMatcher.match(uri);
         String tableName = getTableNameFromUriMatchCode(code);
 
-        SlimDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        SlimDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
         SQLiteDatabase db = dbHelper.getReadableDatabase();
 
+        // Cursors come from the database, so it must have every deferred write
+        mStore.flush(tableUserId, tableName);
+
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         queryBuilder.setTables(tableName);
 
+        // The cursor window is filled when the caller first reads it, so only the query
+        // itself is timed here
+        final long start = mProviderStats.beginSqlite();
         Cursor returnCursor;
         if (isItemUri(code)) {
             // The uri is looking for an element with a specific name
@@ -290,6 +1183,7 @@ public class SlimSettingsProvider extends ContentProvider {
             returnCursor = queryBuilder.query(db, projection, selection, selectionArgs, null,
                     null, sortOrder);
         }
+        mProviderStats.endSqlite(start);
 
         // the default Cursor interface does not support per-user observation
         try {
@@ -319,7 +1213,12 @@ public class SlimSettingsProvider extends ContentProvider {
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        return bulkInsertForUser(UserHandle.getCallingUserId(), uri, values);
+        final long start = mProviderStats.begin();
+        try {
+            return bulkInsertForUser(UserHandle.getCallingUserId(), uri, values);
+        } finally {
+            endStats(start, "bulkInsert", uri, null);
+        }
     }
 
     /**
@@ -344,32 +1243,59 @@ public class SlimSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        SlimDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        SlimDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
-        db.beginTransaction();
-        try {
-            for (ContentValues value : values) {
-                if (value == null) {
-                    continue;
-                }
-
-                long rowId = db.insert(tableName, null, value);
-
-                if (rowId >= 0) {
+        final String[] names = new String[values.length];
+        final ArrayMap<String, String> written = new ArrayMap<String, String>(values.length);
+
+        synchronized (mStore.getWriteLock(tableUserId, tableName)) {
+            if (mStore.isWriteBehind()) {
+                for (ContentValues value : values) {
+                    if (value == null) {
+                        continue;
+                    }
+                    names[numRowsAffected] = value.getAsString(Settings.NameValueTable.NAME);
+                    written.put(names[numRowsAffected],
+                            value.getAsString(Settings.NameValueTable.VALUE));
                     numRowsAffected++;
-                } else {
-                    return 0;
                 }
+                mStore.putDeferred(tableUserId, tableName, written);
+            } else {
+                final long start = mProviderStats.beginSqlite();
+                db.beginTransaction();
+                try {
+                    for (ContentValues value : values) {
+                        if (value == null) {
+                            continue;
+                        }
+
+                        long rowId = db.insert(tableName, null, value);
+
+                        if (rowId >= 0) {
+                            names[numRowsAffected] =
+                                    value.getAsString(Settings.NameValueTable.NAME);
+                            written.put(names[numRowsAffected],
+                                    value.getAsString(Settings.NameValueTable.VALUE));
+                            numRowsAffected++;
+                        } else {
+                            return 0;
+                        }
+                    }
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    mProviderStats.endSqlite(start);
+                }
+                mStore.put(tableUserId, tableName, written);
             }
-
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
         }
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
+            recordWriters(tableUserId, tableName, names, numRowsAffected);
+            notifyChange(uri, tableName, userId, Arrays.copyOf(names, numRowsAffected));
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
         }
 
@@ -378,7 +1304,13 @@ public class SlimSettingsProvider extends ContentProvider {
 
     @Override
     public Uri insert(Uri uri, ContentValues values) {
-        return insertForUser(UserHandle.getCallingUserId(), uri, values);
+        final long start = mProviderStats.begin();
+        try {
+            return insertForUser(UserHandle.getCallingUserId(), uri, values);
+        } finally {
+            endStats(start, "insert", uri, values == null
+                    ? null : values.getAsString(Settings.NameValueTable.NAME));
+        }
     }
 
     /**
@@ -401,33 +1333,171 @@ public class SlimSettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        SlimDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-
         // Validate value if inserting int System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
         final String value = values.getAsString(Settings.NameValueTable.VALUE);
-        if (SlimDatabaseHelper.TABLE_SYSTEM.equals(tableName)) {
-            validateSystemSettingNameValue(name, value);
-        } else if (SlimDatabaseHelper.TABLE_SECURE.equals(tableName)) {
-            validateSecureSettingValue(name, value);
-        }
+        validateSettingValue(tableName, name, value);
+
+        recordWriters(getUserIdForTable(tableName, userId), tableName, new String[] { name }, 1);
+        return writeForUser(userId, uri, values, Binder.getCallingUid());
+    }
+
+    /**
+     * Writes a single value for a specific user that was already checked and validated. The
+     * value is in memory, the database, the snapshot and the generation registry on return;
+     * if the {@link WriteCoalescer} holds its notification, the observers hear of it later.
+     * @param userId The user id to perform the insert for.
+     * @param uri The content:// URI of the table to write to.
+     * @param values The name/value pair to write.
+     * @param uid The calling uid.
+     * @return The uri of the written value, or {@code null} if it was not written.
+     */
+    private Uri writeForUser(int userId, Uri uri, ContentValues values, int uid) {
+        final String tableName = getTableNameFromUri(uri);
+        final String name = values.getAsString(Settings.NameValueTable.NAME);
+        final String value = values.getAsString(Settings.NameValueTable.VALUE);
+
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        SlimDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        boolean inserted;
+        synchronized (mStore.getWriteLock(tableUserId, tableName)) {
+            if (mStore.isWriteBehind()) {
+                mStore.putDeferred(tableUserId, tableName, Collections.singletonMap(name, value));
+                inserted = true;
+            } else {
+                final long start = mProviderStats.beginSqlite();
+                inserted = db.insert(tableName, null, values) > -1;
+                mProviderStats.endSqlite(start);
+                if (inserted) {
+                    mStore.put(tableUserId, tableName, name, value);
+                }
+            }
+        }
 
         Uri returnUri = null;
-        if (rowId > -1) {
+        if (inserted) {
             returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
-                    tableName);
+            publishChange(tableName, tableUserId, new String[] { name });
+            if (!mWriteCoalescer.hold(tableUserId, tableName, name, uid, isThrottled(uid))) {
+                notifyObservers(returnUri, tableName, userId);
+            }
+            if (LOCAL_LOGV) Log.d(TAG, "Inserted " + name + " into tableName: " + tableName);
         }
 
         return returnUri;
     }
 
+    /**
+     * Returns whether the writes of a caller count against its notification tokens. The
+     * system and SystemUI are trusted to write as fast as they need to.
+     */
+    private boolean isThrottled(int uid) {
+        final int appId = UserHandle.getAppId(uid);
+        return appId >= Process.FIRST_APPLICATION_UID && appId != mSystemUiAppId;
+    }
+
+    /**
+     * Writes several values for a specific user in a single transaction.
+     * @param userId The user id to perform the insert for.
+     * @param uri The content:// URI of the table to write to.
+     * @param args The call arguments, holding the name/value pairs to write.
+     * @return Number of rows written.
+     */
+    private int insertMultipleForUser(int userId, Uri uri, Bundle args) {
+        final Bundle pairs = (args == null)
+                ? null : args.getBundle(SlimSettings.CALL_METHOD_VALUES_KEY);
+        if (pairs == null || pairs.isEmpty()) {
+            return 0;
+        }
+
+        final ArrayMap<String, String> values = new ArrayMap<String, String>(pairs.size());
+        for (String name : pairs.keySet()) {
+            values.put(name, pairs.getString(name));
+        }
+        return insertValuesForUser(userId, uri, values);
+    }
+
+    /**
+     * Writes several values for a specific user in a single transaction. All values are
+     * validated before anything is written, and observers are notified once for the table.
+     * @param userId The user id to perform the insert for.
+     * @param uri The content:// URI of the table to write to.
+     * @param pairs The name/value pairs to write.
+     * @return Number of rows written.
+     */
+    private int insertValuesForUser(int userId, Uri uri, Map<String, String> pairs) {
+        if (pairs.isEmpty()) {
+            return 0;
+        }
+
+        String tableName = getTableNameFromUri(uri);
+        checkWritePermissions(tableName);
+
+        final String[] names = pairs.keySet().toArray(new String[pairs.size()]);
+        for (String name : names) {
+            validateSettingValue(tableName, name, pairs.get(name));
+        }
+
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        SlimDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        final ContentValues values = new ContentValues();
+        final ArrayMap<String, String> written = new ArrayMap<String, String>(names.length);
+        synchronized (mStore.getWriteLock(tableUserId, tableName)) {
+            if (mStore.isWriteBehind()) {
+                written.putAll(pairs);
+                mStore.putDeferred(tableUserId, tableName, written);
+            } else {
+                final long start = mProviderStats.beginSqlite();
+                db.beginTransaction();
+                try {
+                    for (String name : names) {
+                        values.put(Settings.NameValueTable.NAME, name);
+                        values.put(Settings.NameValueTable.VALUE, pairs.get(name));
+                        if (db.insert(tableName, null, values) < 0) {
+                            return 0;
+                        }
+                        written.put(name, pairs.get(name));
+                    }
+
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    mProviderStats.endSqlite(start);
+                }
+                mStore.put(tableUserId, tableName, written);
+            }
+        }
+
+        recordWriters(tableUserId, tableName, names, names.length);
+        notifyChange(uri, tableName, userId, names);
+        if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + names.length + " row(s) written");
+
+        return names.length;
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final long start = mProviderStats.begin();
+        try {
+            return deleteForUser(UserHandle.getCallingUserId(), uri, selection, selectionArgs);
+        } finally {
+            endStats(start, "delete", uri, null);
+        }
+    }
+
+    /**
+     * Performs a delete for a specific user.
+     * @param userId The user id to perform the delete for.
+     * @param uri The content:// URI of the table to delete from.
+     * @param selection The selection of the rows to delete; must not be empty.
+     * @param selectionArgs The arguments of the selection.
+     * @return Number of rows deleted.
+     */
+    private int deleteForUser(int userId, Uri uri, String selection, String[] selectionArgs) {
         if (uri == null) {
             throw new IllegalArgumentException("Uri cannot be null");
         }
@@ -440,15 +1510,24 @@ public class SlimSettingsProvider extends ContentProvider {
             String tableName = getTableNameFromUri(uri);
             checkWritePermissions(tableName);
 
-            int callingUserId = UserHandle.getCallingUserId();
-            SlimDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                    callingUserId));
+            final int tableUserId = getUserIdForTable(tableName, userId);
+            SlimDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
 
             SQLiteDatabase db = dbHelper.getWritableDatabase();
-            numRowsAffected = db.delete(tableName, selection, selectionArgs);
+            synchronized (mStore.getWriteLock(tableUserId, tableName)) {
+                // Deferred writes must not resurrect deleted rows
+                mStore.flush(tableUserId, tableName);
+                final long start = mProviderStats.beginSqlite();
+                numRowsAffected = db.delete(tableName, selection, selectionArgs);
+                mProviderStats.endSqlite(start);
+                if (numRowsAffected > 0) {
+                    // Any selection is allowed, so reload rather than guess
+                    mStore.invalidate(tableUserId, tableName);
+                }
+            }
 
             if (numRowsAffected > 0) {
-                notifyChange(uri, tableName, callingUserId);
+                notifyChange(uri, tableName, userId, null);
                 if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) deleted");
             }
         }
@@ -458,6 +1537,26 @@ public class SlimSettingsProvider extends ContentProvider {
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        final long start = mProviderStats.begin();
+        try {
+            return updateForUser(UserHandle.getCallingUserId(), uri, values, selection,
+                    selectionArgs);
+        } finally {
+            endStats(start, "update", uri, null);
+        }
+    }
+
+    /**
+     * Performs an update for a specific user.
+     * @param userId The user id to perform the update for.
+     * @param uri The content:// URI of the table to update.
+     * @param values The new column_name/value pairs.
+     * @param selection The selection of the rows to update.
+     * @param selectionArgs The arguments of the selection.
+     * @return Number of rows updated.
+     */
+    private int updateForUser(int userId, Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
         // NOTE: update() is never called by the front-end SlimSettings API, and updates that
         // wind up affecting rows in Secure that are globally shared will not have the
         // intended effect (the update will be invisible to the rest of the system).
@@ -477,27 +1576,65 @@ public class SlimSettingsProvider extends ContentProvider {
         // Validate value if updating System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
         final String value = values.getAsString(Settings.NameValueTable.VALUE);
-        if (SlimDatabaseHelper.TABLE_SYSTEM.equals(tableName)) {
-            validateSystemSettingNameValue(name, value);
-        } else if (SlimDatabaseHelper.TABLE_SECURE.equals(tableName)) {
-            validateSecureSettingValue(name, value);
-        }
+        validateSettingValue(tableName, name, value);
 
-        int callingUserId = UserHandle.getCallingUserId();
-        SlimDatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                callingUserId));
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        SlimDatabaseHelper dbHelper = getOrEstablishDatabase(tableUserId);
 
         SQLiteDatabase db = dbHelper.getWritableDatabase();
-        int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+        int numRowsAffected;
+        synchronized (mStore.getWriteLock(tableUserId, tableName)) {
+            mStore.flush(tableUserId, tableName);
+            final long start = mProviderStats.beginSqlite();
+            numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+            mProviderStats.endSqlite(start);
+            if (numRowsAffected > 0) {
+                mStore.invalidate(tableUserId, tableName);
+            }
+        }
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, callingUserId);
+            notifyChange(uri, tableName, userId, null);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) updated");
         }
 
         return numRowsAffected;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP,
+                "Permission denial: dumping SlimSettingsProvider");
+
+        pw.println("SlimSettingsProvider:");
+        mChangeNotifier.dump(pw);
+        mWriteCoalescer.dump(pw);
+        mProviderStats.dump(pw);
+        mProviderStats.start();
+        pw.flush();
+    }
+
+    /**
+     * Records a content provider request in the provider statistics.
+     * @param start The start time returned by {@link ProviderStats#begin}.
+     * @param operation The operation, which gets the table name appended.
+     * @param uri The uri of the request, possibly naming a key.
+     * @param key The key of the request if the uri does not name it, or {@code null}.
+     */
+    private void endStats(long start, String operation, Uri uri, String key) {
+        if (start == 0) {
+            // Not recording
+            return;
+        }
+        final List<String> segments = (uri == null) ? null : uri.getPathSegments();
+        final String table = (segments == null || segments.isEmpty()) ? null : segments.get(0);
+        if (key == null && segments != null && segments.size() > 1) {
+            key = segments.get(1);
+        }
+        mProviderStats.end(start, table == null ? operation : operation + "_" + table, table,
+                key, Binder.getCallingUid());
+    }
+
     // endregion Content Provider Methods
 
     /**
@@ -515,52 +1652,72 @@ public class SlimSettingsProvider extends ContentProvider {
             }
         }
 
-        long oldId = Binder.clearCallingIdentity();
-        try {
-            SlimDatabaseHelper dbHelper;
-            synchronized (this) {
-                dbHelper = mDbHelpers.get(callingUser);
-            }
-            if (null == dbHelper) {
-                establishDbTracking(callingUser);
-                synchronized (this) {
-                    dbHelper = mDbHelpers.get(callingUser);
+        DatabaseHolder holder;
+        synchronized (mDbHelpers) {
+            holder = mDbHelpers.get(callingUser);
+            if (holder == null) {
+                if (LOCAL_LOGV) {
+                    Log.i(TAG, "Installing new slim settings db helper for user " + callingUser);
                 }
+                holder = new DatabaseHolder(callingUser);
+                mDbHelpers.append(callingUser, holder);
             }
-            return dbHelper;
+        }
+
+        long oldId = Binder.clearCallingIdentity();
+        try {
+            return holder.get();
         } finally {
             Binder.restoreCallingIdentity(oldId);
         }
     }
 
     /**
-     * Check if a {@link SlimDatabaseHelper} exists for a user and if it doesn't, a new helper is
-     * created and added to the list of tracked database helpers
+     * Opens, and if needed creates, the database of a user on a background thread, so the
+     * first access after the user starts doesn't have to.
      * @param userId
      */
-    private void establishDbTracking(int userId) {
-        SlimDatabaseHelper dbHelper;
-
-        synchronized (this) {
-            dbHelper = mDbHelpers.get(userId);
-            if (LOCAL_LOGV) {
-                Log.i(TAG, "Checking slim settings db helper for user " + userId);
-            }
-            if (dbHelper == null) {
-                if (LOCAL_LOGV) {
-                    Log.i(TAG, "Installing new slim settings db helper for user " + userId);
+    private void preOpenDatabase(final int userId) {
+        BackgroundThread.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    getOrEstablishDatabase(userId);
+                } catch (SQLiteException e) {
+                    // The first access will try again and report it to the caller
+                    Log.w(TAG, "Unable to open slim settings db for user " + userId, e);
                 }
-                dbHelper = new SlimDatabaseHelper(getContext(), userId);
-                mDbHelpers.append(userId, dbHelper);
             }
+        });
+    }
+
+    /**
+     * Creates and opens the {@link SlimDatabaseHelper} of one user the first time it is needed.
+     * Every user has a holder of their own, so initializing one user's database never holds up
+     * lookups for another, and the mDbHelpers lock is never held while a database opens.
+     */
+    private final class DatabaseHolder {
+        private final int mUserId;
+        private volatile SlimDatabaseHelper mHelper;
+
+        DatabaseHolder(int userId) {
+            mUserId = userId;
         }
 
-        // Initialization of the db *outside* the locks.  It's possible that racing
-        // threads might wind up here, the second having read the cache entries
-        // written by the first, but that's benign: the SQLite helper implementation
-        // manages concurrency itself, and it's important that we not run the db
-        // initialization with any of our own locks held, so we're fine.
-        dbHelper.getWritableDatabase();
+        SlimDatabaseHelper get() {
+            SlimDatabaseHelper helper = mHelper;
+            if (helper == null) {
+                synchronized (this) {
+                    helper = mHelper;
+                    if (helper == null) {
+                        helper = new SlimDatabaseHelper(getContext(), mUserId);
+                        helper.getWritableDatabase();
+                        mHelper = helper;
+                    }
+                }
+            }
+            return helper;
+        }
     }
 
     /**
@@ -633,6 +1790,22 @@ public class SlimSettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Returns the content:// uri of a table
+     * @param tableName
+     * @return Table uri
+     */
+    private Uri getTableUri(String tableName) {
+        if (SlimDatabaseHelper.TABLE_SYSTEM.equals(tableName)) {
+            return SlimSettings.System.CONTENT_URI;
+        } else if (SlimDatabaseHelper.TABLE_SECURE.equals(tableName)) {
+            return SlimSettings.Secure.CONTENT_URI;
+        } else if (SlimDatabaseHelper.TABLE_GLOBAL.equals(tableName)) {
+            return SlimSettings.Global.CONTENT_URI;
+        }
+        throw new IllegalArgumentException("Invalid table: " + tableName);
+    }
+
     /**
      * If the table is Global, the owner's user id is returned. Otherwise, the original user id
      * is returned.
@@ -647,39 +1820,51 @@ public class SlimSettingsProvider extends ContentProvider {
 
     /**
      * Modify setting version for an updated table before notifying of change. The
-     * {@link SlimSettings} class uses these to provide client-side caches.
+     * {@link SlimSettings} class uses these to provide client-side caches. Observers are
+     * notified through the {@link ChangeNotifier}, which batches the changes of a few ms.
      * @param uri to send notifications for
      * @param userId
+     * @param names The changed keys, or {@code null} if they are not known
      */
-    private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
-        final boolean isGlobal = tableName.equals(SlimDatabaseHelper.TABLE_GLOBAL);
-        if (tableName.equals(SlimDatabaseHelper.TABLE_SYSTEM)) {
-            property = SlimSettings.System.SYS_PROP_SLIM_SETTING_VERSION;
-        } else if (tableName.equals(SlimDatabaseHelper.TABLE_SECURE)) {
-            property = SlimSettings.Secure.SYS_PROP_SLIM_SETTING_VERSION;
-        } else if (isGlobal) {
-            property = SlimSettings.Global.SYS_PROP_SLIM_SETTING_VERSION;
-        }
+    private void notifyChange(Uri uri, String tableName, int userId, String[] names) {
+        publishChange(tableName, getUserIdForTable(tableName, userId), names);
+        notifyObservers(uri, tableName, userId);
+    }
 
-        if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+    /**
+     * Makes a change visible to clients reading the snapshot or caching by version.
+     * @param tableName The table that changed.
+     * @param tableUserId The owner of the table.
+     * @param names The changed keys, or {@code null} if they are not known
+     */
+    private void publishChange(String tableName, int tableUserId, String[] names) {
+        // The snapshot has to be current before clients see the new version
+        updateSnapshot(tableUserId, tableName);
+
+        final GenerationTracker tracker = mGenerationTrackers.get(tableName);
+        if (tracker != null) {
+            tracker.onKeysChanged(tableUserId, names);
         }
+    }
 
+    private void notifyObservers(Uri uri, String tableName, int userId) {
+        // Values and versions are current already; only the observers are batched
+        final boolean isGlobal = tableName.equals(SlimDatabaseHelper.TABLE_GLOBAL);
         final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
-        final long oldId = Binder.clearCallingIdentity();
-        try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
-        } finally {
-            Binder.restoreCallingIdentity(oldId);
+        mChangeNotifier.notifyChange(uri, getTableUri(tableName), notifyTarget);
+    }
+
+    private void validateSettingValue(String tableName, String name, String value) {
+        if (SlimDatabaseHelper.TABLE_SYSTEM.equals(tableName)) {
+            validateSystemSettingNameValue(name, value);
+        } else {
+            validateSecureSettingValue(tableName, name, value);
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
     }
 
+    // Same schema the client checks before calling us
     private void validateSystemSettingNameValue(String name, String value) {
-        SlimSettings.Validator validator = SlimSettings.System.VALIDATORS.get(name);
+        SettingsSchema.Type validator = SettingsSchema.SYSTEM.get(name);
         if (validator == null) {
             return; // TEMP
             //throw new IllegalArgumentException("Invalid setting: " + name);
@@ -691,8 +1876,9 @@ public class SlimSettingsProvider extends ContentProvider {
         }
     }
 
-    private void validateSecureSettingValue(String name, String value) {
-        SlimSettings.Validator validator = SlimSettings.Secure.VALIDATORS.get(name);
+    private void validateSecureSettingValue(String tableName, String name, String value) {
+        SettingsSchema.Type validator = SlimDatabaseHelper.TABLE_GLOBAL.equals(tableName)
+                ? SettingsSchema.GLOBAL.get(name) : SettingsSchema.SECURE.get(name);
 
         // Not all secure settings have validators, but if a validator exists, the validate method
         // should return true
@@ -701,6 +1887,4 @@ public class SlimSettingsProvider extends ContentProvider {
                     + " for setting: " + name);
         }
     }
-
-    // TODO Add caching
 }
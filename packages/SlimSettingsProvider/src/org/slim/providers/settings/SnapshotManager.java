@@ -0,0 +1,210 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import android.os.ParcelFileDescriptor;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import libcore.io.IoUtils;
+
+import slim.provider.SettingsSnapshot;
+
+/**
+ * Owns the memory mapped {@link SettingsSnapshot}s published for each user and table.
+ * Snapshots are only created once a client asks for one, and are then kept up to date on
+ * every write. All methods must be called with the manager locked, so that snapshot updates
+ * are published in the order the writes happened.
+ */
+final class SnapshotManager {
+    private static final String TAG = "SnapshotManager";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final String FILE_PREFIX = "snapshot_";
+
+    private static final class Snapshot {
+        SettingsSnapshot snapshot;
+        // Handed out to every client; binder dups it on the way out
+        ParcelFileDescriptor readOnlyFd;
+        File file;
+    }
+
+    private final File mDir;
+
+    // userId -> (table -> snapshot)
+    private final SparseArray<ArrayMap<String, Snapshot>> mSnapshots =
+            new SparseArray<ArrayMap<String, Snapshot>>();
+
+    SnapshotManager(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * @return Whether a snapshot was published for the given user and table.
+     */
+    boolean isPublished(int userId, String tableName) {
+        final ArrayMap<String, Snapshot> tables = mSnapshots.get(userId);
+        return tables != null && tables.containsKey(tableName);
+    }
+
+    /**
+     * Returns a read-only descriptor of the snapshot for the given user and table, or
+     * {@code null} if none was published.
+     */
+    ParcelFileDescriptor getReadOnlyFd(int userId, String tableName) {
+        final ArrayMap<String, Snapshot> tables = mSnapshots.get(userId);
+        final Snapshot snapshot = tables == null ? null : tables.get(tableName);
+        return snapshot == null ? null : snapshot.readOnlyFd;
+    }
+
+    /**
+     * Publishes the contents of a table, creating the snapshot if needed.
+     * @param userId The owner of the table.
+     * @param tableName The name of the table.
+     * @param values All name/value pairs of the table.
+     * @return Whether the snapshot is usable.
+     */
+    boolean publish(int userId, String tableName, Map<String, String> values) {
+        ArrayMap<String, Snapshot> tables = mSnapshots.get(userId);
+        if (tables == null) {
+            tables = new ArrayMap<String, Snapshot>();
+            mSnapshots.put(userId, tables);
+        }
+
+        Snapshot snapshot = tables.get(tableName);
+        if (snapshot == null) {
+            snapshot = createSnapshot(userId, tableName);
+            if (snapshot == null) {
+                return false;
+            }
+            tables.put(tableName, snapshot);
+        }
+
+        final boolean fits = snapshot.snapshot.publish(values);
+        if (!fits) {
+            Log.w(TAG, "Snapshot of " + tableName + " for user " + userId + " is full");
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "Published " + values.size() + " values of " + tableName
+                + " for user " + userId);
+        return fits;
+    }
+
+    private Snapshot createSnapshot(int userId, String tableName) {
+        // Reuse an existing file so clients that mapped it before a provider restart
+        // keep seeing updates.
+        final File file = new File(mDir, FILE_PREFIX + userId + "_" + tableName);
+        RandomAccessFile raf = null;
+        try {
+            mDir.mkdirs();
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(SettingsSnapshot.DEFAULT_SIZE);
+
+            Snapshot snapshot = new Snapshot();
+            snapshot.snapshot = SettingsSnapshot.map(raf.getChannel(), true,
+                    SettingsSnapshot.DEFAULT_SIZE);
+            snapshot.readOnlyFd = ParcelFileDescriptor.open(file,
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+            snapshot.file = file;
+            return snapshot;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to create snapshot " + file, e);
+            return null;
+        } finally {
+            // The mapping stays valid after the file is closed
+            IoUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Marks every snapshot left by a previous run of the provider invalid. Clients that
+     * mapped one before the restart would otherwise keep reading values this run never
+     * published. Must be called before any request is served.
+     * @return userId -> tables whose snapshot was invalidated, to be published again.
+     */
+    SparseArray<ArraySet<String>> invalidateExisting() {
+        final SparseArray<ArraySet<String>> invalidated = new SparseArray<ArraySet<String>>();
+        final File[] files = mDir.listFiles();
+        if (files == null) {
+            return invalidated;
+        }
+        for (File file : files) {
+            final String name = file.getName();
+            final int separator = name.indexOf('_', FILE_PREFIX.length());
+            if (!name.startsWith(FILE_PREFIX) || separator < 0) {
+                continue;
+            }
+            final int userId;
+            try {
+                userId = Integer.parseInt(name.substring(FILE_PREFIX.length(), separator));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                if (raf.length() < SettingsSnapshot.DEFAULT_SIZE) {
+                    // Not a complete snapshot, so no client could map it
+                    continue;
+                }
+                SettingsSnapshot.map(raf.getChannel(), true, SettingsSnapshot.DEFAULT_SIZE)
+                        .invalidate();
+            } catch (IOException e) {
+                // New clients must not map it either
+                Log.w(TAG, "Unable to invalidate snapshot " + file, e);
+                file.delete();
+                continue;
+            } finally {
+                IoUtils.closeQuietly(raf);
+            }
+
+            ArraySet<String> tables = invalidated.get(userId);
+            if (tables == null) {
+                tables = new ArraySet<String>();
+                invalidated.put(userId, tables);
+            }
+            tables.add(name.substring(separator + 1));
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "Invalidated snapshots of " + invalidated.size()
+                + " user(s)");
+        return invalidated;
+    }
+
+    /**
+     * Drops and deletes all snapshots of a removed user.
+     * @param userId The id of the removed user.
+     */
+    void onUserRemoved(int userId) {
+        final ArrayMap<String, Snapshot> tables = mSnapshots.get(userId);
+        if (tables == null) {
+            return;
+        }
+        for (int i = 0; i < tables.size(); i++) {
+            final Snapshot snapshot = tables.valueAt(i);
+            IoUtils.closeQuietly(snapshot.readOnlyFd);
+            snapshot.file.delete();
+        }
+        mSnapshots.remove(userId);
+    }
+}
@@ -0,0 +1,351 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Holds back the observer notifications of single-key writes that come in too fast, such as
+ * those of a seek bar being dragged. The values themselves are written like any other, to
+ * memory and the database, so a held write is never lost; only the observers, which would
+ * otherwise reload the key once per write, hear about it later.
+ * <p>
+ * A caller writing a key less than a window after its last notified write of that key has
+ * the notification held until the window closes, and its further writes of the key are
+ * coalesced into the held one. Windows are kept per caller, so one caller dragging a seek bar
+ * never delays the writes of another. Independently, each throttled calling uid has a token
+ * bucket of notifications; a caller that ran out of tokens has its notifications held until
+ * it has some again. Thread-safe.
+ */
+final class WriteCoalescer {
+    private static final String TAG = "WriteCoalescer";
+    private static final boolean LOCAL_LOGV = false;
+
+    // Keys written recently enough to be tracked before stale ones are dropped
+    private static final int MAX_TRACKED_KEYS = 256;
+
+    /**
+     * Sends the held notifications.
+     */
+    interface Sender {
+        /**
+         * Notifies the observers of keys written some time ago.
+         */
+        void send(int userId, String tableName, ArrayList<String> names);
+    }
+
+    private static final class Entry {
+        final int uid;
+        final int userId;
+        final String tableName;
+        final String name;
+
+        // Uptime of the last write that was notified
+        long lastNotified;
+
+        // Whether a notification is held, and whether it counts against the caller's tokens
+        boolean held;
+        boolean throttled;
+        long due;
+
+        Entry(int uid, int userId, String tableName, String name) {
+            this.uid = uid;
+            this.userId = userId;
+            this.tableName = tableName;
+            this.name = name;
+        }
+    }
+
+    private static final class Bucket {
+        double tokens;
+        long lastRefill;
+    }
+
+    private final Sender mSender;
+    private final Handler mHandler;
+    private final long mWindowMillis;
+    private final double mTokensPerSecond;
+    private final int mBurst;
+
+    // Guarded by 'this'. "uid/userId/table/name" -> entry
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<String, Entry>();
+    // Guarded by 'this'. uid -> notification tokens
+    private final SparseArray<Bucket> mBuckets = new SparseArray<Bucket>();
+    // Guarded by 'this'; 0 if nothing is scheduled
+    private long mScheduledTime;
+    // Guarded by 'this'. Entries holding a notification
+    private int mPendingCount;
+
+    // Guarded by 'this'
+    private long mOffered;
+    private long mHeld;
+    private long mCoalesced;
+    private long mThrottled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush(false);
+        }
+    };
+
+    /**
+     * @param sender Sends the held notifications.
+     * @param handler The handler to send the held notifications on.
+     * @param windowMillis How long after a notified write further writes of the same key by
+     *     the same caller are held; 0 disables coalescing.
+     * @param writesPerSecond How many writes a throttled caller may have notified per second
+     *     in the long run; 0 disables throttling.
+     * @param burst How many writes a throttled caller may have notified in a row.
+     */
+    WriteCoalescer(Sender sender, Handler handler, long windowMillis, int writesPerSecond,
+            int burst) {
+        mSender = sender;
+        mHandler = handler;
+        mWindowMillis = Math.max(0, windowMillis);
+        mTokensPerSecond = Math.max(0, writesPerSecond);
+        mBurst = Math.max(1, burst);
+    }
+
+    /**
+     * Decides whether the notification of a value just written has to be held.
+     * @param userId The owner of the table.
+     * @param tableName The table the value was written to.
+     * @param name The key written.
+     * @param uid The calling uid.
+     * @param throttled Whether the caller's writes count against its token bucket.
+     * @return Whether the notification was held, in which case it is sent later. If not, the
+     *     caller has to notify the observers itself.
+     */
+    boolean hold(int userId, String tableName, String name, int uid, boolean throttled) {
+        if (mWindowMillis == 0 && mTokensPerSecond == 0) {
+            return false;
+        }
+
+        final String key = uid + "/" + userId + "/" + tableName + "/" + name;
+        final long now = SystemClock.uptimeMillis();
+        synchronized (this) {
+            mOffered++;
+
+            Entry entry = mEntries.get(key);
+            if (entry != null && entry.held) {
+                // The held notification covers this write too
+                entry.throttled = throttled;
+                mCoalesced++;
+                return true;
+            }
+
+            final boolean recent = entry != null && now - entry.lastNotified < mWindowMillis;
+            if (entry == null) {
+                trimEntries(now);
+                entry = new Entry(uid, userId, tableName, name);
+                mEntries.put(key, entry);
+            }
+            if (!recent && (!throttled || takeToken(uid, now))) {
+                entry.lastNotified = now;
+                return false;
+            }
+
+            entry.held = true;
+            entry.throttled = throttled;
+            mPendingCount++;
+            if (recent) {
+                entry.due = entry.lastNotified + mWindowMillis;
+            } else {
+                entry.due = now + getMillisUntilToken(uid, now);
+                mThrottled++;
+            }
+            mHeld++;
+            schedule(entry.due);
+            if (LOCAL_LOGV) Log.v(TAG, "Holding " + key + " for " + (entry.due - now) + "ms");
+            return true;
+        }
+    }
+
+    // Called with 'this' held
+    private boolean takeToken(int uid, long now) {
+        if (mTokensPerSecond == 0) {
+            return true;
+        }
+        final Bucket bucket = refill(uid, now);
+        if (bucket.tokens < 1) {
+            return false;
+        }
+        bucket.tokens--;
+        return true;
+    }
+
+    // Called with 'this' held
+    private long getMillisUntilToken(int uid, long now) {
+        if (mTokensPerSecond == 0) {
+            return 0;
+        }
+        final Bucket bucket = refill(uid, now);
+        return Math.max(1, (long) Math.ceil((1 - bucket.tokens) * 1000 / mTokensPerSecond));
+    }
+
+    // Called with 'this' held
+    private Bucket refill(int uid, long now) {
+        Bucket bucket = mBuckets.get(uid);
+        if (bucket == null) {
+            bucket = new Bucket();
+            bucket.tokens = mBurst;
+            bucket.lastRefill = now;
+            mBuckets.put(uid, bucket);
+            return bucket;
+        }
+        bucket.tokens = Math.min(mBurst,
+                bucket.tokens + (now - bucket.lastRefill) * mTokensPerSecond / 1000);
+        bucket.lastRefill = now;
+        return bucket;
+    }
+
+    // Called with 'this' held
+    private void trimEntries(long now) {
+        if (mEntries.size() < MAX_TRACKED_KEYS) {
+            return;
+        }
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            final Entry entry = mEntries.valueAt(i);
+            if (!entry.held && now - entry.lastNotified >= mWindowMillis) {
+                mEntries.removeAt(i);
+            }
+        }
+    }
+
+    // Called with 'this' held
+    private void schedule(long time) {
+        if (mScheduledTime != 0 && mScheduledTime <= time) {
+            return;
+        }
+        mScheduledTime = time;
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postAtTime(mFlushRunnable, time);
+    }
+
+    /**
+     * Sends the held notifications, on the calling thread.
+     * @param all Whether to send all of them, rather than only those that are due and whose
+     *     caller has tokens left.
+     */
+    void flush(boolean all) {
+        // One entry per table, and the keys to notify of it
+        final ArrayList<Entry> tables = new ArrayList<Entry>();
+        final ArrayList<ArrayList<String>> names = new ArrayList<ArrayList<String>>();
+        final long now = SystemClock.uptimeMillis();
+        synchronized (this) {
+            if (mPendingCount == 0) {
+                return;
+            }
+            mHandler.removeCallbacks(mFlushRunnable);
+            mScheduledTime = 0;
+
+            long next = Long.MAX_VALUE;
+            for (int i = 0; i < mEntries.size(); i++) {
+                final Entry entry = mEntries.valueAt(i);
+                if (!entry.held) {
+                    continue;
+                }
+                if (!all && entry.due > now) {
+                    next = Math.min(next, entry.due);
+                    continue;
+                }
+                if (!all && entry.throttled && !takeToken(entry.uid, now)) {
+                    entry.due = now + getMillisUntilToken(entry.uid, now);
+                    next = Math.min(next, entry.due);
+                    continue;
+                }
+                entry.held = false;
+                mPendingCount--;
+                // Writes within the next window are held again
+                entry.lastNotified = now;
+                getNames(tables, names, entry).add(entry.name);
+            }
+            if (next != Long.MAX_VALUE) {
+                schedule(next);
+            }
+        }
+
+        // Not under our lock: observers may call back into the provider
+        for (int i = 0; i < tables.size(); i++) {
+            final Entry table = tables.get(i);
+            mSender.send(table.userId, table.tableName, names.get(i));
+            if (LOCAL_LOGV) Log.v(TAG, "Sent " + names.get(i).size() + " held notification(s) of "
+                    + table.tableName + " for user " + table.userId);
+        }
+    }
+
+    private static ArrayList<String> getNames(ArrayList<Entry> tables,
+            ArrayList<ArrayList<String>> names, Entry entry) {
+        for (int i = 0; i < tables.size(); i++) {
+            final Entry table = tables.get(i);
+            if (table.userId == entry.userId && table.tableName.equals(entry.tableName)) {
+                final ArrayList<String> tableNames = names.get(i);
+                if (!tableNames.contains(entry.name)) {
+                    return tableNames;
+                }
+                // Held by another caller as well; one notification will do
+                return new ArrayList<String>();
+            }
+        }
+        tables.add(entry);
+        final ArrayList<String> tableNames = new ArrayList<String>();
+        names.add(tableNames);
+        return tableNames;
+    }
+
+    /**
+     * Drops the held notifications of a removed user.
+     */
+    synchronized void onUserRemoved(int userId) {
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            final Entry entry = mEntries.valueAt(i);
+            if (entry.userId == userId) {
+                if (entry.held) {
+                    mPendingCount--;
+                }
+                mEntries.removeAt(i);
+            }
+        }
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.print("  writes: window=");
+        pw.print(mWindowMillis);
+        pw.print("ms rate=");
+        pw.print((long) mTokensPerSecond);
+        pw.print("/s burst=");
+        pw.print(mBurst);
+        pw.print(" offered=");
+        pw.print(mOffered);
+        pw.print(" held=");
+        pw.print(mHeld);
+        pw.print(" (throttled=");
+        pw.print(mThrottled);
+        pw.print(") coalesced=");
+        pw.print(mCoalesced);
+        pw.print(" pending=");
+        pw.println(mPendingCount);
+    }
+}
@@ -0,0 +1,34 @@
+# Copyright (C) 2017 SlimRoms Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH := $(call my-dir)
+
+# Tests and benchmarks of the provider's own classes, which depend on the framework.
+# Run with:
+#   adb shell am instrument -w \
+#       org.slim.providers.settings.tests/android.support.test.runner.AndroidJUnitRunner
+include $(CLEAR_VARS)
+
+LOCAL_MODULE_TAGS := tests
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+
+LOCAL_JAVA_LIBRARIES := android.test.runner org.slim.framework
+LOCAL_STATIC_JAVA_LIBRARIES := android-support-test
+
+LOCAL_PACKAGE_NAME := SlimSettingsProviderTests
+LOCAL_INSTRUMENTATION_FOR := SlimSettingsProvider
+LOCAL_CERTIFICATE := platform
+
+include $(BUILD_PACKAGE)
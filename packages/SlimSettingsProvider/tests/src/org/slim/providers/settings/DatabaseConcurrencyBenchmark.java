@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.Settings;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Measures query and insert latency on a database laid out like the provider's, with
+ * several threads reading single keys while another one writes, once in WAL mode as
+ * {@link SlimDatabaseHelper} opens it and once with the default rollback journal it had
+ * before. Results go to the log. Run with:
+ * <pre>
+ *   adb shell am instrument -w \
+ *       -e class org.slim.providers.settings.DatabaseConcurrencyBenchmark \
+ *       org.slim.providers.settings.tests/android.support.test.runner.AndroidJUnitRunner
+ *   adb logcat -d -s DatabaseConcurrencyBenchmark
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class DatabaseConcurrencyBenchmark {
+    private static final String TAG = "DatabaseConcurrencyBenchmark";
+
+    private static final String TABLE = SlimDatabaseHelper.TABLE_SYSTEM;
+    private static final String[] SELECT_VALUE = new String[] { Settings.NameValueTable.VALUE };
+    private static final String NAME_EQ_PLACEHOLDER = Settings.NameValueTable.NAME + " = ?";
+
+    private static final int KEY_COUNT = 80;
+    private static final int READER_COUNT = 3;
+    private static final int READS_PER_READER = 5000;
+    private static final int WRITES = 500;
+
+    private final String[] mKeys = new String[KEY_COUNT];
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mFile = new File(context.getCacheDir(), "database_concurrency_benchmark.db");
+        for (int i = 0; i < KEY_COUNT; i++) {
+            mKeys[i] = "slim_setting_" + i;
+        }
+    }
+
+    @After
+    public void tearDown() {
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @Test
+    public void testMixedReadsAndWrites() throws InterruptedException {
+        Log.i(TAG, READER_COUNT + " readers x " + READS_PER_READER + " queries, 1 writer x "
+                + WRITES + " inserts");
+        Log.i(TAG, String.format("%-10s %-8s %10s %10s %10s", "journal", "op", "p50 us",
+                "p99 us", "max us"));
+        // The first pass warms up and is not reported
+        for (int pass = 0; pass < 2; pass++) {
+            run(false, pass > 0);
+            run(true, pass > 0);
+        }
+    }
+
+    private void run(boolean wal, boolean report) throws InterruptedException {
+        SQLiteDatabase.deleteDatabase(mFile);
+        final SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        try {
+            if (wal) {
+                db.enableWriteAheadLogging();
+            }
+            db.execSQL("CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + "name TEXT UNIQUE ON CONFLICT REPLACE,value TEXT);");
+            db.execSQL("CREATE INDEX " + TABLE + "Index1 ON " + TABLE + " (name);");
+            for (int i = 0; i < KEY_COUNT; i++) {
+                insert(db, mKeys[i], Integer.toString(i));
+            }
+
+            final long[][] reads = new long[READER_COUNT][READS_PER_READER];
+            final long[] writes = new long[WRITES];
+            final Thread[] threads = new Thread[READER_COUNT + 1];
+            for (int t = 0; t < READER_COUNT; t++) {
+                final long[] latencies = reads[t];
+                final int reader = t;
+                threads[t] = new Thread("reader " + t) {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < latencies.length; i++) {
+                            final long start = System.nanoTime();
+                            query(db, mKeys[(reader + i) % mKeys.length]);
+                            latencies[i] = System.nanoTime() - start;
+                        }
+                    }
+                };
+            }
+            threads[READER_COUNT] = new Thread("writer") {
+                @Override
+                public void run() {
+                    for (int i = 0; i < writes.length; i++) {
+                        final long start = System.nanoTime();
+                        insert(db, mKeys[i % mKeys.length], Integer.toString(i));
+                        writes[i] = System.nanoTime() - start;
+                    }
+                }
+            };
+
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            if (report) {
+                final long[] allReads = new long[READER_COUNT * READS_PER_READER];
+                for (int t = 0; t < READER_COUNT; t++) {
+                    System.arraycopy(reads[t], 0, allReads, t * READS_PER_READER,
+                            READS_PER_READER);
+                }
+                print(wal ? "wal" : "rollback", "query", allReads);
+                print(wal ? "wal" : "rollback", "insert", writes);
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    private static String query(SQLiteDatabase db, String name) {
+        final Cursor cursor = db.query(TABLE, SELECT_VALUE, NAME_EQ_PLACEHOLDER,
+                new String[] { name }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void insert(SQLiteDatabase db, String name, String value) {
+        final ContentValues values = new ContentValues(2);
+        values.put(Settings.NameValueTable.NAME, name);
+        values.put(Settings.NameValueTable.VALUE, value);
+        db.insert(TABLE, null, values);
+    }
+
+    private static void print(String journal, String op, long[] latencies) {
+        Arrays.sort(latencies);
+        Log.i(TAG, String.format("%-10s %-8s %10.1f %10.1f %10.1f", journal, op,
+                percentile(latencies, 50) / 1000.0, percentile(latencies, 99) / 1000.0,
+                latencies[latencies.length - 1] / 1000.0));
+    }
+
+    /**
+     * @return The latency at the given percentile, by the nearest rank.
+     */
+    private static long percentile(long[] sorted, int percent) {
+        final int rank = (int) Math.ceil(sorted.length * percent / 100.0);
+        return sorted[Math.max(0, rank - 1)];
+    }
+}
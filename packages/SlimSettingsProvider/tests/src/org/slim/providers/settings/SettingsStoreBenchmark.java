@@ -0,0 +1,207 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.provider.Settings;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import slim.provider.SlimSettings;
+
+/**
+ * Measures the throughput of single-key GETs from concurrent readers, answered the way the
+ * provider did before it kept its tables in memory, with a query per GET, and from a
+ * {@link SettingsStore}. Both read a database laid out like the provider's, in WAL mode.
+ * Results go to the log. Run with:
+ * <pre>
+ *   adb shell am instrument -w -e class org.slim.providers.settings.SettingsStoreBenchmark \
+ *       org.slim.providers.settings.tests/android.support.test.runner.AndroidJUnitRunner
+ *   adb logcat -d -s SettingsStoreBenchmark
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+public class SettingsStoreBenchmark {
+    private static final String TAG = "SettingsStoreBenchmark";
+
+    private static final int USER = 0;
+    private static final String TABLE = SlimDatabaseHelper.TABLE_SYSTEM;
+    private static final String[] SELECT_VALUE = new String[] { Settings.NameValueTable.VALUE };
+    private static final String[] SELECT_ALL = new String[] {
+            Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE };
+
+    private static final int KEY_COUNT = 80;
+    private static final int[] THREAD_COUNTS = { 1, 2, 4 };
+    private static final int ROUNDS = 3;
+    private static final long ROUND_MILLIS = 1000;
+
+    private interface Get {
+        String get(String name);
+    }
+
+    private final String[] mKeys = new String[KEY_COUNT];
+    private File mFile;
+    private SQLiteDatabase mDb;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mResolver = context.getContentResolver();
+        mFile = new File(context.getCacheDir(), "settings_store_benchmark.db");
+        SQLiteDatabase.deleteDatabase(mFile);
+        mDb = SQLiteDatabase.openOrCreateDatabase(mFile, null);
+        mDb.enableWriteAheadLogging();
+        mDb.execSQL("CREATE TABLE " + TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + "name TEXT UNIQUE ON CONFLICT REPLACE,value TEXT);");
+        mDb.execSQL("CREATE INDEX " + TABLE + "Index1 ON " + TABLE + " (name);");
+
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < KEY_COUNT; i++) {
+                mKeys[i] = "slim_setting_" + i;
+                mDb.execSQL("INSERT INTO " + TABLE + " (name, value) VALUES (?, ?);",
+                        new Object[] { mKeys[i], Integer.toString(i) });
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mDb.close();
+        SQLiteDatabase.deleteDatabase(mFile);
+    }
+
+    @Test
+    public void testConcurrentGets() throws InterruptedException {
+        final Get query = new Get() {
+            @Override
+            public String get(String name) {
+                // What lookupSingleValue() did for every GET
+                final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+                qb.setTables(TABLE);
+                final Cursor cursor = qb.query(mDb, SELECT_VALUE,
+                        Settings.NameValueTable.NAME + " = ?", new String[] { name },
+                        null, null, null);
+                try {
+                    cursor.setNotificationUri(mResolver, SlimSettings.System.CONTENT_URI);
+                    return cursor.getCount() == 1 && cursor.moveToFirst()
+                            ? cursor.getString(0) : null;
+                } finally {
+                    cursor.close();
+                }
+            }
+        };
+
+        final SettingsStore store = new SettingsStore(new SettingsStore.Loader() {
+            @Override
+            public Map<String, String> load(int userId, String tableName) {
+                final ArrayMap<String, String> values = new ArrayMap<String, String>();
+                final Cursor cursor = mDb.query(tableName, SELECT_ALL, null, null, null,
+                        null, null);
+                try {
+                    while (cursor.moveToNext()) {
+                        values.put(cursor.getString(0), cursor.getString(1));
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return values;
+            }
+        });
+        final Get memory = new Get() {
+            @Override
+            public String get(String name) {
+                return store.getValues(USER, TABLE).get(name);
+            }
+        };
+
+        for (String key : mKeys) {
+            assertEquals(query.get(key), memory.get(key));
+        }
+
+        Log.i(TAG, String.format("%-8s %8s %14s", "get", "threads", "gets/s"));
+        // The first pass warms up and is not reported
+        for (int pass = 0; pass < 2; pass++) {
+            for (int threads : THREAD_COUNTS) {
+                run("query", query, threads, pass > 0);
+                run("store", memory, threads, pass > 0);
+            }
+        }
+    }
+
+    private void run(String name, final Get get, int threads, boolean report)
+            throws InterruptedException {
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final AtomicBoolean stop = new AtomicBoolean();
+            final long[] counts = new long[threads];
+            final Thread[] readers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int reader = t;
+                readers[t] = new Thread("reader " + t) {
+                    @Override
+                    public void run() {
+                        long count = 0;
+                        int i = reader;
+                        while (!stop.get()) {
+                            get.get(mKeys[i++ % mKeys.length]);
+                            count++;
+                        }
+                        counts[reader] = count;
+                    }
+                };
+            }
+
+            final long start = System.nanoTime();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            Thread.sleep(ROUND_MILLIS);
+            stop.set(true);
+            long total = 0;
+            for (int t = 0; t < threads; t++) {
+                readers[t].join();
+                total += counts[t];
+            }
+            best = Math.max(best, total * 1e9 / (System.nanoTime() - start));
+        }
+        if (report) {
+            Log.i(TAG, String.format("%-8s %8d %14.0f", name, threads, best));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+
+@RunWith(AndroidJUnit4.class)
+public class SettingsStoreTest {
+
+    private static final int USER = 0;
+    private static final String TABLE = SlimDatabaseHelper.TABLE_SYSTEM;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    // Stands in for the database: what the loader reads and the writer writes
+    private final Map<String, String> mDatabase = new HashMap<String, String>();
+    private int mLoads;
+    private int mWrites;
+    private int mFailingWrites;
+
+    private final SettingsStore.Loader mLoader = new SettingsStore.Loader() {
+        @Override
+        public Map<String, String> load(int userId, String tableName) {
+            synchronized (mDatabase) {
+                mLoads++;
+                return new HashMap<String, String>(mDatabase);
+            }
+        }
+    };
+
+    private final SettingsStore.Writer mWriter = new SettingsStore.Writer() {
+        @Override
+        public void write(int userId, String tableName, Map<String, String> values) {
+            synchronized (mDatabase) {
+                if (mFailingWrites > 0) {
+                    mFailingWrites--;
+                    throw new SQLiteException("disk full");
+                }
+                mWrites++;
+                mDatabase.putAll(values);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("SettingsStoreTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mDatabase.put("a", "1");
+        mDatabase.put("b", "2");
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    @Test
+    public void testLoadsOnce() {
+        final SettingsStore store = new SettingsStore(mLoader);
+        final Map<String, String> values = store.getValues(USER, TABLE);
+        assertEquals("1", values.get("a"));
+        assertSame(values, store.getValues(USER, TABLE));
+        assertEquals(1, mLoads);
+    }
+
+    @Test
+    public void testPutIsCopyOnWrite() {
+        final SettingsStore store = new SettingsStore(mLoader);
+        final Map<String, String> before = store.getValues(USER, TABLE);
+
+        synchronized (store.getWriteLock(USER, TABLE)) {
+            store.put(USER, TABLE, "a", "3");
+        }
+
+        // A reader holding on to the old map keeps seeing it unchanged
+        assertEquals("1", before.get("a"));
+        assertEquals("3", store.getValues(USER, TABLE).get("a"));
+        assertEquals("2", store.getValues(USER, TABLE).get("b"));
+        assertEquals(1, mLoads);
+    }
+
+    @Test
+    public void testPutBeforeLoadIsLeftToTheLoad() {
+        final SettingsStore store = new SettingsStore(mLoader);
+        mDatabase.put("a", "3");
+        store.put(USER, TABLE, "a", "3");
+        assertEquals(0, mLoads);
+
+        assertEquals("3", store.getValues(USER, TABLE).get("a"));
+        assertEquals(1, mLoads);
+    }
+
+    @Test
+    public void testSortedValuesFollowWrites() {
+        final SettingsStore store = new SettingsStore(mLoader);
+        final SortedMap<String, String> sorted = store.getSortedValues(USER, TABLE);
+        assertEquals("a", sorted.firstKey());
+        assertSame(sorted, store.getSortedValues(USER, TABLE));
+
+        store.put(USER, TABLE, "0", "x");
+        final SortedMap<String, String> updated = store.getSortedValues(USER, TABLE);
+        assertEquals("0", updated.firstKey());
+        assertEquals(3, updated.size());
+        assertEquals("a", sorted.firstKey());
+    }
+
+    @Test
+    public void testDeferredWritesAreFlushed() {
+        final SettingsStore store = new SettingsStore(mLoader, mWriter, mHandler);
+        final Map<String, String> changes = new HashMap<String, String>();
+        changes.put("c", "3");
+        synchronized (store.getWriteLock(USER, TABLE)) {
+            store.putDeferred(USER, TABLE, changes);
+        }
+        assertEquals("3", store.getValues(USER, TABLE).get("c"));
+
+        store.flushAll();
+        synchronized (mDatabase) {
+            assertEquals("3", mDatabase.get("c"));
+            assertEquals(1, mWrites);
+        }
+
+        // Nothing is left to write
+        store.flushAll();
+        synchronized (mDatabase) {
+            assertEquals(1, mWrites);
+        }
+    }
+
+    @Test
+    public void testFailedFlushKeepsValues() {
+        final SettingsStore store = new SettingsStore(mLoader, mWriter, mHandler);
+        final Map<String, String> changes = new HashMap<String, String>();
+        changes.put("a", "3");
+        // The flush and the one invalidate() tries first
+        mFailingWrites = 2;
+        synchronized (store.getWriteLock(USER, TABLE)) {
+            store.putDeferred(USER, TABLE, changes);
+            try {
+                store.flush(USER, TABLE);
+                fail("Failed flush not reported");
+            } catch (SQLiteException e) {
+                // Expected
+            }
+
+            // A reload would lose the value, so the copy is kept
+            store.invalidate(USER, TABLE);
+        }
+        assertEquals("3", store.getValues(USER, TABLE).get("a"));
+        assertEquals(1, mLoads);
+
+        store.flushAll();
+        synchronized (mDatabase) {
+            assertEquals("3", mDatabase.get("a"));
+            assertTrue(mWrites >= 1);
+        }
+    }
+
+    @Test
+    public void testRemovedUserIsReloaded() {
+        final SettingsStore store = new SettingsStore(mLoader);
+        store.getValues(USER, TABLE);
+        store.put(USER, TABLE, "a", "3");
+
+        store.onUserRemoved(USER);
+        assertEquals("1", store.getValues(USER, TABLE).get("a"));
+        assertNull(store.getValues(USER, TABLE).get("c"));
+        assertEquals(2, mLoads);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.slim.providers.settings;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+@RunWith(AndroidJUnit4.class)
+public class WriteCoalescerTest {
+
+    private static final int USER = 0;
+    private static final String TABLE = SlimDatabaseHelper.TABLE_SYSTEM;
+    private static final String KEY = "navigation_bar_height";
+
+    private static final int UID_A = 10001;
+    private static final int UID_B = 10002;
+
+    // Long enough that nothing is sent while a test runs, unless it waits for it
+    private static final long WINDOW_MILLIS = 10000;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    // "userId/table/name" of every notification sent, in order
+    private final LinkedBlockingQueue<String> mSent = new LinkedBlockingQueue<String>();
+    private final WriteCoalescer.Sender mSender = new WriteCoalescer.Sender() {
+        @Override
+        public void send(int userId, String tableName, ArrayList<String> names) {
+            for (String name : names) {
+                mSent.add(userId + "/" + tableName + "/" + name);
+            }
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("WriteCoalescerTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    @Test
+    public void testSecondCallerIsNotDelayed() {
+        final WriteCoalescer coalescer =
+                new WriteCoalescer(mSender, mHandler, WINDOW_MILLIS, 0, 1);
+
+        assertFalse(coalescer.hold(USER, TABLE, KEY, UID_A, true));
+        assertTrue(coalescer.hold(USER, TABLE, KEY, UID_A, true));
+
+        // A write of the same key by someone else is notified right away
+        assertFalse(coalescer.hold(USER, TABLE, KEY, UID_B, true));
+        assertTrue(coalescer.hold(USER, TABLE, KEY, UID_B, true));
+
+        // As is another key of the first caller
+        assertFalse(coalescer.hold(USER, TABLE, "other", UID_A, true));
+    }
+
+    @Test
+    public void testHeldWritesAreNotifiedOnce() throws InterruptedException {
+        final WriteCoalescer coalescer = new WriteCoalescer(mSender, mHandler, 100, 0, 1);
+
+        assertFalse(coalescer.hold(USER, TABLE, KEY, UID_A, true));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(coalescer.hold(USER, TABLE, KEY, UID_A, true));
+        }
+
+        assertEquals(USER + "/" + TABLE + "/" + KEY, mSent.poll(5, TimeUnit.SECONDS));
+        assertNull(mSent.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testFlushAllSendsEverything() {
+        final WriteCoalescer coalescer =
+                new WriteCoalescer(mSender, mHandler, WINDOW_MILLIS, 0, 1);
+        for (String key : new String[] { "a", "b" }) {
+            coalescer.hold(USER, TABLE, key, UID_A, true);
+            coalescer.hold(USER, TABLE, key, UID_A, true);
+            // The same key held for two callers is notified once
+            coalescer.hold(USER, TABLE, key, UID_B, true);
+            coalescer.hold(USER, TABLE, key, UID_B, true);
+        }
+
+        coalescer.flush(true);
+        final ArrayList<String> sent = new ArrayList<String>(mSent);
+        Collections.sort(sent);
+        assertEquals(Arrays.asList(USER + "/" + TABLE + "/a", USER + "/" + TABLE + "/b"), sent);
+    }
+
+    @Test
+    public void testThrottledCallerRunsOutOfTokens() {
+        final WriteCoalescer coalescer = new WriteCoalescer(mSender, mHandler, 0, 1, 2);
+
+        assertFalse(coalescer.hold(USER, TABLE, "a", UID_A, true));
+        assertFalse(coalescer.hold(USER, TABLE, "b", UID_A, true));
+        assertTrue(coalescer.hold(USER, TABLE, "c", UID_A, true));
+
+        // Other callers have tokens of their own, and trusted ones need none
+        assertFalse(coalescer.hold(USER, TABLE, "c", UID_B, true));
+        for (int i = 0; i < 10; i++) {
+            assertFalse(coalescer.hold(USER, TABLE, "d" + i, 1000, false));
+        }
+    }
+
+    @Test
+    public void testRemovedUserIsDropped() throws InterruptedException {
+        final WriteCoalescer coalescer = new WriteCoalescer(mSender, mHandler, 100, 0, 1);
+        coalescer.hold(USER, TABLE, KEY, UID_A, true);
+        assertTrue(coalescer.hold(USER, TABLE, KEY, UID_A, true));
+
+        coalescer.onUserRemoved(USER);
+        coalescer.flush(true);
+        assertNull(mSent.poll(500, TimeUnit.MILLISECONDS));
+    }
+}
@@ -39,9 +39,17 @@ import com.android.systemui.statusbar.policy.UserInfoController;
 import com.android.systemui.statusbar.policy.UserSwitcherController;
 import com.android.systemui.statusbar.policy.ZenModeController;
 
+import slim.provider.SlimSettings;
+
 
 public class SlimSystemUIFactory extends SystemUIFactory {
 
+    public SlimSystemUIFactory() {
+        // Created before any of the SystemUI services start, which read most Slim
+        // settings right away; fetch each table at once.
+        SlimSettings.setWarmUpEnabled(true);
+    }
+
     @Override
     public QSTileHost createQSTileHost(Context context, PhoneStatusBar statusBar,
             BluetoothController bluetooth, LocationController location,
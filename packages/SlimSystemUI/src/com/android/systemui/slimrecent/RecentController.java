@@ -31,7 +31,6 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
-import android.database.ContentObserver;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.VectorDrawable;
@@ -63,6 +62,7 @@ import android.widget.RelativeLayout;
 import android.widget.Toast;
 
 import java.util.List;
+import java.util.Map;
 
 import com.android.systemui.R;
 import com.android.systemui.RecentsComponent;
@@ -643,40 +643,27 @@ public class RecentController implements RecentPanelView.OnExitListener,
      * Settingsobserver to take care of the user settings.
      * Either gravity or scale factor of our recent panel can change.
      */
-    private class SettingsObserver extends ContentObserver {
+    private class SettingsObserver implements SlimSettings.OnSettingsChangedListener {
+        private final Handler mHandler;
+
         SettingsObserver(Handler handler) {
-            super(handler);
+            mHandler = handler;
         }
 
         void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_PANEL_GRAVITY),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_PANEL_SCALE_FACTOR),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_PANEL_EXPANDED_MODE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_PANEL_SHOW_TOPMOST),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_PANEL_BG_COLOR),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_SHOW_RUNNING_TASKS),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_CARD_BG_COLOR),
-                    false, this, UserHandle.USER_ALL);
+            SlimSettings.System.registerListener(mContext.getContentResolver(), new String[] {
+                    SlimSettings.System.RECENT_PANEL_GRAVITY,
+                    SlimSettings.System.RECENT_PANEL_SCALE_FACTOR,
+                    SlimSettings.System.RECENT_PANEL_EXPANDED_MODE,
+                    SlimSettings.System.RECENT_PANEL_SHOW_TOPMOST,
+                    SlimSettings.System.RECENT_PANEL_BG_COLOR,
+                    SlimSettings.System.RECENT_SHOW_RUNNING_TASKS,
+                    SlimSettings.System.RECENT_CARD_BG_COLOR }, mHandler, this);
             update();
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            super.onChange(selfChange);
+        public void onSettingsChanged(Map<String, String> changes) {
             update();
         }
 
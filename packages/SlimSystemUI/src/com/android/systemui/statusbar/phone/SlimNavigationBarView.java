@@ -91,6 +91,50 @@ public class SlimNavigationBarView extends NavigationBarView {
     private static final int KEY_MENU_LEFT = 1;
     private static final int KEY_IME_SWITCHER = 2;
 
+    // Settings read by updateSettings(): their index in NAV_BAR_SETTINGS, their keys and
+    // their defaults
+    private static final int SETTING_BUTTON_TINT = 0;
+    private static final int SETTING_BUTTON_TINT_MODE = 1;
+    private static final int SETTING_MENU_LOCATION = 2;
+    private static final int SETTING_MENU_VISIBILITY = 3;
+    private static final int SETTING_DIM_BUTTONS = 4;
+    private static final int SETTING_DIM_BUTTONS_TIMEOUT = 5;
+    private static final int SETTING_DIM_BUTTONS_ALPHA = 6;
+    private static final int SETTING_DIM_BUTTONS_ANIMATE = 7;
+    private static final int SETTING_DIM_BUTTONS_ANIMATE_DURATION = 8;
+    private static final int SETTING_DIM_BUTTONS_TOUCH_ANYWHERE = 9;
+    private static final int SETTING_COUNT = 10;
+
+    private static final String[] NAV_BAR_SETTINGS = new String[SETTING_COUNT];
+    private static final int[] NAV_BAR_SETTINGS_DEFAULTS = new int[SETTING_COUNT];
+    static {
+        addNavBarSetting(SETTING_BUTTON_TINT,
+                SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT, -2);
+        addNavBarSetting(SETTING_BUTTON_TINT_MODE,
+                SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT_MODE, 0);
+        addNavBarSetting(SETTING_MENU_LOCATION,
+                SlimSettings.System.MENU_LOCATION, SHOW_RIGHT_MENU);
+        addNavBarSetting(SETTING_MENU_VISIBILITY,
+                SlimSettings.System.MENU_VISIBILITY, MENU_VISIBILITY_SYSTEM);
+        addNavBarSetting(SETTING_DIM_BUTTONS,
+                SlimSettings.System.DIM_NAV_BUTTONS, 0);
+        addNavBarSetting(SETTING_DIM_BUTTONS_TIMEOUT,
+                SlimSettings.System.DIM_NAV_BUTTONS_TIMEOUT, 3000);
+        addNavBarSetting(SETTING_DIM_BUTTONS_ALPHA,
+                SlimSettings.System.DIM_NAV_BUTTONS_ALPHA, 50);
+        addNavBarSetting(SETTING_DIM_BUTTONS_ANIMATE,
+                SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE, 0);
+        addNavBarSetting(SETTING_DIM_BUTTONS_ANIMATE_DURATION,
+                SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE_DURATION, 2000);
+        addNavBarSetting(SETTING_DIM_BUTTONS_TOUCH_ANYWHERE,
+                SlimSettings.System.DIM_NAV_BUTTONS_TOUCH_ANYWHERE, 0);
+    }
+
+    private static void addNavBarSetting(int index, String key, int def) {
+        NAV_BAR_SETTINGS[index] = key;
+        NAV_BAR_SETTINGS_DEFAULTS[index] = def;
+    }
+
     private int mMenuVisibility;
     private int mMenuSetting;
     private boolean mOverrideMenuKeys;
@@ -862,50 +906,36 @@ public class SlimNavigationBarView extends NavigationBarView {
     private void updateSettings(boolean recreate) {
         ContentResolver resolver = mContext.getContentResolver();
 
-        mNavBarButtonColor = SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT, -2, UserHandle.USER_CURRENT);
+        // Read everything in one go; on a cache miss this is a single provider round-trip
+        final int[] settings = SlimSettings.System.getIntsForUser(resolver,
+                NAV_BAR_SETTINGS, NAV_BAR_SETTINGS_DEFAULTS, UserHandle.USER_CURRENT);
+
+        mNavBarButtonColor = settings[SETTING_BUTTON_TINT];
 
         if (mNavBarButtonColor == -2) {
             mNavBarButtonColor = mContext.getResources()
                     .getColor(R.color.navigationbar_button_default_color);
         }
 
-        mNavBarButtonColorMode = SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT_MODE, 0, UserHandle.USER_CURRENT);
+        mNavBarButtonColorMode = settings[SETTING_BUTTON_TINT_MODE];
 
         mButtonsConfig = ActionHelper.getNavBarConfig(mContext);
 
-        mMenuSetting = SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.MENU_LOCATION, SHOW_RIGHT_MENU,
-                UserHandle.USER_CURRENT);
+        mMenuSetting = settings[SETTING_MENU_LOCATION];
 
-        mMenuVisibility = SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.MENU_VISIBILITY, MENU_VISIBILITY_SYSTEM,
-                UserHandle.USER_CURRENT);
+        mMenuVisibility = settings[SETTING_MENU_VISIBILITY];
 
-        mDimNavButtons = (SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.DIM_NAV_BUTTONS, 0,
-                UserHandle.USER_CURRENT) == 1);
+        mDimNavButtons = (settings[SETTING_DIM_BUTTONS] == 1);
 
-        mDimNavButtonsTimeout = SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.DIM_NAV_BUTTONS_TIMEOUT, 3000,
-                UserHandle.USER_CURRENT);
+        mDimNavButtonsTimeout = settings[SETTING_DIM_BUTTONS_TIMEOUT];
 
-        mDimNavButtonsAlpha = (float) SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.DIM_NAV_BUTTONS_ALPHA, 50,
-                UserHandle.USER_CURRENT) / 100.0f;
+        mDimNavButtonsAlpha = (float) settings[SETTING_DIM_BUTTONS_ALPHA] / 100.0f;
 
-        mDimNavButtonsAnimate = (SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE, 0,
-                UserHandle.USER_CURRENT) == 1);
+        mDimNavButtonsAnimate = (settings[SETTING_DIM_BUTTONS_ANIMATE] == 1);
 
-        mDimNavButtonsAnimateDuration = SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE_DURATION, 2000,
-                UserHandle.USER_CURRENT);
+        mDimNavButtonsAnimateDuration = settings[SETTING_DIM_BUTTONS_ANIMATE_DURATION];
 
-        mDimNavButtonsTouchAnywhere = (SlimSettings.System.getIntForUser(resolver,
-                SlimSettings.System.DIM_NAV_BUTTONS_TOUCH_ANYWHERE, 0,
-                UserHandle.USER_CURRENT) == 1);
+        mDimNavButtonsTouchAnywhere = (settings[SETTING_DIM_BUTTONS_TOUCH_ANYWHERE] == 1);
 
         setNavigationIconHints(mNavigationIconHints, true);
 
@@ -19,10 +19,7 @@ package com.android.systemui.statusbar.slim;
 
 import android.content.ContentResolver;
 import android.content.Context;
-import android.database.ContentObserver;
-import android.net.Uri;
 import android.os.Handler;
-import android.os.UserHandle;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.LinearLayout;
@@ -31,6 +28,8 @@ import android.widget.TextView;
 import com.android.systemui.R;
 import com.android.systemui.statusbar.policy.BatteryController;
 
+import java.util.Map;
+
 import slim.provider.SlimSettings;
 
 public class SlimBatteryContainer extends LinearLayout implements
@@ -152,28 +151,27 @@ public class SlimBatteryContainer extends LinearLayout implements
         }
     }
 
-    private final class BatterySettingsObserver extends ContentObserver {
+    private final class BatterySettingsObserver
+            implements SlimSettings.OnSettingsChangedListener {
+        private final Handler mHandler;
+
         BatterySettingsObserver(Handler handler) {
-            super(handler);
+            mHandler = handler;
         }
 
         void observe() {
-            ContentResolver resolver = getContext().getContentResolver();
-
-            resolver.registerContentObserver(SlimSettings.Secure.getUriFor(
-                    SlimSettings.Secure.STATUS_BAR_BATTERY_PERCENT),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.Secure.getUriFor(
-                    SlimSettings.Secure.STATUS_BAR_BATTERY_STYLE),
-                    false, this, UserHandle.USER_ALL);
+            SlimSettings.Secure.registerListener(getContext().getContentResolver(),
+                    new String[] {
+                        SlimSettings.Secure.STATUS_BAR_BATTERY_PERCENT,
+                        SlimSettings.Secure.STATUS_BAR_BATTERY_STYLE }, mHandler, this);
         }
 
         void unObserve() {
-            getContext().getContentResolver().unregisterContentObserver(this);
+            SlimSettings.Secure.unregisterListener(this);
         }
 
         @Override
-        public void onChange(boolean selfChange, Uri uri) {
+        public void onSettingsChanged(Map<String, String> changes) {
             updateSettings();
         }
     }
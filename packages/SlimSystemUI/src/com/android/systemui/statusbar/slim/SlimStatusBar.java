@@ -23,7 +23,6 @@ import android.app.ActivityManager.RunningAppProcessInfo;
 import android.app.ActivityManagerNative;
 import android.app.IActivityManager;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -34,11 +33,9 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
-import android.database.ContentObserver;
 import android.graphics.PixelFormat;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
-import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
@@ -83,6 +80,7 @@ import com.android.systemui.recents.events.activity.UndockingTaskEvent;
 import com.android.systemui.recents.events.EventBus;
 
 import java.util.List;
+import java.util.Map;
 
 import slim.action.SlimActionsManager;
 import slim.provider.SlimSettings;
@@ -122,118 +120,82 @@ public class SlimStatusBar extends PhoneStatusBar implements
 
     private int mDensity;
 
-    class SettingsObserver extends ContentObserver {
-        SettingsObserver(Handler handler) {
-            super(handler);
-        }
-
-        void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.USE_SLIM_RECENTS), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_CARD_BG_COLOR), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_CARD_TEXT_COLOR), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT_MODE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_GLOW_TINT),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_SHOW),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_CONFIG),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_CAN_MOVE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.MENU_LOCATION),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.MENU_VISIBILITY),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_TIMEOUT),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_ALPHA),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE_DURATION),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_TOUCH_ANYWHERE),
-                    false, this, UserHandle.USER_ALL);
-        }
+    private static final String[] SETTINGS = {
+        SlimSettings.System.USE_SLIM_RECENTS,
+        SlimSettings.System.RECENT_CARD_BG_COLOR,
+        SlimSettings.System.RECENT_CARD_TEXT_COLOR,
+        SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT,
+        SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT_MODE,
+        SlimSettings.System.NAVIGATION_BAR_GLOW_TINT,
+        SlimSettings.System.NAVIGATION_BAR_SHOW,
+        SlimSettings.System.NAVIGATION_BAR_CONFIG,
+        SlimSettings.System.NAVIGATION_BAR_CAN_MOVE,
+        SlimSettings.System.MENU_LOCATION,
+        SlimSettings.System.MENU_VISIBILITY,
+        SlimSettings.System.DIM_NAV_BUTTONS,
+        SlimSettings.System.DIM_NAV_BUTTONS_TIMEOUT,
+        SlimSettings.System.DIM_NAV_BUTTONS_ALPHA,
+        SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE,
+        SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE_DURATION,
+        SlimSettings.System.DIM_NAV_BUTTONS_TOUCH_ANYWHERE,
+    };
 
+    private final SlimSettings.OnSettingsChangedListener mSettingsListener =
+            new SlimSettings.OnSettingsChangedListener() {
         @Override
-        public void onChange(boolean selfChange, Uri uri) {
-            super.onChange(selfChange, uri);
-
-            if (uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.USE_SLIM_RECENTS))) {
+        public void onSettingsChanged(Map<String, String> changes) {
+            if (changes.containsKey(SlimSettings.System.USE_SLIM_RECENTS)) {
                 updateRecents();
-            } else if (uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_CARD_BG_COLOR))
-                    || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.RECENT_CARD_TEXT_COLOR))) {
+            }
+            if (containsAny(changes,
+                    SlimSettings.System.RECENT_CARD_BG_COLOR,
+                    SlimSettings.System.RECENT_CARD_TEXT_COLOR)) {
                 rebuildRecentsScreen();
-            } else if (uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT_MODE))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_CONFIG))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_GLOW_TINT))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.MENU_LOCATION))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.MENU_VISIBILITY))) {
+            }
+
+            boolean prepareNavigationBar =
+                    changes.containsKey(SlimSettings.System.NAVIGATION_BAR_CAN_MOVE);
+            if (containsAny(changes,
+                    SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT,
+                    SlimSettings.System.NAVIGATION_BAR_BUTTON_TINT_MODE,
+                    SlimSettings.System.NAVIGATION_BAR_CONFIG,
+                    SlimSettings.System.NAVIGATION_BAR_GLOW_TINT,
+                    SlimSettings.System.MENU_LOCATION,
+                    SlimSettings.System.MENU_VISIBILITY)) {
                 if (mSlimNavigationBarView != null) {
                     mSlimNavigationBarView.recreateNavigationBar();
-                    prepareNavigationBarView();
+                    prepareNavigationBar = true;
                 }
-            } else if (uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_CAN_MOVE))) {
+            }
+            if (prepareNavigationBar) {
                 prepareNavigationBarView();
-            } else if (uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_TIMEOUT))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_ALPHA))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE_DURATION))
-                || uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DIM_NAV_BUTTONS_TOUCH_ANYWHERE))) {
+            }
+
+            if (containsAny(changes,
+                    SlimSettings.System.DIM_NAV_BUTTONS,
+                    SlimSettings.System.DIM_NAV_BUTTONS_TIMEOUT,
+                    SlimSettings.System.DIM_NAV_BUTTONS_ALPHA,
+                    SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE,
+                    SlimSettings.System.DIM_NAV_BUTTONS_ANIMATE_DURATION,
+                    SlimSettings.System.DIM_NAV_BUTTONS_TOUCH_ANYWHERE)) {
                 if (mSlimNavigationBarView != null) {
                     mSlimNavigationBarView.updateNavigationBarSettings();
                     mSlimNavigationBarView.onNavButtonTouched();
                 }
-            } else if (uri.equals(SlimSettings.System.getUriFor(
-                    SlimSettings.System.NAVIGATION_BAR_SHOW))) {
+            }
+            if (changes.containsKey(SlimSettings.System.NAVIGATION_BAR_SHOW)) {
                 updateNavigationBarVisibility();
             }
         }
+    };
+
+    private static boolean containsAny(Map<String, String> changes, String... keys) {
+        for (String key : keys) {
+            if (changes.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -253,8 +215,8 @@ public class SlimStatusBar extends PhoneStatusBar implements
         mSlimCommandQueue = new SlimCommandQueue(this);
         slimActionsManager.registerSlimStatusBar(mSlimCommandQueue);
 
-        SettingsObserver observer = new SettingsObserver(mHandler);
-        observer.observe();
+        SlimSettings.System.registerListener(mContext.getContentResolver(), SETTINGS,
+                mHandler, mSettingsListener);
     }
 
     @Override
@@ -21,6 +21,8 @@ import android.util.Slog;
 import com.android.server.LocalServices;
 import com.android.server.SystemServiceManager;
 
+import slim.provider.SlimSettings;
+
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 
@@ -38,6 +40,9 @@ public class SlimSystemServer {
      * Invoked via reflection by the SystemServer
      */
     private void run() {
+        // Most Slim settings are read while starting up; fetch each table at once.
+        SlimSettings.setWarmUpEnabled(true);
+
         // Start services.
         try {
             startServices();
@@ -16,10 +16,8 @@
 package org.slim.framework.internal.policy;
 
 import android.app.ActivityManagerNative;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.ContentObserver;
 import android.media.AudioAttributes;
 import android.os.Handler;
 import android.os.RemoteException;
@@ -36,6 +34,7 @@ import android.view.ViewConfiguration;
 import android.view.WindowManagerPolicy.WindowState;
 
 import java.util.Arrays;
+import java.util.Map;
 
 import slim.action.Action;
 import slim.action.ActionConstants;
@@ -67,6 +66,28 @@ public class HardwareKeyHandler {
             .setUsage(AudioAttributes.USAGE_ASSISTANCE_SONIFICATION)
             .build();
 
+    // All settings read by updateKeyAssignments()
+    private static final String[] KEY_ASSIGNMENT_SETTINGS = {
+            SlimSettings.System.DISABLE_HW_KEYS,
+            SlimSettings.System.KEY_HOME_ACTION,
+            SlimSettings.System.KEY_HOME_LONG_PRESS_ACTION,
+            SlimSettings.System.KEY_HOME_DOUBLE_TAP_ACTION,
+            SlimSettings.System.KEY_MENU_ACTION,
+            SlimSettings.System.KEY_MENU_LONG_PRESS_ACTION,
+            SlimSettings.System.KEY_MENU_DOUBLE_TAP_ACTION,
+            SlimSettings.System.KEY_ASSIST_ACTION,
+            SlimSettings.System.KEY_ASSIST_LONG_PRESS_ACTION,
+            SlimSettings.System.KEY_ASSIST_DOUBLE_TAP_ACTION,
+            SlimSettings.System.KEY_APP_SWITCH_ACTION,
+            SlimSettings.System.KEY_APP_SWITCH_LONG_PRESS_ACTION,
+            SlimSettings.System.KEY_APP_SWITCH_DOUBLE_TAP_ACTION,
+            SlimSettings.System.KEY_BACK_ACTION,
+            SlimSettings.System.KEY_BACK_LONG_PRESS_ACTION,
+            SlimSettings.System.KEY_BACK_DOUBLE_TAP_ACTION,
+            SlimSettings.System.KEY_CAMERA_ACTION,
+            SlimSettings.System.KEY_CAMERA_LONG_PRESS_ACTION,
+            SlimSettings.System.KEY_CAMERA_DOUBLE_TAP_ACTION };
+
     boolean mHomePressed;
     boolean mHomeConsumed;
     boolean mHomeDoubleTapPending;
@@ -120,8 +141,6 @@ public class HardwareKeyHandler {
     private String mLongPressOnCameraBehavior    = ActionConstants.ACTION_NULL;
     private String mDoubleTapOnCameraBehavior    = ActionConstants.ACTION_NULL;
 
-    private HwKeySettingsObserver mHwKeySettingsObserver;
-
     private final Runnable mDoubleTapTimeoutRunnable = new Runnable() {
         @Override
         public void run() {
@@ -176,79 +195,13 @@ public class HardwareKeyHandler {
         }
     };
 
-    private class HwKeySettingsObserver extends ContentObserver {
-        HwKeySettingsObserver(Handler handler) {
-            super(handler);
-        }
-
-        void observe() {
-            // Observe all hw key users' changes
-            ContentResolver resolver = mContext.getContentResolver();
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.DISABLE_HW_KEYS), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_HOME_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_HOME_LONG_PRESS_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_HOME_DOUBLE_TAP_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_MENU_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_MENU_LONG_PRESS_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_MENU_DOUBLE_TAP_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_ASSIST_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_ASSIST_LONG_PRESS_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_ASSIST_DOUBLE_TAP_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_APP_SWITCH_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_APP_SWITCH_LONG_PRESS_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_APP_SWITCH_DOUBLE_TAP_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_BACK_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_BACK_LONG_PRESS_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_BACK_DOUBLE_TAP_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_CAMERA_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_CAMERA_LONG_PRESS_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            resolver.registerContentObserver(SlimSettings.System.getUriFor(
-                    SlimSettings.System.KEY_CAMERA_DOUBLE_TAP_ACTION), false, this,
-                    UserHandle.USER_ALL);
-            updateKeyAssignments();
-        }
-
+    private final SlimSettings.OnSettingsChangedListener mSettingsListener =
+            new SlimSettings.OnSettingsChangedListener() {
         @Override
-        public void onChange(boolean selfChange) {
+        public void onSettingsChanged(Map<String, String> changes) {
             updateKeyAssignments();
         }
-    }
+    };
 
     public HardwareKeyHandler(Context context, Handler handler) {
         mContext = context;
@@ -264,8 +217,10 @@ public class HardwareKeyHandler {
 
         mVibrator = (Vibrator)context.getSystemService(Context.VIBRATOR_SERVICE);
 
-        mHwKeySettingsObserver = new HwKeySettingsObserver(mHandler);
-        mHwKeySettingsObserver.observe();
+        // Observe all hw key users' changes
+        SlimSettings.System.registerListener(mContext.getContentResolver(),
+                KEY_ASSIGNMENT_SETTINGS, mHandler, mSettingsListener);
+        updateKeyAssignments();
     }
 
     static long[] getLongIntArray(Resources r, int resid) {
@@ -288,6 +243,11 @@ public class HardwareKeyHandler {
         final boolean noAppSwitch = (mDeviceHardwareKeys & KEY_MASK_APP_SWITCH) == 0;
         final boolean noCamera = (mDeviceHardwareKeys & KEY_MASK_CAMERA) == 0;
 
+        // Fetch every assignment with a single provider round-trip, the lookups
+        // below are then served from the settings cache.
+        SlimSettings.System.getStringsForUser(mContext.getContentResolver(),
+                KEY_ASSIGNMENT_SETTINGS, UserHandle.USER_CURRENT);
+
         mKeysDisabled = SlimSettings.System.getIntForUser(
                 mContext.getContentResolver(),
                 SlimSettings.System.DISABLE_HW_KEYS, 0,
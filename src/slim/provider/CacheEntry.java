@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+/**
+ * A value cached by {@link SlimSettings} along with its parsed numeric forms. Each form is
+ * parsed the first time it is asked for and kept for as long as the entry is cached, so
+ * repeated typed reads neither parse nor allocate. Entries are replaced rather than modified
+ * when the value changes, which drops the parsed forms with it.
+ * <p>
+ * This class doesn't depend on Android so it can be exercised on the host.
+ */
+final class CacheEntry {
+    private static final byte UNPARSED = 0;
+    private static final byte VALID = 1;
+    private static final byte INVALID = 2;
+
+    // Shared by uncached lookups of settings that are not set.
+    static final CacheEntry NULL = new CacheEntry(null, null);
+
+    final String value;
+
+    // Statistics of the key, or null for entries that are not cached.
+    final CacheStats.KeyStats stats;
+
+    // Each parsed value is written before its volatile state, so a reader that
+    // sees VALID also sees the value.  Racing readers at worst parse twice.
+    private int mInt;
+    private volatile byte mIntState;
+    private long mLong;
+    private volatile byte mLongState;
+    private float mFloat;
+    private volatile byte mFloatState;
+
+    CacheEntry(String value, CacheStats.KeyStats stats) {
+        this.value = value;
+        this.stats = stats;
+    }
+
+    static CacheEntry of(String value) {
+        return value == null ? NULL : new CacheEntry(value, null);
+    }
+
+    boolean isInt() {
+        byte state = mIntState;
+        if (state == UNPARSED) {
+            try {
+                mInt = Integer.parseInt(value);
+                state = VALID;
+            } catch (NumberFormatException e) {
+                state = INVALID;
+            }
+            mIntState = state;
+        }
+        return state == VALID;
+    }
+
+    int getInt(int def) {
+        return isInt() ? mInt : def;
+    }
+
+    boolean isLong() {
+        byte state = mLongState;
+        if (state == UNPARSED) {
+            try {
+                mLong = Long.parseLong(value);
+                state = VALID;
+            } catch (NumberFormatException e) {
+                state = INVALID;
+            }
+            mLongState = state;
+        }
+        return state == VALID;
+    }
+
+    long getLong(long def) {
+        return isLong() ? mLong : def;
+    }
+
+    boolean isFloat() {
+        byte state = mFloatState;
+        if (state == UNPARSED) {
+            state = INVALID;
+            if (value != null) {
+                try {
+                    mFloat = Float.parseFloat(value);
+                    state = VALID;
+                } catch (NumberFormatException e) {
+                    // Not a float
+                }
+            }
+            mFloatState = state;
+        }
+        return state == VALID;
+    }
+
+    float getFloat(float def) {
+        return isFloat() ? mFloat : def;
+    }
+}
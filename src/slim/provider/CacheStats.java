@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on statistics of one settings table cache: hit and miss counters, provider
+ * round-trip latencies and invalidations, both for the whole table and for each key.
+ * All updates are single atomic increments, so recording never takes a lock.
+ */
+final class CacheStats {
+
+    static final int HIT = 0;
+    static final int SNAPSHOT_HIT = 1;
+    static final int MISS = 2;
+    static final int CALL = 3;
+    static final int MULTI_CALL = 4;
+    static final int QUERY = 5;
+    static final int INVALIDATION = 6;
+    static final int FULL_INVALIDATION = 7;
+    static final int KEYS_INVALIDATED = 8;
+    private static final int COUNTER_COUNT = 9;
+
+    private static final String[] COUNTER_NAMES = {
+        "hits", "snapshotHits", "misses", "calls", "multiCalls", "queries",
+        "invalidations", "fullInvalidations", "keysInvalidated",
+    };
+
+    /**
+     * Latency histogram with power of two buckets: bucket i counts samples below 2^i
+     * microseconds, the last bucket everything above.
+     */
+    static final class Histogram {
+        private static final int BUCKET_COUNT = 24;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+        void record(long nanos) {
+            final long micros = nanos / 1000;
+            final int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+        }
+
+        long count() {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += mBuckets.get(i);
+            }
+            return count;
+        }
+
+        /** @return The upper bound in microseconds of the bucket holding the percentile. */
+        long percentile(long count, int percent) {
+            final long rank = (count * percent + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mBuckets.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKET_COUNT - 1);
+        }
+
+        void dump(PrintWriter pw) {
+            final long count = count();
+            pw.print("n=");
+            pw.print(count);
+            if (count > 0) {
+                pw.print(" p50<");
+                pw.print(percentile(count, 50));
+                pw.print("us p90<");
+                pw.print(percentile(count, 90));
+                pw.print("us p99<");
+                pw.print(percentile(count, 99));
+                pw.print("us");
+            }
+        }
+    }
+
+    static final class KeyStats {
+        static final int HIT = 0;
+        static final int MISS = 1;
+        static final int INVALIDATION = 2;
+
+        final String name;
+        final AtomicLongArray counters = new AtomicLongArray(3);
+        final Histogram latency = new Histogram();
+
+        KeyStats(String name) {
+            this.name = name;
+        }
+
+        long churn() {
+            return counters.get(MISS) + counters.get(INVALIDATION);
+        }
+    }
+
+    private final String mTable;
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+    private final Histogram mLatency = new Histogram();
+    private final ConcurrentHashMap<String, KeyStats> mKeys =
+            new ConcurrentHashMap<String, KeyStats>();
+
+    CacheStats(String table) {
+        mTable = table;
+    }
+
+    KeyStats getKey(String name) {
+        KeyStats stats = mKeys.get(name);
+        if (stats == null) {
+            stats = new KeyStats(name);
+            final KeyStats existing = mKeys.putIfAbsent(name, stats);
+            if (existing != null) {
+                stats = existing;
+            }
+        }
+        return stats;
+    }
+
+    void count(int counter) {
+        mCounters.incrementAndGet(counter);
+    }
+
+    void count(int counter, long delta) {
+        mCounters.addAndGet(counter, delta);
+    }
+
+    void onHit(KeyStats key) {
+        mCounters.incrementAndGet(HIT);
+        if (key != null) {
+            key.counters.incrementAndGet(KeyStats.HIT);
+        }
+    }
+
+    void onMiss(String name) {
+        mCounters.incrementAndGet(MISS);
+        getKey(name).counters.incrementAndGet(KeyStats.MISS);
+    }
+
+    /**
+     * Records one provider round-trip.
+     * @param counter CALL, MULTI_CALL or QUERY.
+     * @param name The key that was looked up, or null for multi-key calls.
+     * @param nanos How long the round-trip took.
+     */
+    void onRoundTrip(int counter, String name, long nanos) {
+        mCounters.incrementAndGet(counter);
+        mLatency.record(nanos);
+        if (name != null) {
+            getKey(name).latency.record(nanos);
+        }
+    }
+
+    void onInvalidated(String[] keys) {
+        mCounters.incrementAndGet(INVALIDATION);
+        if (keys == null) {
+            mCounters.incrementAndGet(FULL_INVALIDATION);
+            return;
+        }
+        mCounters.addAndGet(KEYS_INVALIDATED, keys.length);
+        for (String key : keys) {
+            getKey(key).counters.incrementAndGet(KeyStats.INVALIDATION);
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.print("  ");
+        pw.print(mTable);
+        pw.println(":");
+        pw.print("    ");
+        for (int i = 0; i < COUNTER_COUNT; i++) {
+            if (i > 0) {
+                pw.print(' ');
+            }
+            pw.print(COUNTER_NAMES[i]);
+            pw.print('=');
+            pw.print(mCounters.get(i));
+        }
+        pw.println();
+        pw.print("    provider latency: ");
+        mLatency.dump(pw);
+        pw.println();
+
+        // Keys causing the most round-trips first
+        final ArrayList<KeyStats> keys = new ArrayList<KeyStats>(mKeys.values());
+        Collections.sort(keys, new Comparator<KeyStats>() {
+            @Override
+            public int compare(KeyStats lhs, KeyStats rhs) {
+                final long diff = rhs.churn() - lhs.churn();
+                return diff == 0 ? lhs.name.compareTo(rhs.name) : (diff < 0 ? -1 : 1);
+            }
+        });
+        for (KeyStats key : keys) {
+            pw.print("    ");
+            pw.print(key.name);
+            pw.print(": hits=");
+            pw.print(key.counters.get(KeyStats.HIT));
+            pw.print(" misses=");
+            pw.print(key.counters.get(KeyStats.MISS));
+            pw.print(" invalidations=");
+            pw.print(key.counters.get(KeyStats.INVALIDATION));
+            pw.print(" latency: ");
+            key.latency.dump(pw);
+            pw.println();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The versions of the settings tables, kept in a shared, memory mapped buffer. The provider
+ * is the only writer and bumps a table's version on every write; clients map the same file
+ * read-only and compare versions without a binder transaction or a system property read.
+ * <p>
+ * Besides the table version, every table has a fixed array of key slots holding the version
+ * at which a key hashing to the slot was last written, so a client can work out which of its
+ * cached keys went stale on its own. Keys sharing a slot are reported together, which only
+ * costs an extra reload. Changes that can't be attributed to keys, such as deletes by
+ * selection, move the reset version instead, and clients then have to ask the provider.
+ * <p>
+ * Each table is guarded by its own sequence counter (a seqlock), odd while the writer is
+ * updating it; readers retry if it was odd or moved while they were reading. Neither side
+ * has memory barriers, so a reader on another core may see the writer's stores in any order,
+ * for instance the new table version with the old key versions. The sequence alone can't
+ * catch that, so every table also carries a checksum over all of its versions, and
+ * {@link #getChangedKeys} recomputes it and retries until what it read is one consistent
+ * state, like the value hashes of a {@link SettingsSnapshot}.
+ * <p>
+ * Layout, in native byte order:
+ * <pre>
+ *   header:  magic (int), unused (int)
+ *   tables:  TABLE_COUNT x (sequence (int), unused (int), checksum (long), version (long),
+ *            reset version (long), KEY_SLOT_COUNT x key version (long))
+ * </pre>
+ * This class only depends on java.nio so it can be exercised against a plain file.
+ *
+ * @hide
+ */
+public final class GenerationRegistry {
+
+    public static final int TABLE_SYSTEM = 0;
+    public static final int TABLE_SECURE = 1;
+    public static final int TABLE_GLOBAL = 2;
+    private static final int TABLE_COUNT = 3;
+
+    private static final int KEY_SLOT_COUNT = 256;
+
+    private static final int MAGIC = 0x534c4d48;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int HEADER_SIZE = 8;
+
+    private static final int TABLE_OFFSET_SEQUENCE = 0;
+    private static final int TABLE_OFFSET_CHECKSUM = 8;
+    private static final int TABLE_OFFSET_VERSION = 16;
+    private static final int TABLE_OFFSET_RESET_VERSION = 24;
+    private static final int TABLE_OFFSET_KEYS = 32;
+    private static final int TABLE_SIZE = TABLE_OFFSET_KEYS + KEY_SLOT_COUNT * 8;
+
+    // Positions of the table and reset versions in the checksum; key slots use their index
+    private static final int CHECKSUM_INDEX_VERSION = KEY_SLOT_COUNT;
+    private static final int CHECKSUM_INDEX_RESET_VERSION = KEY_SLOT_COUNT + 1;
+
+    /** Size of the buffer backing a registry. */
+    public static final int SIZE = HEADER_SIZE + TABLE_COUNT * TABLE_SIZE;
+
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Wraps an existing buffer of at least {@link #SIZE} bytes.
+     * @param buffer The buffer holding the registry. Only absolute accessors are used on it,
+     *     so it may be shared between threads.
+     */
+    public GenerationRegistry(ByteBuffer buffer) {
+        mBuffer = buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Maps a registry from a file channel.
+     * @param channel The channel to map.
+     * @param writable Whether the caller is the writer of this registry.
+     * @return The mapped registry.
+     */
+    public static GenerationRegistry map(FileChannel channel, boolean writable)
+            throws IOException {
+        return new GenerationRegistry(channel.map(writable
+                ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, SIZE));
+    }
+
+    /**
+     * Prepares a registry for writing. Versions left in the buffer by an earlier writer are
+     * kept, so clients that mapped it before a provider restart never see them go back.
+     */
+    public void initialize() {
+        if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC) {
+            for (int i = 0; i < SIZE; i += 4) {
+                mBuffer.putInt(i, 0);
+            }
+        }
+        for (int table = 0; table < TABLE_COUNT; table++) {
+            final int base = tableOffset(table);
+            int sequence = mBuffer.getInt(base + TABLE_OFFSET_SEQUENCE);
+            if ((sequence & 1) != 0) {
+                // A previous writer died mid-update, maybe before fixing the checksum
+                sequence++;
+            }
+            mBuffer.putInt(base + TABLE_OFFSET_SEQUENCE, sequence + 1);
+            long checksum = mix(mBuffer.getLong(base + TABLE_OFFSET_VERSION),
+                    CHECKSUM_INDEX_VERSION)
+                    ^ mix(mBuffer.getLong(base + TABLE_OFFSET_RESET_VERSION),
+                            CHECKSUM_INDEX_RESET_VERSION);
+            for (int slot = 0; slot < KEY_SLOT_COUNT; slot++) {
+                checksum ^= mix(mBuffer.getLong(keySlotOffset(base, slot)), slot);
+            }
+            mBuffer.putLong(base + TABLE_OFFSET_CHECKSUM, checksum);
+            mBuffer.putInt(base + TABLE_OFFSET_SEQUENCE, sequence + 2);
+        }
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+    }
+
+    /**
+     * Bumps the version of a table. Must only be called by the writer, one thread at a time.
+     * @param table One of the TABLE constants.
+     * @param keys The changed keys, or {@code null} if the change affected an unknown set of
+     *     keys.
+     * @return The new table version.
+     */
+    public long bump(int table, String[] keys) {
+        final int base = tableOffset(table);
+        final int sequence = mBuffer.getInt(base + TABLE_OFFSET_SEQUENCE);
+        mBuffer.putInt(base + TABLE_OFFSET_SEQUENCE, sequence + 1);
+
+        // Each version is in the checksum as mix(version, index), so replacing one only
+        // takes out the old term and adds the new one
+        long checksum = mBuffer.getLong(base + TABLE_OFFSET_CHECKSUM);
+        final long oldVersion = mBuffer.getLong(base + TABLE_OFFSET_VERSION);
+        final long version = oldVersion + 1;
+        if (keys == null) {
+            checksum ^= mix(mBuffer.getLong(base + TABLE_OFFSET_RESET_VERSION),
+                    CHECKSUM_INDEX_RESET_VERSION) ^ mix(version, CHECKSUM_INDEX_RESET_VERSION);
+            mBuffer.putLong(base + TABLE_OFFSET_RESET_VERSION, version);
+        } else {
+            for (String key : keys) {
+                final int slot = keySlot(key);
+                final int offset = keySlotOffset(base, slot);
+                checksum ^= mix(mBuffer.getLong(offset), slot) ^ mix(version, slot);
+                mBuffer.putLong(offset, version);
+            }
+        }
+        checksum ^= mix(oldVersion, CHECKSUM_INDEX_VERSION)
+                ^ mix(version, CHECKSUM_INDEX_VERSION);
+        mBuffer.putLong(base + TABLE_OFFSET_VERSION, version);
+        mBuffer.putLong(base + TABLE_OFFSET_CHECKSUM, checksum);
+
+        mBuffer.putInt(base + TABLE_OFFSET_SEQUENCE, sequence + 2);
+        return version;
+    }
+
+    /**
+     * Returns the current version of a table. It may be a little behind the writer, or ahead
+     * of the key versions this thread can see yet; {@link #getChangedKeys} accounts for that.
+     * @param table One of the TABLE constants.
+     * @return The version, or -1 if it could not be read consistently.
+     */
+    public long getVersion(int table) {
+        if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC) {
+            return -1;
+        }
+        final int base = tableOffset(table);
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            final int sequence = mBuffer.getInt(base + TABLE_OFFSET_SEQUENCE);
+            if ((sequence & 1) != 0) {
+                // Writer busy
+                Thread.yield();
+                continue;
+            }
+            final long version = mBuffer.getLong(base + TABLE_OFFSET_VERSION);
+            if (mBuffer.getInt(base + TABLE_OFFSET_SEQUENCE) == sequence) {
+                return version;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds which of the given keys may have been written between two table versions.
+     * @param table One of the TABLE constants.
+     * @param since The table version the keys are known to be valid for.
+     * @param version The current table version, as returned by {@link #getVersion}.
+     * @param keys The keys to check.
+     * @return The keys that may have changed, or {@code null} if the registry can't tell and
+     *     the caller has to drop everything or ask the provider.
+     */
+    public String[] getChangedKeys(int table, long since, long version,
+            Collection<String> keys) {
+        if (since < 0 || version < since || mBuffer.getInt(OFFSET_MAGIC) != MAGIC) {
+            return null;
+        }
+        final int base = tableOffset(table);
+        final long[] keyVersions = new long[KEY_SLOT_COUNT];
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            final int sequence = mBuffer.getInt(base + TABLE_OFFSET_SEQUENCE);
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            final long checksum = mBuffer.getLong(base + TABLE_OFFSET_CHECKSUM);
+            final long current = mBuffer.getLong(base + TABLE_OFFSET_VERSION);
+            final long reset = mBuffer.getLong(base + TABLE_OFFSET_RESET_VERSION);
+            long computed = mix(current, CHECKSUM_INDEX_VERSION)
+                    ^ mix(reset, CHECKSUM_INDEX_RESET_VERSION);
+            for (int slot = 0; slot < KEY_SLOT_COUNT; slot++) {
+                keyVersions[slot] = mBuffer.getLong(keySlotOffset(base, slot));
+                computed ^= mix(keyVersions[slot], slot);
+            }
+            if (computed != checksum
+                    || mBuffer.getInt(base + TABLE_OFFSET_SEQUENCE) != sequence) {
+                // Torn: some of the writer's stores were visible and some were not
+                continue;
+            }
+            if (current < version) {
+                // Consistent, but older than the version the caller saw; wait for the rest
+                Thread.yield();
+                continue;
+            }
+            if (reset > since) {
+                return null;
+            }
+            // Keys written after 'version' are reported too, which only costs a reload
+            final ArrayList<String> changed = new ArrayList<String>();
+            for (String key : keys) {
+                if (keyVersions[keySlot(key)] > since) {
+                    changed.add(key);
+                }
+            }
+            return changed.toArray(new String[changed.size()]);
+        }
+        return null;
+    }
+
+    private static int tableOffset(int table) {
+        return HEADER_SIZE + table * TABLE_SIZE;
+    }
+
+    private static int keySlot(String key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (KEY_SLOT_COUNT - 1);
+    }
+
+    private static int keySlotOffset(int tableOffset, int slot) {
+        return tableOffset + TABLE_OFFSET_KEYS + slot * 8;
+    }
+
+    /**
+     * Spreads a version at a position of the table into 64 bits, so that a checksum mixing
+     * versions read from different states almost never matches.
+     */
+    private static long mix(long version, int index) {
+        long h = version * 0x9e3779b97f4a7c15L + index;
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+}
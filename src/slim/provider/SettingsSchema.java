@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import slim.provider.SlimSettingsKeys.Secure;
+import slim.provider.SlimSettingsKeys.System;
+
+/**
+ * The type of every key declared in {@link SlimSettingsKeys}. The same schema validates
+ * values in {@link SlimSettings} before they are sent to the provider, and in the provider
+ * before they are written.
+ * <p>
+ * Validation never allocates: numbers are parsed in place, enum values are compared with
+ * {@link String#equals} and list items against the input with {@link String#regionMatches}.
+ * Only floats written in exponent notation fall back to {@link Float#parseFloat}.
+ * <p>
+ * Apart from the {@link SlimSettings.Validator} interface it doesn't depend on the framework,
+ * so it can be exercised on the host.
+ *
+ * @hide
+ */
+public final class SettingsSchema {
+
+    public static final int TYPE_STRING = 0;
+    public static final int TYPE_BOOLEAN = 1;
+    public static final int TYPE_INT = 2;
+    public static final int TYPE_FLOAT = 3;
+    public static final int TYPE_ENUM = 4;
+    public static final int TYPE_LIST = 5;
+
+    /**
+     * The type of a setting along with its constraints.
+     */
+    public static final class Type implements SlimSettings.Validator {
+        public final int type;
+        public final int min;
+        public final int max;
+        public final float minFloat;
+        public final float maxFloat;
+        // Allowed values of TYPE_ENUM, allowed items of TYPE_LIST
+        private final String[] mValues;
+        private final String mDelimiter;
+        private final boolean mAllowEmptyList;
+
+        private Type(int type, int min, int max, float minFloat, float maxFloat,
+                String[] values, String delimiter, boolean allowEmptyList) {
+            this.type = type;
+            this.min = min;
+            this.max = max;
+            this.minFloat = minFloat;
+            this.maxFloat = maxFloat;
+            mValues = values;
+            mDelimiter = delimiter;
+            mAllowEmptyList = allowEmptyList;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            switch (type) {
+                case TYPE_STRING:
+                    return true;
+                case TYPE_BOOLEAN:
+                case TYPE_ENUM:
+                    return value != null && contains(value);
+                case TYPE_INT:
+                    return value != null && validateInt(value);
+                case TYPE_FLOAT:
+                    return value != null && validateFloat(value);
+                case TYPE_LIST:
+                    return validateList(value);
+                default:
+                    return false;
+            }
+        }
+
+        private boolean contains(String value) {
+            for (int i = 0; i < mValues.length; i++) {
+                if (mValues[i].equals(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private int indexOf(String value, int start, int length) {
+            for (int i = 0; i < mValues.length; i++) {
+                final String candidate = mValues[i];
+                if (candidate.length() == length
+                        && value.regionMatches(start, candidate, 0, length)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Accepts what Integer.parseInt() accepts
+        private boolean validateInt(String value) {
+            final int length = value.length();
+            int i = 0;
+            boolean negative = false;
+            if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+                negative = value.charAt(0) == '-';
+                i++;
+            }
+            if (i == length) {
+                return false;
+            }
+            long result = 0;
+            for (; i < length; i++) {
+                final int digit = value.charAt(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return false;
+                }
+                result = result * 10 + digit;
+                if (result > (long) Integer.MAX_VALUE + 1) {
+                    return false;
+                }
+            }
+            if (negative) {
+                result = -result;
+            }
+            return result >= min && result <= max;
+        }
+
+        // Handles plain decimals in place, anything fancier goes through the platform
+        private boolean validateFloat(String value) {
+            final int length = value.length();
+            int i = 0;
+            boolean negative = false;
+            if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+                negative = value.charAt(0) == '-';
+                i++;
+            }
+            double result = 0;
+            double scale = 1;
+            int digits = 0;
+            boolean fraction = false;
+            for (; i < length; i++) {
+                final char c = value.charAt(i);
+                if (c == '.' && !fraction) {
+                    fraction = true;
+                } else if (c >= '0' && c <= '9' && digits < 15) {
+                    result = result * 10 + (c - '0');
+                    if (fraction) {
+                        scale *= 10;
+                    }
+                    digits++;
+                } else {
+                    break;
+                }
+            }
+            final float floatValue;
+            if (i == length && digits > 0) {
+                floatValue = (float) ((negative ? -result : result) / scale);
+            } else {
+                try {
+                    floatValue = Float.parseFloat(value);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            return floatValue >= minFloat && floatValue <= maxFloat;
+        }
+
+        private boolean validateList(String value) {
+            final int length = value == null ? 0 : value.length();
+            final int delimiterLength = mDelimiter.length();
+            boolean empty = true;
+            int start = 0;
+            while (start < length) {
+                int end = value.indexOf(mDelimiter, start);
+                if (end < 0) {
+                    end = length;
+                }
+                if (end > start) {
+                    if (indexOf(value, start, end - start) < 0) {
+                        return false;
+                    }
+                    empty = false;
+                }
+                start = end + delimiterLength;
+            }
+            return !empty || mAllowEmptyList;
+        }
+    }
+
+    /** Any value, including {@code null}. */
+    public static final Type STRING = new Type(TYPE_STRING, 0, 0, 0, 0, null, null, false);
+
+    /** "0" or "1". */
+    public static final Type BOOLEAN = new Type(TYPE_BOOLEAN, 0, 1, 0, 0,
+            new String[] { "0", "1" }, null, false);
+
+    /** Any int, such as a color. */
+    public static final Type INT = intRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    private static final Type NON_NEGATIVE_INT = intRange(0, Integer.MAX_VALUE);
+
+    private static final Type THREE_WAY = oneOf("0", "1", "2");
+
+    /** An int in the inclusive range [min, max]. */
+    public static Type intRange(int min, int max) {
+        return new Type(TYPE_INT, min, max, 0, 0, null, null, false);
+    }
+
+    /** A float in the inclusive range [min, max]. */
+    public static Type floatRange(float min, float max) {
+        return new Type(TYPE_FLOAT, 0, 0, min, max, null, null, false);
+    }
+
+    /** One of the given values. */
+    public static Type oneOf(String... values) {
+        return new Type(TYPE_ENUM, 0, 0, 0, 0, values, null, false);
+    }
+
+    /**
+     * A list of the given values separated by a delimiter. Empty items are ignored.
+     * @param allowEmptyList Whether a list without any item, including {@code null}, is valid.
+     */
+    public static Type list(String[] values, String delimiter, boolean allowEmptyList) {
+        return new Type(TYPE_LIST, 0, 0, 0, 0, values, delimiter, allowEmptyList);
+    }
+
+    /** The types of all System settings. */
+    public static final Map<String, Type> SYSTEM;
+    static {
+        final HashMap<String, Type> types = new HashMap<String, Type>();
+        types.put(System.NAVIGATION_BAR_CONFIG, STRING);
+        types.put(System.WAKEUP_WHEN_PLUGGED_UNPLUGGED, BOOLEAN);
+        types.put(System.PROXIMITY_AUTO_SPEAKER, BOOLEAN);
+        types.put(System.PROXIMITY_AUTO_SPEAKER_DELAY, NON_NEGATIVE_INT);
+        types.put(System.PROXIMITY_AUTO_SPEAKER_INCALL_ONLY, BOOLEAN);
+        types.put(System.DISABLE_HW_KEYS, INT);
+        types.put(System.KEY_BACK_ACTION, STRING);
+        types.put(System.KEY_BACK_LONG_PRESS_ACTION, STRING);
+        types.put(System.KEY_BACK_DOUBLE_TAP_ACTION, STRING);
+        types.put(System.KEY_HOME_ACTION, STRING);
+        types.put(System.KEY_HOME_LONG_PRESS_ACTION, STRING);
+        types.put(System.KEY_HOME_DOUBLE_TAP_ACTION, STRING);
+        types.put(System.KEY_MENU_ACTION, STRING);
+        types.put(System.KEY_MENU_LONG_PRESS_ACTION, STRING);
+        types.put(System.KEY_MENU_DOUBLE_TAP_ACTION, STRING);
+        types.put(System.KEY_ASSIST_ACTION, STRING);
+        types.put(System.KEY_ASSIST_LONG_PRESS_ACTION, STRING);
+        types.put(System.KEY_ASSIST_DOUBLE_TAP_ACTION, STRING);
+        types.put(System.KEY_APP_SWITCH_ACTION, STRING);
+        types.put(System.KEY_APP_SWITCH_LONG_PRESS_ACTION, STRING);
+        types.put(System.KEY_APP_SWITCH_DOUBLE_TAP_ACTION, STRING);
+        types.put(System.KEY_CAMERA_ACTION, STRING);
+        types.put(System.KEY_CAMERA_LONG_PRESS_ACTION, STRING);
+        types.put(System.KEY_CAMERA_DOUBLE_TAP_ACTION, STRING);
+        types.put(System.DIM_NAV_BUTTONS, INT);
+        types.put(System.DIM_NAV_BUTTONS_TIMEOUT, INT);
+        types.put(System.DIM_NAV_BUTTONS_ALPHA, INT);
+        types.put(System.DIM_NAV_BUTTONS_ANIMATE, INT);
+        types.put(System.DIM_NAV_BUTTONS_ANIMATE_DURATION, INT);
+        types.put(System.DIM_NAV_BUTTONS_TOUCH_ANYWHERE, INT);
+        types.put(System.NAVIGATION_BAR_BUTTON_TINT, INT);
+        types.put(System.NAVIGATION_BAR_BUTTON_TINT_MODE, STRING);
+        types.put(System.NAVIGATION_BAR_GLOW_TINT, INT);
+        types.put(System.NAVIGATION_BAR_SHOW, INT);
+        types.put(System.NAVIGATION_BAR_CAN_MOVE, INT);
+        types.put(System.NAVIGATION_BAR_HEIGHT, INT);
+        types.put(System.NAVIGATION_BAR_HEIGHT_LANDSCAPE, INT);
+        types.put(System.NAVIGATION_BAR_WIDTH, INT);
+        types.put(System.MENU_LOCATION, STRING);
+        types.put(System.MENU_VISIBILITY, STRING);
+        types.put(System.USE_SLIM_RECENTS, INT);
+        types.put(System.RECENT_SHOW_RUNNING_TASKS, INT);
+        types.put(System.RECENTS_MAX_APPS, INT);
+        types.put(System.RECENT_PANEL_GRAVITY, INT);
+        types.put(System.RECENT_PANEL_SCALE_FACTOR, INT);
+        types.put(System.RECENT_PANEL_FAVORITES, STRING);
+        types.put(System.RECENT_PANEL_EXPANDED_MODE, INT);
+        types.put(System.RECENT_PANEL_SHOW_TOPMOST, INT);
+        types.put(System.RECENT_PANEL_BG_COLOR, INT);
+        types.put(System.RECENT_CARD_BG_COLOR, INT);
+        types.put(System.RECENT_CARD_TEXT_COLOR, INT);
+        types.put(System.STATUS_BAR_BATTERY_PERCENT, INT);
+        types.put(System.STATUS_BAR_CLOCK, BOOLEAN);
+        types.put(System.STATUSBAR_CLOCK_AM_PM_STYLE, THREE_WAY);
+        types.put(System.STATUSBAR_CLOCK_STYLE, THREE_WAY);
+        types.put(System.STATUSBAR_CLOCK_COLOR_OVERRIDE, BOOLEAN);
+        types.put(System.STATUSBAR_CLOCK_COLOR, INT);
+        types.put(System.STATUSBAR_CLOCK_DATE_DISPLAY, THREE_WAY);
+        types.put(System.STATUSBAR_CLOCK_DATE_STYLE, THREE_WAY);
+        types.put(System.STATUSBAR_CLOCK_DATE_FORMAT, STRING);
+        types.put(System.STATUSBAR_CLOCK_DATE_POSITION, BOOLEAN);
+        types.put(System.DOZE_FADE_IN_PICKUP, NON_NEGATIVE_INT);
+        types.put(System.DOZE_FADE_IN_DOUBLETAP, NON_NEGATIVE_INT);
+        types.put(System.DOZE_TIMEOUT, NON_NEGATIVE_INT);
+        types.put(System.DOZE_FADE_OUT, NON_NEGATIVE_INT);
+        types.put(System.DOZE_BRIGHTNESS, floatRange(0, 1));
+        types.put(System.DOZE_WAKEUP_DOUBLETAP, BOOLEAN);
+        types.put(System.DOZE_TRIGGER_PICKUP, BOOLEAN);
+        types.put(System.DOZE_TRIGGER_TILT, BOOLEAN);
+        types.put(System.DOZE_TRIGGER_SIGMOTION, BOOLEAN);
+        types.put(System.DOZE_TRIGGER_NOTIFICATION, BOOLEAN);
+        types.put(System.DOZE_TRIGGER_HAND_WAVE, BOOLEAN);
+        types.put(System.DOZE_TRIGGER_POCKET, BOOLEAN);
+        types.put(System.INCREASING_RING, STRING);
+        types.put(System.INCREASING_RING_START_VOLUME, floatRange(0, 1));
+        types.put(System.INCREASING_RING_RAMP_UP_TIME, NON_NEGATIVE_INT);
+        types.put(System.PROXIMITY_ON_WAKE, BOOLEAN);
+        SYSTEM = Collections.unmodifiableMap(types);
+    }
+
+    /** The types of all Secure settings. */
+    public static final Map<String, Type> SECURE;
+    static {
+        final HashMap<String, Type> types = new HashMap<String, Type>();
+        types.put(Secure.ADVANCED_REBOOT, STRING);
+        types.put(Secure.CHAMBER_OF_SECRETS, BOOLEAN);
+        types.put(Secure.STATUS_BAR_BATTERY_STYLE, INT);
+        types.put(Secure.STATUS_BAR_BATTERY_PERCENT, INT);
+        types.put(Secure.QS_NUM_TILE_COLUMNS, STRING);
+        SECURE = Collections.unmodifiableMap(types);
+    }
+
+    /** The types of all Global settings. */
+    public static final Map<String, Type> GLOBAL =
+            Collections.unmodifiableMap(new HashMap<String, Type>());
+
+    private SettingsSchema() {
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * A complete copy of one settings table laid out in a shared, memory mapped buffer. The
+ * provider is the only writer; clients map the same file read-only and look keys up without
+ * a binder transaction.
+ * <p>
+ * Writers bracket every update with a sequence counter (a seqlock): the counter is odd while
+ * an update is in progress and moves on once it is done. Readers retry if the counter was odd
+ * or changed while they were reading. Each value also carries its hash code, so a torn read of
+ * an entry is detected even without memory barriers between the two processes.
+ * <p>
+ * Layout, all ints in big endian order:
+ * <pre>
+ *   header:  magic, sequence, slot count, entry count, valid
+ *   slots:   slot count x (key hash, entry offset)    open addressing, offset 0 = empty
+ *   entries: key length, key chars, value length (-1 = null), value hash, value chars
+ * </pre>
+ * This class only depends on java.nio so it can be exercised against a plain file.
+ *
+ * @hide
+ */
+public final class SettingsSnapshot {
+
+    /** Size of the buffer backing a snapshot. */
+    public static final int DEFAULT_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x534c4d53;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int OFFSET_SLOT_COUNT = 8;
+    private static final int OFFSET_ENTRY_COUNT = 12;
+    private static final int OFFSET_VALID = 16;
+    private static final int HEADER_SIZE = 20;
+
+    private static final int SLOT_SIZE = 8;
+    private static final int MIN_SLOT_COUNT = 16;
+
+    private static final int MAX_READ_ATTEMPTS = 8;
+
+    private static final int RESULT_FOUND = 0;
+    private static final int RESULT_TORN = 1;
+
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Wraps an existing buffer.
+     * @param buffer The buffer holding the snapshot. Only absolute accessors are used on it,
+     *     so it may be shared between threads.
+     */
+    public SettingsSnapshot(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Maps a snapshot from a file channel.
+     * @param channel The channel to map.
+     * @param writable Whether the caller is the writer of this snapshot.
+     * @param size The size of the mapping.
+     * @return The mapped snapshot.
+     */
+    public static SettingsSnapshot map(FileChannel channel, boolean writable, int size)
+            throws IOException {
+        return new SettingsSnapshot(channel.map(writable
+                ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size));
+    }
+
+    /**
+     * Replaces the contents of the snapshot.
+     * @param values All name/value pairs of the table.
+     * @return Whether the values fit into the snapshot. If they don't, the snapshot is marked
+     *     invalid and readers fall back to the provider.
+     */
+    public boolean publish(Map<String, String> values) {
+        int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+        if ((sequence & 1) != 0) {
+            // A previous writer died mid-update
+            sequence++;
+        }
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+
+        final boolean fits = writeEntries(values);
+        mBuffer.putInt(OFFSET_VALID, fits ? 1 : 0);
+        mBuffer.putInt(OFFSET_MAGIC, MAGIC);
+
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 2);
+        return fits;
+    }
+
+    /**
+     * Marks the snapshot invalid, so readers fall back to the provider until it is published
+     * again.
+     */
+    public void invalidate() {
+        int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+        if ((sequence & 1) != 0) {
+            sequence++;
+        }
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+        mBuffer.putInt(OFFSET_VALID, 0);
+        mBuffer.putInt(OFFSET_SEQUENCE, sequence + 2);
+    }
+
+    private boolean writeEntries(Map<String, String> values) {
+        int slotCount = MIN_SLOT_COUNT;
+        while (slotCount < values.size() * 2) {
+            slotCount <<= 1;
+        }
+        final int slotMask = slotCount - 1;
+        int offset = HEADER_SIZE + slotCount * SLOT_SIZE;
+        if (offset > mBuffer.capacity()) {
+            return false;
+        }
+
+        for (int i = HEADER_SIZE; i < HEADER_SIZE + slotCount * SLOT_SIZE; i += 4) {
+            mBuffer.putInt(i, 0);
+        }
+        mBuffer.putInt(OFFSET_SLOT_COUNT, slotCount);
+        mBuffer.putInt(OFFSET_ENTRY_COUNT, values.size());
+
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            final String key = entry.getKey();
+            final String value = entry.getValue();
+            final int size = 4 + key.length() * 2 + 8 + (value == null ? 0 : value.length() * 2);
+            if (offset + size > mBuffer.capacity()) {
+                return false;
+            }
+
+            final int hash = key.hashCode();
+            int slot = hash & slotMask;
+            while (mBuffer.getInt(slotOffset(slot) + 4) != 0) {
+                slot = (slot + 1) & slotMask;
+            }
+            mBuffer.putInt(slotOffset(slot), hash);
+            mBuffer.putInt(slotOffset(slot) + 4, offset);
+
+            offset = putString(offset, key);
+            if (value == null) {
+                mBuffer.putInt(offset, -1);
+                mBuffer.putInt(offset + 4, 0);
+                offset += 8;
+            } else {
+                mBuffer.putInt(offset, value.length());
+                mBuffer.putInt(offset + 4, value.hashCode());
+                offset += 8;
+                for (int i = 0; i < value.length(); i++, offset += 2) {
+                    mBuffer.putChar(offset, value.charAt(i));
+                }
+            }
+        }
+        return true;
+    }
+
+    private int putString(int offset, String s) {
+        mBuffer.putInt(offset, s.length());
+        offset += 4;
+        for (int i = 0; i < s.length(); i++, offset += 2) {
+            mBuffer.putChar(offset, s.charAt(i));
+        }
+        return offset;
+    }
+
+    /**
+     * Looks a key up in the snapshot.
+     * @param name The key to look up.
+     * @param outValue Receives the value at index 0, {@code null} if the key is not set.
+     * @return Whether the snapshot could answer. If not, the caller has to ask the provider.
+     */
+    public boolean read(String name, String[] outValue) {
+        final int hash = name.hashCode();
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            final int sequence = mBuffer.getInt(OFFSET_SEQUENCE);
+            if ((sequence & 1) != 0) {
+                // Writer busy
+                Thread.yield();
+                continue;
+            }
+            if (mBuffer.getInt(OFFSET_MAGIC) != MAGIC || mBuffer.getInt(OFFSET_VALID) == 0) {
+                return false;
+            }
+            try {
+                if (find(name, hash, outValue) == RESULT_FOUND
+                        && mBuffer.getInt(OFFSET_SEQUENCE) == sequence) {
+                    return true;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                // Offsets read mid-update; retry
+            }
+        }
+        return false;
+    }
+
+    private int find(String name, int hash, String[] outValue) {
+        final int slotCount = mBuffer.getInt(OFFSET_SLOT_COUNT);
+        if (slotCount < MIN_SLOT_COUNT || (slotCount & (slotCount - 1)) != 0
+                || HEADER_SIZE + slotCount * SLOT_SIZE > mBuffer.capacity()) {
+            return RESULT_TORN;
+        }
+        final int slotMask = slotCount - 1;
+
+        int slot = hash & slotMask;
+        for (int probe = 0; probe < slotCount; probe++, slot = (slot + 1) & slotMask) {
+            final int offset = mBuffer.getInt(slotOffset(slot) + 4);
+            if (offset == 0) {
+                outValue[0] = null;
+                return RESULT_FOUND;
+            }
+            if (mBuffer.getInt(slotOffset(slot)) != hash || !keyEquals(offset, name)) {
+                continue;
+            }
+
+            final int valueOffset = offset + 4 + name.length() * 2;
+            final int length = mBuffer.getInt(valueOffset);
+            if (length == -1) {
+                outValue[0] = null;
+                return RESULT_FOUND;
+            }
+            if (length < 0 || valueOffset + 8 + length * 2 > mBuffer.capacity()) {
+                return RESULT_TORN;
+            }
+            final char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = mBuffer.getChar(valueOffset + 8 + i * 2);
+            }
+            final String value = new String(chars);
+            if (value.hashCode() != mBuffer.getInt(valueOffset + 4)) {
+                return RESULT_TORN;
+            }
+            outValue[0] = value;
+            return RESULT_FOUND;
+        }
+        return RESULT_TORN;
+    }
+
+    private boolean keyEquals(int offset, String name) {
+        if (mBuffer.getInt(offset) != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (mBuffer.getChar(offset + 4 + i * 2) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+}
@@ -35,6 +35,7 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.location.LocationManager;
@@ -45,11 +46,13 @@ import android.os.BatteryManager;
 import android.os.Binder;
 import android.os.Bundle;
 import android.os.DropBoxManager;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
-import android.os.SystemProperties;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.os.Build.VERSION_CODES;
 import android.provider.Settings;
@@ -60,18 +63,29 @@ import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
 
-import com.android.internal.util.ArrayUtils;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.widget.ILockSettings;
 
+import libcore.io.IoUtils;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The Settings provider contains global system-level device preferences.
@@ -125,184 +139,436 @@ public final class SlimSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
-    // endregion
+    /**
+     * @hide - Private call() method to write several keys to 'system' table at once
+     */
+    public static final String CALL_METHOD_PUT_MULTI_SYSTEM = "PUT_MULTI_system";
 
-    /** @hide */
-    public static interface Validator {
-        public boolean validate(String value);
-    }
+    /**
+     * @hide - Private call() method to write several keys to 'secure' table at once
+     */
+    public static final String CALL_METHOD_PUT_MULTI_SECURE = "PUT_MULTI_secure";
 
-    private static final Validator sBooleanValidator =
-            new DiscreteValueValidator(new String[] {"0", "1"});
+    /**
+     * @hide - Private call() method to write several keys to 'global' table at once
+     */
+    public static final String CALL_METHOD_PUT_MULTI_GLOBAL = "PUT_MULTI_global";
 
-    private static final Validator sThreewayValidator =
-            new DiscreteValueValidator(new String[] {"0", "1", "2"});
+    /**
+     * @hide - Name/value pairs argument extra to the PUT_MULTI call() requests
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
 
-    private static final Validator sNonNegativeIntegerValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            try {
-                return Integer.parseInt(value) >= 0;
-            } catch (NumberFormatException e) {
-                return false;
-            }
-        }
-    };
+    /**
+     * @hide - Private call() method on SettingsProvider to read several keys from 'system' table.
+     */
+    public static final String CALL_METHOD_GET_MULTI_SYSTEM = "GET_MULTI_system";
 
-    private static final Validator sUriValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            try {
-                Uri.decode(value);
-                return true;
-            } catch (IllegalArgumentException e) {
-                return false;
-            }
-        }
-    };
+    /**
+     * @hide - Private call() method on SettingsProvider to read several keys from 'secure' table.
+     */
+    public static final String CALL_METHOD_GET_MULTI_SECURE = "GET_MULTI_secure";
 
-    private static final Validator sColorValidator =
-            new InclusiveIntegerRangeValidator(Integer.MIN_VALUE, Integer.MAX_VALUE);
+    /**
+     * @hide - Private call() method on SettingsProvider to read several keys from 'global' table.
+     */
+    public static final String CALL_METHOD_GET_MULTI_GLOBAL = "GET_MULTI_global";
 
-    private static final Validator sAlwaysTrueValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            return true;
-        }
-    };
+    /**
+     * @hide - Private call() method on SettingsProvider to read the whole 'system' table.
+     */
+    public static final String CALL_METHOD_GET_ALL_SYSTEM = "GET_ALL_system";
 
-    private static final class DiscreteValueValidator implements Validator {
-        private final String[] mValues;
+    /**
+     * @hide - Private call() method on SettingsProvider to read the whole 'secure' table.
+     */
+    public static final String CALL_METHOD_GET_ALL_SECURE = "GET_ALL_secure";
 
-        public DiscreteValueValidator(String[] values) {
-            mValues = values;
-        }
+    /**
+     * @hide - Private call() method on SettingsProvider to read the whole 'global' table.
+     */
+    public static final String CALL_METHOD_GET_ALL_GLOBAL = "GET_ALL_global";
 
-        @Override
-        public boolean validate(String value) {
-            return ArrayUtils.contains(mValues, value);
-        }
-    }
+    /**
+     * @hide - Private call() method to read every key of the 'system' table under a prefix.
+     */
+    public static final String CALL_METHOD_GET_PREFIX_SYSTEM = "GET_PREFIX_system";
 
-    private static final class InclusiveIntegerRangeValidator implements Validator {
-        private final int mMin;
-        private final int mMax;
+    /**
+     * @hide - Private call() method to read every key of the 'secure' table under a prefix.
+     */
+    public static final String CALL_METHOD_GET_PREFIX_SECURE = "GET_PREFIX_secure";
 
-        public InclusiveIntegerRangeValidator(int min, int max) {
-            mMin = min;
-            mMax = max;
-        }
+    /**
+     * @hide - Private call() method to read every key of the 'global' table under a prefix.
+     */
+    public static final String CALL_METHOD_GET_PREFIX_GLOBAL = "GET_PREFIX_global";
 
-        @Override
-        public boolean validate(String value) {
-            try {
-                final int intValue = Integer.parseInt(value);
-                return intValue >= mMin && intValue <= mMax;
-            } catch (NumberFormatException e) {
-                return false;
-            }
-        }
-    }
+    /**
+     * @hide - End key argument extra to the GET_PREFIX call() requests, turning the prefix
+     * into the first key of a range that ends before this key
+     */
+    public static final String CALL_METHOD_END_KEY = "_end";
 
-    private static final class InclusiveFloatRangeValidator implements Validator {
-        private final float mMin;
-        private final float mMax;
+    /**
+     * @hide - Key names argument extra to the GET_MULTI call() requests
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
 
-        public InclusiveFloatRangeValidator(float min, float max) {
-            mMin = min;
-            mMax = max;
-        }
+    /**
+     * @hide - Private call() method to map the shared snapshot of the 'system' table
+     */
+    public static final String CALL_METHOD_SNAPSHOT_SYSTEM = "SNAPSHOT_system";
 
-        @Override
-        public boolean validate(String value) {
-            try {
-                final float floatValue = Float.parseFloat(value);
-                return floatValue >= mMin && floatValue <= mMax;
-            } catch (NumberFormatException e) {
-                return false;
-            }
-        }
-    }
+    /**
+     * @hide - Private call() method to map the shared snapshot of the 'secure' table
+     */
+    public static final String CALL_METHOD_SNAPSHOT_SECURE = "SNAPSHOT_secure";
 
-    private static final class DelimitedListValidator implements Validator {
-        private final ArraySet<String> mValidValueSet;
-        private final String mDelimiter;
-        private final boolean mAllowEmptyList;
+    /**
+     * @hide - Private call() method to map the shared snapshot of the 'global' table
+     */
+    public static final String CALL_METHOD_SNAPSHOT_GLOBAL = "SNAPSHOT_global";
 
-        public DelimitedListValidator(String[] validValues, String delimiter,
-                                      boolean allowEmptyList) {
-            mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
-            mDelimiter = delimiter;
-            mAllowEmptyList = allowEmptyList;
-        }
+    /**
+     * @hide - Snapshot file descriptor result extra of the SNAPSHOT call() requests
+     */
+    public static final String CALL_METHOD_SNAPSHOT_KEY = "_snapshot";
 
-        @Override
-        public boolean validate(String value) {
-            ArraySet<String> values = new ArraySet<String>();
-            if (!TextUtils.isEmpty(value)) {
-                final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                for (String item : array) {
-                    if (TextUtils.isEmpty(item)) {
-                        continue;
-                    }
-                    values.add(item);
-                }
-            }
-            if (values.size() > 0) {
-                values.removeAll(mValidValueSet);
-                // values.size() will be non-zero if it contains any values not in
-                // mValidValueSet
-                return values.size() == 0;
-            } else if (mAllowEmptyList) {
-                return true;
-            }
+    /**
+     * @hide - Private call() method to map the shared generation registry of all tables
+     */
+    public static final String CALL_METHOD_GET_GENERATIONS = "GET_GENERATIONS";
 
-            return false;
-        }
+    /**
+     * @hide - Registry file descriptor result extra of the GET_GENERATIONS call() request
+     */
+    public static final String CALL_METHOD_GENERATIONS_KEY = "_generations";
+
+    /**
+     * @hide - Private call() method to list the 'system' keys changed since a table version
+     */
+    public static final String CALL_METHOD_CHANGES_SYSTEM = "CHANGES_system";
+
+    /**
+     * @hide - Private call() method to list the 'secure' keys changed since a table version
+     */
+    public static final String CALL_METHOD_CHANGES_SECURE = "CHANGES_secure";
+
+    /**
+     * @hide - Private call() method to list the 'global' keys changed since a table version
+     */
+    public static final String CALL_METHOD_CHANGES_GLOBAL = "CHANGES_global";
+
+    /**
+     * @hide - Table version argument extra to the CHANGES call() requests
+     */
+    public static final String CALL_METHOD_GENERATION_KEY = "_generation";
+
+    /**
+     * @hide - Changed keys result extra of the CHANGES call() requests
+     */
+    public static final String CALL_METHOD_KEYS_KEY = "_keys";
+
+    /**
+     * @hide - Removed users result extra of the CHANGES call() requests
+     */
+    public static final String CALL_METHOD_REMOVED_USERS_KEY = "_removed_users";
+
+    /**
+     * @hide - Method with which a process registers the binder dumping its cache statistics
+     */
+    public static final String CALL_METHOD_REGISTER_STATS = "REGISTER_STATS";
+
+    /**
+     * @hide - Method to look up the cache statistics binder of a process
+     */
+    public static final String CALL_METHOD_GET_STATS = "GET_STATS";
+
+    /**
+     * @hide - Statistics binder extra of the REGISTER_STATS and GET_STATS call() requests
+     */
+    public static final String CALL_METHOD_STATS_KEY = "_stats";
+
+    /**
+     * @hide - Registered processes result extra of the GET_STATS call() request
+     */
+    public static final String CALL_METHOD_PROCESSES_KEY = "_processes";
+
+    /**
+     * @hide - Method to look up the uid that last wrote a key of the 'system' table
+     */
+    public static final String CALL_METHOD_GET_WRITER_SYSTEM = "GET_WRITER_system";
+
+    /**
+     * @hide - Method to look up the uid that last wrote a key of the 'secure' table
+     */
+    public static final String CALL_METHOD_GET_WRITER_SECURE = "GET_WRITER_secure";
+
+    /**
+     * @hide - Method to look up the uid that last wrote a key of the 'global' table
+     */
+    public static final String CALL_METHOD_GET_WRITER_GLOBAL = "GET_WRITER_global";
+
+    /**
+     * @hide - Uid result extra of the GET_WRITER call() requests; -1 if not known
+     */
+    public static final String CALL_METHOD_UID_KEY = "_uid";
+
+    /**
+     * @hide - Method to write the request statistics of the provider to a stream
+     */
+    public static final String CALL_METHOD_GET_PROVIDER_STATS = "GET_PROVIDER_STATS";
+
+    /**
+     * @hide - Private call() method to write all settings of a user to a stream
+     */
+    public static final String CALL_METHOD_EXPORT = "EXPORT";
+
+    /**
+     * @hide - Private call() method to write all settings read from a stream
+     */
+    public static final String CALL_METHOD_IMPORT = "IMPORT";
+
+    /**
+     * @hide - File descriptor argument extra to the EXPORT, IMPORT and GET_PROVIDER_STATS
+     * call() requests
+     */
+    public static final String CALL_METHOD_STREAM_KEY = "_stream";
+
+    /**
+     * @hide - Value count result extra of the EXPORT and IMPORT call() requests
+     */
+    public static final String CALL_METHOD_COUNT_KEY = "_count";
+
+    // endregion
+
+    /** @hide */
+    public static interface Validator {
+        public boolean validate(String value);
     }
 
     // Thread-safe.
     private static class NameValueCache {
-        private final String mVersionSystemProperty;
+        private final int mGenerationTable;
         private final Uri mUri;
 
         private static final String[] SELECT_VALUE =
             new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        // The cached values of one table version.  The version of an instance never
+        // changes; moving to another version swaps in a new instance, so readers never
+        // need a lock.
+        private static final class Values {
+            final long version;
+            final ConcurrentHashMap<String, CacheEntry> map;
+
+            Values(long version, ConcurrentHashMap<String, CacheEntry> map) {
+                this.version = version;
+                this.map = map;
+            }
+        }
 
-        // Initially null; set lazily and held forever.  Synchronized on 'this'.
-        private IContentProvider mContentProvider = null;
+        // userId -> cached values of that user.  Caches are created on the first read for
+        // a user and evicted once the provider reports the user as removed.
+        private final ConcurrentHashMap<Integer, AtomicReference<Values>> mUserValues =
+                new ConcurrentHashMap<Integer, AtomicReference<Values>>();
+
+        // Initially null; set lazily and held forever.  Written under 'this'.
+        private volatile IContentProvider mContentProvider = null;
 
         // The method we'll call (or null, to not use) on the provider
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
 
-        public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand) {
-            mVersionSystemProperty = versionSystemProperty;
+        // The method we'll call on the provider for writing several settings at once.
+        private final String mCallSetMultiCommand;
+
+        // The method we'll call (or null, to not use) on the provider
+        // for retrieving several settings at once.
+        private final String mCallGetMultiCommand;
+
+        // The method we'll call (or null, to not use) on the provider
+        // for retrieving the whole table when warming up a cache.
+        private final String mCallGetAllCommand;
+
+        // The method we'll call on the provider for retrieving the keys under a prefix.
+        private final String mCallGetPrefixCommand;
+
+        // The method we'll call (or null, to not use) on the provider to find out
+        // which keys changed since the version we cached.
+        private final String mCallChangesCommand;
+
+        // The method we'll call (or null, to not use) on the provider to get
+        // the shared memory snapshot of the table.
+        private final String mCallSnapshotCommand;
+
+        // Mapped lazily on the first cache miss and held forever.  Written under 'this'.
+        private volatile SettingsSnapshot mSnapshot = null;
+        private volatile boolean mSnapshotRequested = false;
+
+        // The table versions of all caches; mapped on the first read and held forever.
+        // Without it nothing is cached.  Written under the class object.
+        private static volatile GenerationRegistry sGenerations = null;
+        private static volatile boolean sGenerationsRequested = false;
+
+        // Whether caches start out with the whole table; see setWarmUpEnabled().
+        static volatile boolean sWarmUpEnabled = false;
+
+        // Whether this process handed its StatsBinder to the provider yet.
+        private static final AtomicBoolean sStatsRegistered = new AtomicBoolean();
+
+        // The types of all keys of the table.
+        private final Map<String, SettingsSchema.Type> mSchema;
+
+        final CacheStats mStats;
+
+        public NameValueCache(int generationTable, Uri uri,
+                String getCommand, String setCommand, String setMultiCommand,
+                String getMultiCommand, String getAllCommand, String getPrefixCommand,
+                String changesCommand, String snapshotCommand,
+                Map<String, SettingsSchema.Type> schema) {
+            mGenerationTable = generationTable;
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallSetMultiCommand = setMultiCommand;
+            mCallGetMultiCommand = getMultiCommand;
+            mCallGetAllCommand = getAllCommand;
+            mCallGetPrefixCommand = getPrefixCommand;
+            mCallChangesCommand = changesCommand;
+            mCallSnapshotCommand = snapshotCommand;
+            mSchema = schema;
+            mStats = new CacheStats(uri.getLastPathSegment());
         }
 
         private IContentProvider lazyGetProvider(ContentResolver cr) {
-            IContentProvider cp = null;
-            synchronized (this) {
-                cp = mContentProvider;
-                if (cp == null) {
-                    cp = mContentProvider = cr.acquireProvider(mUri.getAuthority());
+            IContentProvider cp = mContentProvider;
+            if (cp == null) {
+                synchronized (this) {
+                    cp = mContentProvider;
+                    if (cp == null) {
+                        cp = mContentProvider = cr.acquireProvider(mUri.getAuthority());
+                        registerStats(cr, cp);
+                    }
                 }
             }
             return cp;
         }
 
+        private static void registerStats(ContentResolver cr, IContentProvider cp) {
+            if (!sStatsRegistered.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                Bundle args = new Bundle();
+                args.putBinder(CALL_METHOD_STATS_KEY, new StatsBinder());
+                cp.call(cr.getPackageName(), CALL_METHOD_REGISTER_STATS, null, args);
+            } catch (RemoteException e) {
+                // Not supported by the remote side?  Stats are only dumpable locally then.
+            }
+        }
+
+        private SettingsSnapshot lazyGetSnapshot(ContentResolver cr) {
+            if (mSnapshotRequested || mCallSnapshotCommand == null) {
+                return mSnapshot;
+            }
+            synchronized (this) {
+                if (mSnapshotRequested) {
+                    return mSnapshot;
+                }
+                mSnapshotRequested = true;
+            }
+
+            SettingsSnapshot snapshot = null;
+            try {
+                Bundle b = lazyGetProvider(cr).call(cr.getPackageName(), mCallSnapshotCommand,
+                        null, null);
+                ParcelFileDescriptor fd = (b == null)
+                        ? null : (ParcelFileDescriptor) b.getParcelable(CALL_METHOD_SNAPSHOT_KEY);
+                if (fd != null) {
+                    try {
+                        snapshot = SettingsSnapshot.map(
+                                new FileInputStream(fd.getFileDescriptor()).getChannel(),
+                                false, SettingsSnapshot.DEFAULT_SIZE);
+                    } finally {
+                        // The mapping stays valid after the descriptor is closed
+                        IoUtils.closeQuietly(fd);
+                    }
+                }
+            } catch (RemoteException e) {
+                // Not supported by the remote side?  Keep using call().
+            } catch (IOException e) {
+                Log.w(TAG, "Can't map snapshot of " + mUri, e);
+            }
+
+            mSnapshot = snapshot;
+            return snapshot;
+        }
+
+        private static GenerationRegistry lazyGetGenerations(ContentResolver cr,
+                IContentProvider cp) {
+            if (sGenerationsRequested) {
+                return sGenerations;
+            }
+            synchronized (NameValueCache.class) {
+                if (sGenerationsRequested) {
+                    return sGenerations;
+                }
+                sGenerationsRequested = true;
+            }
+
+            GenerationRegistry registry = null;
+            try {
+                Bundle b = cp.call(cr.getPackageName(), CALL_METHOD_GET_GENERATIONS, null, null);
+                ParcelFileDescriptor fd = (b == null)
+                        ? null : (ParcelFileDescriptor) b.getParcelable(
+                                CALL_METHOD_GENERATIONS_KEY);
+                if (fd != null) {
+                    try {
+                        registry = GenerationRegistry.map(
+                                new FileInputStream(fd.getFileDescriptor()).getChannel(), false);
+                    } finally {
+                        // The mapping stays valid after the descriptor is closed
+                        IoUtils.closeQuietly(fd);
+                    }
+                }
+            } catch (RemoteException e) {
+                // Not supported by the remote side?  Don't cache then.
+            } catch (IOException e) {
+                Log.w(TAG, "Can't map generation registry", e);
+            }
+
+            sGenerations = registry;
+            return registry;
+        }
+
+        /**
+         * @return The current version of the table, or -1 if it is unknown and the cache
+         *         must not be used.
+         */
+        private long getCurrentVersion(ContentResolver cr) {
+            final GenerationRegistry registry = lazyGetGenerations(cr, lazyGetProvider(cr));
+            return registry == null ? -1 : registry.getVersion(mGenerationTable);
+        }
+
+        /**
+         * Rejects values that don't match the schema of the table without a round-trip; the
+         * provider would throw the same exception.
+         */
+        private void validate(String name, String value) {
+            final SettingsSchema.Type type = mSchema.get(name);
+            if (type != null && !type.validate(value)) {
+                throw new IllegalArgumentException("Invalid value: " + value
+                        + " for setting: " + name);
+            }
+        }
+
         public boolean putStringForUser(ContentResolver cr, String name, String value,
                 final int userHandle) {
+            validate(name, value);
             try {
                 Bundle arg = new Bundle();
                 arg.putString(Settings.NameValueTable.VALUE, value);
@@ -316,38 +582,226 @@ public final class SlimSettings {
             return true;
         }
 
-        public String getStringForUser(ContentResolver cr, String name, final int userHandle) {
-            final boolean isSelf = (userHandle == UserHandle.myUserId()) ||
-                    (userHandle == UserHandle.USER_CURRENT);
-            if (isSelf) {
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
+        public boolean putStringsForUser(ContentResolver cr, Map<String, String> values,
+                final int userHandle) {
+            if (values.isEmpty()) {
+                return true;
+            }
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                validate(entry.getKey(), entry.getValue());
+            }
+            try {
+                Bundle pairs = new Bundle();
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    pairs.putString(entry.getKey(), entry.getValue());
+                }
+                Bundle arg = new Bundle();
+                arg.putBundle(CALL_METHOD_VALUES_KEY, pairs);
+                arg.putInt(CALL_METHOD_USER_KEY, userHandle);
+                IContentProvider cp = lazyGetProvider(cr);
+                cp.call(cr.getPackageName(), mCallSetMultiCommand, null, arg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set " + values.size() + " keys in " + mUri, e);
+                return false;
+            }
+            return true;
+        }
 
-                // Our own user's settings data uses a client-side cache
-                synchronized (this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
+        /**
+         * Returns the cached values of a user for the given table version.  If the cache
+         * holds an older version, only the keys the generation registry or the provider
+         * report as changed for that user since then are dropped.
+         * @param userId The user whose values to return; must not be a pseudo user.
+         * @return The values for the version, or null if another reader concurrently moved
+         *         the cache to a different version.
+         */
+        private Values getValues(ContentResolver cr, int userId, long newValuesVersion) {
+            AtomicReference<Values> ref = mUserValues.get(userId);
+            if (ref == null) {
+                // No version matches, so the first read starts out the cache
+                ref = new AtomicReference<Values>(
+                        new Values(-1, new ConcurrentHashMap<String, CacheEntry>()));
+                final AtomicReference<Values> existing = mUserValues.putIfAbsent(userId, ref);
+                if (existing != null) {
+                    ref = existing;
+                }
+            }
 
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
-                    }
+            final Values cached = ref.get();
+            if (cached.version == newValuesVersion) {
+                return cached;
+            }
 
-                    if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
+            // The registry knows which keys were written, unless the table was reset or
+            // a user removed since; then the provider has to tell.
+            String[] changedKeys = null;
+            if (!cached.map.isEmpty()) {
+                changedKeys = sGenerations.getChangedKeys(mGenerationTable, cached.version,
+                        newValuesVersion, cached.map.keySet());
+            }
+            if (changedKeys == null && !cached.map.isEmpty() && mCallChangesCommand != null) {
+                try {
+                    Bundle args = new Bundle();
+                    args.putLong(CALL_METHOD_GENERATION_KEY, cached.version);
+                    if (userId != UserHandle.myUserId()) {
+                        args.putInt(CALL_METHOD_USER_KEY, userId);
                     }
+                    final long start = SystemClock.elapsedRealtimeNanos();
+                    Bundle b = lazyGetProvider(cr).call(cr.getPackageName(),
+                            mCallChangesCommand, null, args);
+                    mStats.onRoundTrip(CacheStats.CALL, null,
+                            SystemClock.elapsedRealtimeNanos() - start);
+                    if (b != null) {
+                        changedKeys = b.getStringArray(CALL_METHOD_KEYS_KEY);
+                        evictRemovedUsers(b.getIntArray(CALL_METHOD_REMOVED_USERS_KEY));
+                    }
+                } catch (RemoteException e) {
+                    // Not supported by the remote side?  Drop everything below.
                 }
-            } else {
-                if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userHandle
-                        + " by user " + UserHandle.myUserId() + " so skipping cache");
             }
 
-            IContentProvider cp = lazyGetProvider(cr);
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "] for user " + userId
+                        + ": current " + newValuesVersion + " != cached " + cached.version + ", "
+                        + (changedKeys == null ? "all" : changedKeys.length) + " key(s)");
+            }
 
-            // Try the fast path first, not using query().  If this
-            // fails (alternate Settings provider that doesn't support
-            // this interface?) then we fall back to the query/table
+            mStats.onInvalidated(changedKeys);
+
+            final ConcurrentHashMap<String, CacheEntry> map;
+            if (changedKeys == null) {
+                map = sWarmUpEnabled
+                        ? loadTable(cr, userId) : new ConcurrentHashMap<String, CacheEntry>();
+            } else {
+                map = new ConcurrentHashMap<String, CacheEntry>(cached.map);
+                for (String key : changedKeys) {
+                    map.remove(key);
+                }
+            }
+
+            final Values updated = new Values(newValuesVersion, map);
+            if (ref.compareAndSet(cached, updated)) {
+                return updated;
+            }
+            final Values current = ref.get();
+            return current.version == newValuesVersion ? current : null;
+        }
+
+        /**
+         * Reads the whole table of a user with a single provider call.  Keys that are
+         * declared for the table but not set are filled in as null, so they don't cost a
+         * round-trip either.
+         * @return The values of the table, or an empty map if they could not be read.
+         */
+        private ConcurrentHashMap<String, CacheEntry> loadTable(ContentResolver cr, int userId) {
+            final ConcurrentHashMap<String, CacheEntry> map =
+                    new ConcurrentHashMap<String, CacheEntry>();
+            if (mCallGetAllCommand == null) {
+                return map;
+            }
+
+            Bundle b = null;
+            try {
+                Bundle args = null;
+                if (userId != UserHandle.myUserId()) {
+                    args = new Bundle();
+                    args.putInt(CALL_METHOD_USER_KEY, userId);
+                }
+                final long start = SystemClock.elapsedRealtimeNanos();
+                b = lazyGetProvider(cr).call(cr.getPackageName(), mCallGetAllCommand, null,
+                        args);
+                mStats.onRoundTrip(CacheStats.MULTI_CALL, null,
+                        SystemClock.elapsedRealtimeNanos() - start);
+            } catch (RemoteException e) {
+                // Not supported by the remote side?  Start out empty.
+            }
+            if (b == null) {
+                return map;
+            }
+
+            for (String key : b.keySet()) {
+                map.put(key, new CacheEntry(b.getString(key), mStats.getKey(key)));
+            }
+            for (String key : mSchema.keySet()) {
+                if (!map.containsKey(key)) {
+                    map.put(key, new CacheEntry(null, mStats.getKey(key)));
+                }
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "warmed up [" + mUri.getLastPathSegment() + "] for user " + userId
+                        + ": " + b.size() + " set, " + map.size() + " cached");
+            }
+            return map;
+        }
+
+        private void evictRemovedUsers(int[] removedUsers) {
+            if (removedUsers == null) {
+                return;
+            }
+            for (int userId : removedUsers) {
+                if (mUserValues.remove(userId) != null && LOCAL_LOGV) {
+                    Log.v(TAG, "evicted [" + mUri.getLastPathSegment() + "] for user " + userId);
+                }
+            }
+        }
+
+        /**
+         * @return The user whose cache serves reads for the given user handle, or
+         *         {@link UserHandle#USER_NULL} if such reads are not cached.
+         */
+        private static int getCacheUserId(int userHandle) {
+            if (userHandle == UserHandle.USER_CURRENT) {
+                return UserHandle.myUserId();
+            }
+            return userHandle >= 0 ? userHandle : UserHandle.USER_NULL;
+        }
+
+        public String getStringForUser(ContentResolver cr, String name, final int userHandle) {
+            return getEntryForUser(cr, name, userHandle).value;
+        }
+
+        /**
+         * Looks a value up like {@link #getStringForUser}, but returns the cache entry so
+         * typed reads can use its parsed forms.
+         */
+        public CacheEntry getEntryForUser(ContentResolver cr, String name, final int userHandle) {
+            final boolean isSelf = (userHandle == UserHandle.myUserId()) ||
+                    (userHandle == UserHandle.USER_CURRENT);
+            final int cacheUserId = getCacheUserId(userHandle);
+            final long valuesVersion = cacheUserId != UserHandle.USER_NULL
+                    ? getCurrentVersion(cr) : -1;
+            Values values = null;
+            if (valuesVersion >= 0) {
+                // Each user's settings data uses its own client-side cache
+                values = getValues(cr, cacheUserId, valuesVersion);
+                if (values != null) {
+                    final CacheEntry entry = values.map.get(name);
+                    if (entry != null) {
+                        mStats.onHit(entry.stats);
+                        return entry;
+                    }
+                }
+            } else {
+                if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userHandle
+                        + " by user " + UserHandle.myUserId() + " so skipping cache");
+            }
+
+            // Then the shared snapshot of our own table, which needs no binder call
+            if (isSelf) {
+                final SettingsSnapshot snapshot = lazyGetSnapshot(cr);
+                final String[] snapshotValue = new String[1];
+                if (snapshot != null && snapshot.read(name, snapshotValue)) {
+                    mStats.count(CacheStats.SNAPSHOT_HIT);
+                    return putInCache(values, name, snapshotValue[0]);
+                }
+            }
+
+            mStats.onMiss(name);
+            IContentProvider cp = lazyGetProvider(cr);
+
+            // Try the fast path first, not using query().  If this
+            // fails (alternate Settings provider that doesn't support
+            // this interface?) then we fall back to the query/table
             // interface.
             if (mCallGetCommand != null) {
                 try {
@@ -356,20 +810,12 @@ public final class SlimSettings {
                         args = new Bundle();
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
+                    final long start = SystemClock.elapsedRealtimeNanos();
                     Bundle b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
+                    mStats.onRoundTrip(CacheStats.CALL, name,
+                            SystemClock.elapsedRealtimeNanos() - start);
                     if (b != null) {
-                        String value = b.getPairValue();
-                        // Don't update our cache for reads of other users' data
-                        if (isSelf) {
-                            synchronized (this) {
-                                mValues.put(name, value);
-                            }
-                        } else {
-                            if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userHandle
-                                    + " by " + UserHandle.myUserId()
-                                    + " so not updating cache");
-                        }
-                        return value;
+                        return putInCache(values, name, b.getPairValue());
                     }
                     // If the response Bundle is null, we fall through
                     // to the query interface below.
@@ -381,29 +827,546 @@ public final class SlimSettings {
 
             Cursor c = null;
             try {
+                final long start = SystemClock.elapsedRealtimeNanos();
                 c = cp.query(cr.getPackageName(), mUri, SELECT_VALUE, NAME_EQ_PLACEHOLDER,
                              new String[]{name}, null, null);
+                mStats.onRoundTrip(CacheStats.QUERY, name,
+                        SystemClock.elapsedRealtimeNanos() - start);
                 if (c == null) {
                     Log.w(TAG, "Can't get key " + name + " from " + mUri);
-                    return null;
+                    return CacheEntry.NULL;
                 }
 
                 String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (this) {
-                    mValues.put(name, value);
-                }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
                             name + " = " + (value == null ? "(null)" : value));
                 }
-                return value;
+                // query() always reads the calling user's table
+                return isSelf ? putInCache(values, name, value) : CacheEntry.of(value);
             } catch (RemoteException e) {
                 Log.w(TAG, "Can't get key " + name + " from " + mUri, e);
-                return null;  // Return null, but don't cache it.
+                return CacheEntry.NULL;  // Return null, but don't cache it.
             } finally {
                 if (c != null) c.close();
             }
         }
+
+        /**
+         * Reads every key of the table starting with a prefix with a single provider call.
+         * The values bypass the cache, as the set of matching keys can't be known from it.
+         * @return The matching keys that are set, mapped to their values, or {@code null} if
+         *     they could not be read.
+         */
+        public Map<String, String> getStringsWithPrefixForUser(ContentResolver cr,
+                String prefix, int userHandle) {
+            try {
+                Bundle args = new Bundle();
+                args.putInt(CALL_METHOD_USER_KEY, userHandle);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                Bundle b = lazyGetProvider(cr).call(cr.getPackageName(), mCallGetPrefixCommand,
+                        prefix, args);
+                mStats.onRoundTrip(CacheStats.MULTI_CALL, null,
+                        SystemClock.elapsedRealtimeNanos() - start);
+                if (b == null) {
+                    return null;
+                }
+                final ArrayMap<String, String> values = new ArrayMap<String, String>(b.size());
+                for (String key : b.keySet()) {
+                    values.put(key, b.getString(key));
+                }
+                return values;
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't get keys with prefix " + prefix + " from " + mUri, e);
+                return null;
+            }
+        }
+
+        public String[] getStringsForUser(ContentResolver cr, String[] names,
+                final int userHandle) {
+            final boolean isSelf = (userHandle == UserHandle.myUserId()) ||
+                    (userHandle == UserHandle.USER_CURRENT);
+            final String[] values = new String[names.length];
+            final boolean[] missing = new boolean[names.length];
+            int missingCount = 0;
+
+            final int cacheUserId = getCacheUserId(userHandle);
+            final long valuesVersion = cacheUserId != UserHandle.USER_NULL
+                    ? getCurrentVersion(cr) : -1;
+            Values cached = null;
+            if (valuesVersion >= 0) {
+                cached = getValues(cr, cacheUserId, valuesVersion);
+
+                for (int i = 0; i < names.length; i++) {
+                    final CacheEntry entry = cached == null ? null : cached.map.get(names[i]);
+                    if (entry != null) {
+                        mStats.onHit(entry.stats);
+                        values[i] = entry.value;
+                    } else {
+                        missing[i] = true;
+                        missingCount++;
+                    }
+                }
+            } else {
+                Arrays.fill(missing, true);
+                missingCount = names.length;
+            }
+
+            // Then the shared snapshot of the table, which needs no binder call
+            final SettingsSnapshot snapshot = isSelf ? lazyGetSnapshot(cr) : null;
+            if (snapshot != null && missingCount > 0) {
+                final String[] snapshotValue = new String[1];
+                for (int i = 0; i < names.length; i++) {
+                    if (missing[i] && snapshot.read(names[i], snapshotValue)) {
+                        mStats.count(CacheStats.SNAPSHOT_HIT);
+                        values[i] = snapshotValue[0];
+                        putInCache(cached, names[i], values[i]);
+                        missing[i] = false;
+                        missingCount--;
+                    }
+                }
+            }
+
+            if (missingCount == 0) {
+                return values;
+            }
+
+            // Fetch everything we don't have in a single round-trip
+            if (mCallGetMultiCommand != null) {
+                try {
+                    final String[] request = new String[missingCount];
+                    for (int i = 0, j = 0; i < names.length; i++) {
+                        if (missing[i]) {
+                            request[j++] = names[i];
+                            mStats.onMiss(names[i]);
+                        }
+                    }
+                    Bundle args = new Bundle();
+                    args.putStringArray(CALL_METHOD_NAMES_KEY, request);
+                    if (!isSelf) {
+                        args.putInt(CALL_METHOD_USER_KEY, userHandle);
+                    }
+                    final long start = SystemClock.elapsedRealtimeNanos();
+                    Bundle b = lazyGetProvider(cr).call(cr.getPackageName(),
+                            mCallGetMultiCommand, null, args);
+                    mStats.onRoundTrip(CacheStats.MULTI_CALL, null,
+                            SystemClock.elapsedRealtimeNanos() - start);
+                    if (b != null) {
+                        for (int i = 0; i < names.length; i++) {
+                            if (missing[i]) {
+                                values[i] = b.getString(names[i]);
+                                putInCache(cached, names[i], values[i]);
+                            }
+                        }
+                        return values;
+                    }
+                    // If the response Bundle is null, we fall through
+                    // to single lookups below.
+                } catch (RemoteException e) {
+                    // Not supported by the remote side?  Fall through
+                    // to single lookups.
+                }
+            }
+
+            for (int i = 0; i < names.length; i++) {
+                if (missing[i]) {
+                    values[i] = getStringForUser(cr, names[i], userHandle);
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Caches a value read from the provider in the version it was read for.  If the
+         * cache moved on to another version meanwhile, the value lands in the retired
+         * instance and is simply dropped.
+         * @return The entry holding the value.
+         */
+        private CacheEntry putInCache(Values values, String name, String value) {
+            if (values == null) {
+                return CacheEntry.of(value);
+            }
+            final CacheEntry entry = new CacheEntry(value, mStats.getKey(name));
+            values.map.put(name, entry);
+            return entry;
+        }
+    }
+
+    /**
+     * Writes all Slim settings of a user to a stream in one pass, for backups.  The stream
+     * holds JSON that {@link #importSettingsForUser} reads back.
+     * @param cr The ContentResolver to access.
+     * @param out Where to write the settings; closed when done.
+     * @param userHandle The user to export the settings of.
+     * @return The number of exported values, or -1 on failure.
+     * @hide
+     */
+    public static int exportSettingsForUser(ContentResolver cr, ParcelFileDescriptor out,
+            int userHandle) {
+        return transferSettings(cr, CALL_METHOD_EXPORT, out, userHandle);
+    }
+
+    /**
+     * Writes all Slim settings read from a stream written by {@link #exportSettingsForUser}.
+     * Nothing is written unless the whole stream is valid; each table is then written in a
+     * single transaction.  Requires both WRITE_SETTINGS and WRITE_SECURE_SETTINGS.
+     * @param cr The ContentResolver to access.
+     * @param in Where to read the settings from; closed when done.
+     * @param userHandle The user to import the settings for.
+     * @return The number of imported values, or -1 on failure.
+     * @hide
+     */
+    public static int importSettingsForUser(ContentResolver cr, ParcelFileDescriptor in,
+            int userHandle) {
+        return transferSettings(cr, CALL_METHOD_IMPORT, in, userHandle);
+    }
+
+    private static int transferSettings(ContentResolver cr, String method,
+            ParcelFileDescriptor fd, int userHandle) {
+        try {
+            Bundle args = new Bundle();
+            args.putParcelable(CALL_METHOD_STREAM_KEY, fd);
+            args.putInt(CALL_METHOD_USER_KEY, userHandle);
+            Bundle b = cr.call(System.CONTENT_URI, method, null, args);
+            return b == null ? -1 : b.getInt(CALL_METHOD_COUNT_KEY, -1);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Can't " + method + " settings for user " + userHandle, e);
+            return -1;
+        } finally {
+            // The provider has its own copy
+            IoUtils.closeQuietly(fd);
+        }
+    }
+
+    /**
+     * Makes the settings caches of this process load a whole table with a single provider
+     * call the first time it is read, instead of fetching one key per miss.  Meant for
+     * processes that read most Slim settings while starting up, such as SystemUI and
+     * system_server.  Must be called before the first read to take full effect.
+     * @hide
+     */
+    public static void setWarmUpEnabled(boolean enabled) {
+        NameValueCache.sWarmUpEnabled = enabled;
+    }
+
+    /**
+     * Prints the hit, miss, latency and invalidation statistics of the settings caches of
+     * this process.
+     * @hide
+     */
+    public static void dumpStats(PrintWriter pw) {
+        pw.println("SlimSettings cache stats (pid " + Process.myPid() + " "
+                + ActivityThread.currentProcessName() + "):");
+        System.sNameValueCache.mStats.dump(pw);
+        Secure.sNameValueCache.mStats.dump(pw);
+        Global.sNameValueCache.mStats.dump(pw);
+        pw.flush();
+    }
+
+    /**
+     * Handed to the provider when a process first talks to it, so that
+     * {@code slimsettings stats} can dump the caches of any process.
+     */
+    private static final class StatsBinder extends Binder {
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            final int callingUid = Binder.getCallingUid();
+            if (callingUid != Process.SHELL_UID && callingUid != Process.ROOT_UID
+                    && callingUid != Process.SYSTEM_UID && callingUid != Process.myUid()) {
+                pw.println("Permission Denial: can't dump SlimSettings stats from uid "
+                        + callingUid);
+                return;
+            }
+            dumpStats(pw);
+        }
+    }
+
+    /**
+     * Receives changes of the Slim settings it was registered for.
+     * @hide
+     */
+    public interface OnSettingsChangedListener {
+        /**
+         * Called on the listener's executor with every key that changed since the previous
+         * call.  Changes that arrive in a short burst are delivered together.
+         * @param changes The changed keys mapped to their new values, null for unset keys.
+         */
+        void onSettingsChanged(Map<String, String> changes);
+    }
+
+    private static Executor handlerExecutor(final Handler handler) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * Watches a whole table with a single observer and routes changes to the listeners
+     * registered for the changed keys.  Changes arriving within DISPATCH_DELAY_MS of each
+     * other are merged into one dispatch per listener, and a listener only hears about keys
+     * whose value differs from the one it saw last.
+     */
+    private static final class ListenerRegistry extends ContentObserver {
+        private static final long DISPATCH_DELAY_MS = 20;
+
+        private static final class Registration {
+            final String[] keys;
+            final Executor executor;
+            final OnSettingsChangedListener listener;
+
+            // Null until the initial values are read; set with the registry locked, then
+            // only used on the dispatch thread.
+            ArrayMap<String, String> lastValues;
+
+            volatile boolean registered = true;
+
+            Registration(String[] keys, Executor executor, OnSettingsChangedListener listener) {
+                this.keys = keys;
+                this.executor = executor;
+                this.listener = listener;
+            }
+
+            void dispatch(final Map<String, String> changes) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (registered) {
+                            listener.onSettingsChanged(changes);
+                        }
+                    }
+                });
+            }
+        }
+
+        private final NameValueCache mCache;
+        private final Uri mUri;
+
+        // All below guarded by 'this'.  The observer is registered with mResolver while
+        // there is at least one registration.
+        private ContentResolver mResolver = null;
+        private final ArrayList<Registration> mRegistrations = new ArrayList<Registration>();
+        private final ArrayMap<String, ArrayList<Registration>> mRegistrationsByKey =
+                new ArrayMap<String, ArrayList<Registration>>();
+        private final ArraySet<String> mPendingKeys = new ArraySet<String>();
+        private boolean mPendingAll = false;
+        private boolean mDispatchScheduled = false;
+        // Incremented whenever a dispatch takes the pending changes
+        private int mDispatchCount = 0;
+
+        private final Runnable mDispatchRunnable = new Runnable() {
+            @Override
+            public void run() {
+                dispatchChanges();
+            }
+        };
+
+        ListenerRegistry(NameValueCache cache, Uri uri) {
+            super(null);
+            mCache = cache;
+            mUri = uri;
+        }
+
+        void register(ContentResolver resolver, String[] keys, Executor executor,
+                OnSettingsChangedListener listener) {
+            final Registration registration = new Registration(keys.clone(), executor,
+                    listener);
+
+            // Observe before reading the initial values, so no later change is missed
+            final int dispatchCount;
+            synchronized (this) {
+                if (mResolver == null) {
+                    mResolver = resolver;
+                    resolver.registerContentObserver(mUri, true, this, UserHandle.USER_ALL);
+                }
+                mRegistrations.add(registration);
+                for (String key : registration.keys) {
+                    ArrayList<Registration> registrations = mRegistrationsByKey.get(key);
+                    if (registrations == null) {
+                        registrations = new ArrayList<Registration>();
+                        mRegistrationsByKey.put(key, registrations);
+                    }
+                    if (!registrations.contains(registration)) {
+                        registrations.add(registration);
+                    }
+                }
+                dispatchCount = mDispatchCount;
+            }
+
+            // Start from the current values, so only real changes are reported
+            final String[] values = mCache.getStringsForUser(resolver, registration.keys,
+                    UserHandle.USER_CURRENT);
+            final ArrayMap<String, String> lastValues =
+                    new ArrayMap<String, String>(registration.keys.length);
+            for (int i = 0; i < registration.keys.length; i++) {
+                lastValues.put(registration.keys[i], values[i]);
+            }
+
+            synchronized (this) {
+                registration.lastValues = lastValues;
+                if (mDispatchCount != dispatchCount) {
+                    // Changes dispatched meanwhile skipped us and may be newer than what we
+                    // read; check our keys again
+                    for (String key : registration.keys) {
+                        mPendingKeys.add(key);
+                    }
+                    scheduleDispatch();
+                }
+            }
+        }
+
+        void unregister(OnSettingsChangedListener listener) {
+            synchronized (this) {
+                for (int i = mRegistrations.size() - 1; i >= 0; i--) {
+                    final Registration registration = mRegistrations.get(i);
+                    if (registration.listener != listener) {
+                        continue;
+                    }
+                    registration.registered = false;
+                    mRegistrations.remove(i);
+                    for (String key : registration.keys) {
+                        final ArrayList<Registration> registrations =
+                                mRegistrationsByKey.get(key);
+                        if (registrations != null && registrations.remove(registration)
+                                && registrations.isEmpty()) {
+                            mRegistrationsByKey.remove(key);
+                        }
+                    }
+                }
+                if (mRegistrations.isEmpty() && mResolver != null) {
+                    mResolver.unregisterContentObserver(this);
+                    mResolver = null;
+                }
+            }
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            final List<String> segments = (uri == null) ? null : uri.getPathSegments();
+            synchronized (this) {
+                if (segments != null && segments.size() > 1) {
+                    // content://slimsettings/<table>/<key>
+                    mPendingKeys.add(segments.get(segments.size() - 1));
+                } else {
+                    // The whole table changed; check every key somebody listens to
+                    mPendingAll = true;
+                }
+                scheduleDispatch();
+            }
+        }
+
+        // Called with 'this' held
+        private void scheduleDispatch() {
+            if (!mDispatchScheduled) {
+                mDispatchScheduled = true;
+                BackgroundThread.getHandler().postDelayed(mDispatchRunnable, DISPATCH_DELAY_MS);
+            }
+        }
+
+        private void dispatchChanges() {
+            final ArrayList<Registration> targets = new ArrayList<Registration>();
+            final ArraySet<String> keys = new ArraySet<String>();
+            final ContentResolver resolver;
+            synchronized (this) {
+                mDispatchScheduled = false;
+                mDispatchCount++;
+                resolver = mResolver;
+                if (mPendingAll) {
+                    for (Registration registration : mRegistrations) {
+                        if (registration.lastValues != null) {
+                            targets.add(registration);
+                        }
+                    }
+                    keys.addAll(mRegistrationsByKey.keySet());
+                } else {
+                    for (int i = 0; i < mPendingKeys.size(); i++) {
+                        final String key = mPendingKeys.valueAt(i);
+                        final ArrayList<Registration> registrations =
+                                mRegistrationsByKey.get(key);
+                        if (registrations == null) {
+                            continue;
+                        }
+                        keys.add(key);
+                        for (Registration registration : registrations) {
+                            // Still reading its initial values; register() checks again
+                            if (registration.lastValues == null) {
+                                continue;
+                            }
+                            if (!targets.contains(registration)) {
+                                targets.add(registration);
+                            }
+                        }
+                    }
+                }
+                mPendingAll = false;
+                mPendingKeys.clear();
+            }
+            if (resolver == null || keys.isEmpty()) {
+                return;
+            }
+
+            // Read every affected key in a single round-trip
+            final String[] names = keys.toArray(new String[keys.size()]);
+            final String[] values = mCache.getStringsForUser(resolver, names,
+                    UserHandle.USER_CURRENT);
+
+            for (Registration registration : targets) {
+                ArrayMap<String, String> changes = null;
+                for (int i = 0; i < names.length; i++) {
+                    final ArrayMap<String, String> lastValues = registration.lastValues;
+                    final int index = lastValues.indexOfKey(names[i]);
+                    if (index < 0 || TextUtils.equals(lastValues.valueAt(index), values[i])) {
+                        continue;
+                    }
+                    lastValues.setValueAt(index, values[i]);
+                    if (changes == null) {
+                        changes = new ArrayMap<String, String>();
+                    }
+                    changes.put(names[i], values[i]);
+                }
+                if (changes != null) {
+                    registration.dispatch(changes);
+                }
+            }
+        }
+    }
+
+    private static int[] parseInts(String[] values, int[] defs) {
+        final int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                result[i] = values[i] != null ? Integer.parseInt(values[i]) : defs[i];
+            } catch (NumberFormatException e) {
+                result[i] = defs[i];
+            }
+        }
+        return result;
+    }
+
+    private static long[] parseLongs(String[] values, long[] defs) {
+        final long[] result = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                result[i] = values[i] != null ? Long.parseLong(values[i]) : defs[i];
+            } catch (NumberFormatException e) {
+                result[i] = defs[i];
+            }
+        }
+        return result;
+    }
+
+    private static float[] parseFloats(String[] values, float[] defs) {
+        final float[] result = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                result[i] = values[i] != null ? Float.parseFloat(values[i]) : defs[i];
+            } catch (NumberFormatException e) {
+                result[i] = defs[i];
+            }
+        }
+        return result;
     }
 
     /**
@@ -413,6 +1376,11 @@ public final class SlimSettings {
      */
     public static final class System extends Settings.NameValueTable
             implements SlimSettingsKeys.System {
+        /**
+         * @deprecated Table versions are published through the shared generation registry;
+         * this property is no longer updated.
+         */
+        @Deprecated
         public static final String SYS_PROP_SLIM_SETTING_VERSION
                 = "sys.slim_setting_system_version";
 
@@ -423,10 +1391,20 @@ public final class SlimSettings {
             Uri.parse("content://" + AUTHORITY + "/system");
 
         private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_SLIM_SETTING_VERSION,
+                GenerationRegistry.TABLE_SYSTEM,
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM);
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_PUT_MULTI_SYSTEM,
+                CALL_METHOD_GET_MULTI_SYSTEM,
+                CALL_METHOD_GET_ALL_SYSTEM,
+                CALL_METHOD_GET_PREFIX_SYSTEM,
+                CALL_METHOD_CHANGES_SYSTEM,
+                CALL_METHOD_SNAPSHOT_SYSTEM,
+                SettingsSchema.SYSTEM);
+
+        private static final ListenerRegistry sListenerRegistry =
+                new ListenerRegistry(sNameValueCache, CONTENT_URI);
 
         private static final HashSet<String> MOVED_TO_SECURE;
         static {
@@ -462,25 +1440,180 @@ public final class SlimSettings {
          * @param name to look up in the table
          * @return the corresponding value, or null if not present
          */
-        public static String getString(ContentResolver resolver, String name) {
-            return getStringForUser(resolver, name, UserHandle.myUserId());
+        public static String getString(ContentResolver resolver, String name) {
+            return getStringForUser(resolver, name, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String getStringForUser(ContentResolver resolver, String name,
+                int userHandle) {
+            return getEntryForUser(resolver, name, userHandle).value;
+        }
+
+        private static CacheEntry getEntryForUser(ContentResolver resolver,
+                String name, int userHandle) {
+            android.util.SeempLog.record(android.util.SeempLog.getSeempGetApiIdFromValue(name));
+            if (MOVED_TO_SECURE.contains(name)) {
+                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
+                        + " to android.provider.Settings.Secure, returning read-only value.");
+                return Secure.getEntryForUser(resolver, name, userHandle);
+            }
+            if (MOVED_TO_GLOBAL.contains(name) || MOVED_TO_SECURE_THEN_GLOBAL.contains(name)) {
+                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
+                        + " to android.provider.Settings.Global, returning read-only value.");
+                return Global.getEntryForUser(resolver, name, userHandle);
+            }
+            return sNameValueCache.getEntryForUser(resolver, name, userHandle);
+        }
+
+        /**
+         * Look up several names in the database at once. Names that are not cached yet
+         * are fetched from the provider in a single round-trip.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values in the order of {@code names}, with null for
+         * each name that is not present
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            for (String name : names) {
+                if (MOVED_TO_SECURE.contains(name) || MOVED_TO_GLOBAL.contains(name)
+                        || MOVED_TO_SECURE_THEN_GLOBAL.contains(name)) {
+                    // Moved settings are redirected one by one
+                    final String[] values = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        values[i] = getStringForUser(resolver, names[i], userHandle);
+                    }
+                    return values;
+                }
+            }
+            return sNameValueCache.getStringsForUser(resolver, names, userHandle);
+        }
+
+        /**
+         * Registers a listener for changes of several system settings.  All keys of the table
+         * are watched by a single observer, changes that arrive in a burst are delivered
+         * together, and only keys whose value actually changed are reported.
+         * @param resolver to access the database with
+         * @param keys the names of the settings to listen to
+         * @param executor runs the listener
+         * @param listener receives the changed keys with their new values
+         * @hide
+         */
+        public static void registerListener(ContentResolver resolver, String[] keys,
+                Executor executor, OnSettingsChangedListener listener) {
+            sListenerRegistry.register(resolver, keys, executor, listener);
+        }
+
+        /**
+         * Like {@link #registerListener(ContentResolver, String[], Executor,
+         * OnSettingsChangedListener)}, but runs the listener on a {@link Handler}.
+         * @hide
+         */
+        public static void registerListener(ContentResolver resolver, String[] keys,
+                Handler handler, OnSettingsChangedListener listener) {
+            registerListener(resolver, keys, handlerExecutor(handler), listener);
+        }
+
+        /**
+         * Stops delivering changes to a listener registered with registerListener().
+         * @hide
+         */
+        public static void unregisterListener(OnSettingsChangedListener listener) {
+            sListenerRegistry.unregister(listener);
+        }
+
+        /**
+         * Convenience function for retrieving several system settings values
+         * as integers with a single provider round-trip.  The default value
+         * at the same index is used for each setting that is not defined or
+         * not an integer.
+         *
+         * @param cr The ContentResolver to access.
+         * @param names The names of the settings to retrieve.
+         * @param defs Values to return for settings that are not defined.
+         *
+         * @return The settings' current values in the order of {@code names}.
+         */
+        public static int[] getInts(ContentResolver cr, String[] names, int[] defs) {
+            return getIntsForUser(cr, names, defs, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static int[] getIntsForUser(ContentResolver cr, String[] names, int[] defs,
+                int userHandle) {
+            return parseInts(getStringsForUser(cr, names, userHandle), defs);
+        }
+
+        /**
+         * Convenience function for retrieving several system settings values
+         * as {@code long}s with a single provider round-trip.  The default value
+         * at the same index is used for each setting that is not defined or
+         * not a {@code long}.
+         *
+         * @param cr The ContentResolver to access.
+         * @param names The names of the settings to retrieve.
+         * @param defs Values to return for settings that are not defined.
+         *
+         * @return The settings' current values in the order of {@code names}.
+         */
+        public static long[] getLongs(ContentResolver cr, String[] names, long[] defs) {
+            return getLongsForUser(cr, names, defs, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static long[] getLongsForUser(ContentResolver cr, String[] names, long[] defs,
+                int userHandle) {
+            return parseLongs(getStringsForUser(cr, names, userHandle), defs);
+        }
+
+        /**
+         * Convenience function for retrieving several system settings values
+         * as floats with a single provider round-trip.  The default value
+         * at the same index is used for each setting that is not defined or
+         * not a valid float.
+         *
+         * @param cr The ContentResolver to access.
+         * @param names The names of the settings to retrieve.
+         * @param defs Values to return for settings that are not defined.
+         *
+         * @return The settings' current values in the order of {@code names}.
+         */
+        public static float[] getFloats(ContentResolver cr, String[] names, float[] defs) {
+            return getFloatsForUser(cr, names, defs, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static float[] getFloatsForUser(ContentResolver cr, String[] names, float[] defs,
+                int userHandle) {
+            return parseFloats(getStringsForUser(cr, names, userHandle), defs);
+        }
+
+        /**
+         * Retrieves every system setting whose name starts with a prefix, such as
+         * {@code "navigation_bar_"}, with a single provider round-trip.  Settings that
+         * moved to another table are not included.
+         *
+         * @param cr The ContentResolver to access.
+         * @param prefix The prefix of the names; empty for all settings.
+         *
+         * @return The names of the matching settings that are set, mapped to their values,
+         *     or {@code null} if they could not be read.
+         */
+        public static Map<String, String> getStringsWithPrefix(ContentResolver cr,
+                String prefix) {
+            return getStringsWithPrefixForUser(cr, prefix, UserHandle.myUserId());
         }
 
         /** @hide */
-        public static String getStringForUser(ContentResolver resolver, String name,
-                int userHandle) {
-            android.util.SeempLog.record(android.util.SeempLog.getSeempGetApiIdFromValue(name));
-            if (MOVED_TO_SECURE.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
-                        + " to android.provider.Settings.Secure, returning read-only value.");
-                return Secure.getStringForUser(resolver, name, userHandle);
-            }
-            if (MOVED_TO_GLOBAL.contains(name) || MOVED_TO_SECURE_THEN_GLOBAL.contains(name)) {
-                Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.System"
-                        + " to android.provider.Settings.Global, returning read-only value.");
-                return Global.getStringForUser(resolver, name, userHandle);
-            }
-            return sNameValueCache.getStringForUser(resolver, name, userHandle);
+        public static Map<String, String> getStringsWithPrefixForUser(ContentResolver cr,
+                String prefix, int userHandle) {
+            return sNameValueCache.getStringsWithPrefixForUser(cr, prefix, userHandle);
         }
 
         /**
@@ -511,6 +1644,35 @@ public final class SlimSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userHandle);
         }
 
+        /**
+         * Store several name/value pairs into the database at once.  Either all of them
+         * are written or none, and observers of the table are notified once.
+         * @param resolver to access the database with
+         * @param values the names to store, mapped to the values to associate with them
+         * @return true if the values were set, false on database errors
+         */
+        public static boolean putStrings(ContentResolver resolver, Map<String, String> values) {
+            return putStringsForUser(resolver, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userHandle) {
+            final ArrayMap<String, String> systemValues = new ArrayMap<String, String>(
+                    values.size());
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                final String name = entry.getKey();
+                if (MOVED_TO_SECURE.contains(name) || MOVED_TO_GLOBAL.contains(name)
+                        || MOVED_TO_SECURE_THEN_GLOBAL.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from"
+                            + " android.provider.Settings.System, value is unchanged.");
+                    continue;
+                }
+                systemValues.put(name, entry.getValue());
+            }
+            return sNameValueCache.putStringsForUser(resolver, systemValues, userHandle);
+        }
+
         /**
          * Construct the content URI for a particular name/value pair,
          * useful for monitoring changes with a ContentObserver.
@@ -551,12 +1713,7 @@ public final class SlimSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userHandle) {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, userHandle).getInt(def);
         }
 
         /**
@@ -585,12 +1742,11 @@ public final class SlimSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userHandle)
                 throws SlimSettingNotFoundException {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userHandle);
+            if (!entry.isInt()) {
                 throw new SlimSettingNotFoundException(name);
             }
+            return entry.getInt(0);
         }
 
         /**
@@ -637,14 +1793,7 @@ public final class SlimSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userHandle) {
-            String valString = getStringForUser(cr, name, userHandle);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getEntryForUser(cr, name, userHandle).getLong(def);
         }
 
         /**
@@ -672,12 +1821,11 @@ public final class SlimSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userHandle)
                 throws SlimSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userHandle);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userHandle);
+            if (!entry.isLong()) {
                 throw new SlimSettingNotFoundException(name);
             }
+            return entry.getLong(0);
         }
 
         /**
@@ -724,12 +1872,7 @@ public final class SlimSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userHandle) {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, userHandle).getFloat(def);
         }
 
         /**
@@ -758,15 +1901,11 @@ public final class SlimSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userHandle)
                 throws SlimSettingNotFoundException {
-            String v = getStringForUser(cr, name, userHandle);
-            if (v == null) {
-                throw new SlimSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userHandle);
+            if (!entry.isFloat()) {
                 throw new SlimSettingNotFoundException(name);
             }
+            return entry.getFloat(0);
         }
 
         /**
@@ -793,59 +1932,80 @@ public final class SlimSettings {
         }
 
         /** @hide */
-        public static final Validator WAKEUP_WHEN_PLUGGED_UNPLUGGED_VALIDATOR = sBooleanValidator;
+        public static final Validator WAKEUP_WHEN_PLUGGED_UNPLUGGED_VALIDATOR =
+                SettingsSchema.SYSTEM.get(WAKEUP_WHEN_PLUGGED_UNPLUGGED);
         /** @hide */
-        public static final Validator PROXIMITY_AUTO_SPEAKER_VALIDATOR = sBooleanValidator;
+        public static final Validator PROXIMITY_AUTO_SPEAKER_VALIDATOR =
+                SettingsSchema.SYSTEM.get(PROXIMITY_AUTO_SPEAKER);
         /** @hide */
         public static final Validator PROXIMITY_AUTO_SPEAKER_DELAY_VALIDATOR =
-                sNonNegativeIntegerValidator;
+                SettingsSchema.SYSTEM.get(PROXIMITY_AUTO_SPEAKER_DELAY);
         /** @hide */
         public static final Validator PROXIMITY_AUTO_SPEAKER_INCALL_ONLY_VALIDATOR =
-                sBooleanValidator;
+                SettingsSchema.SYSTEM.get(PROXIMITY_AUTO_SPEAKER_INCALL_ONLY);
         /** @hide */
-        public static final Validator STATUS_BAR_CLOCK_VALIDATOR = sBooleanValidator;
+        public static final Validator STATUS_BAR_CLOCK_VALIDATOR =
+                SettingsSchema.SYSTEM.get(STATUS_BAR_CLOCK);
         /** @hide */
-        public static final Validator STATUSBAR_CLOCK_AM_PM_STYLE_VALIDATOR = sThreewayValidator;
+        public static final Validator STATUSBAR_CLOCK_AM_PM_STYLE_VALIDATOR =
+                SettingsSchema.SYSTEM.get(STATUSBAR_CLOCK_AM_PM_STYLE);
         /** @hide */
-        public static final Validator STATUSBAR_CLOCK_STYLE_VALIDATOR = sThreewayValidator;
+        public static final Validator STATUSBAR_CLOCK_STYLE_VALIDATOR =
+                SettingsSchema.SYSTEM.get(STATUSBAR_CLOCK_STYLE);
         /** @hide */
-        public static final Validator STATUSBAR_CLOCK_COLOR_OVERRIDE_VALIDATOR = sBooleanValidator;
+        public static final Validator STATUSBAR_CLOCK_COLOR_OVERRIDE_VALIDATOR =
+                SettingsSchema.SYSTEM.get(STATUSBAR_CLOCK_COLOR_OVERRIDE);
         /** @hide */
-        public static final Validator STATUSBAR_CLOCK_DATE_DISPLAY_VALIDATOR = sThreewayValidator;
+        public static final Validator STATUSBAR_CLOCK_DATE_DISPLAY_VALIDATOR =
+                SettingsSchema.SYSTEM.get(STATUSBAR_CLOCK_DATE_DISPLAY);
         /** @hide */
-        public static final Validator STATUSBAR_CLOCK_DATE_STYLE_VALIDATOR = sThreewayValidator;
+        public static final Validator STATUSBAR_CLOCK_DATE_STYLE_VALIDATOR =
+                SettingsSchema.SYSTEM.get(STATUSBAR_CLOCK_DATE_STYLE);
         /** @hide */
-        public static final Validator STATUSBAR_CLOCK_DATE_POSITION_VALIDATOR = sBooleanValidator;
+        public static final Validator STATUSBAR_CLOCK_DATE_POSITION_VALIDATOR =
+                SettingsSchema.SYSTEM.get(STATUSBAR_CLOCK_DATE_POSITION);
         /** @hide */
-        public static final Validator DOZE_FADE_IN_PICKUP_VALIDATOR = sNonNegativeIntegerValidator;
+        public static final Validator DOZE_FADE_IN_PICKUP_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_FADE_IN_PICKUP);
         /** @hide */
         public static final Validator DOZE_FADE_IN_DOUBLETAP_VALIDATOR =
-                sNonNegativeIntegerValidator;
+                SettingsSchema.SYSTEM.get(DOZE_FADE_IN_DOUBLETAP);
         /** @hide */
-        public static final Validator DOZE_TIMEOUT_VALIDATOR = sNonNegativeIntegerValidator;
+        public static final Validator DOZE_TIMEOUT_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_TIMEOUT);
         /** @hide */
-        public static final Validator DOZE_FADE_OUT_VALIDATOR = sNonNegativeIntegerValidator;
+        public static final Validator DOZE_FADE_OUT_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_FADE_OUT);
         /** @hide */
         public static final Validator DOZE_BRIGHTNESS_VALIDATOR =
-                new InclusiveFloatRangeValidator(0, 1);
+                SettingsSchema.SYSTEM.get(DOZE_BRIGHTNESS);
         /** @hide */
-        public static final Validator DOZE_WAKEUP_DOUBLETAP_VALIDATOR = sBooleanValidator;
+        public static final Validator DOZE_WAKEUP_DOUBLETAP_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_WAKEUP_DOUBLETAP);
         /** @hide */
-        public static final Validator DOZE_TRIGGER_PICKUP_VALIDATOR = sBooleanValidator;
+        public static final Validator DOZE_TRIGGER_PICKUP_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_TRIGGER_PICKUP);
         /** @hide */
-        public static final Validator DOZE_TRIGGER_TILT_VALIDATOR = sBooleanValidator;
+        public static final Validator DOZE_TRIGGER_TILT_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_TRIGGER_TILT);
         /** @hide */
-        public static final Validator DOZE_TRIGGER_SIGMOTION_VALIDATOR = sBooleanValidator;
+        public static final Validator DOZE_TRIGGER_SIGMOTION_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_TRIGGER_SIGMOTION);
         /** @hide */
-        public static final Validator DOZE_TRIGGER_NOTIFICATION_VALIDATOR = sBooleanValidator;
+        public static final Validator DOZE_TRIGGER_NOTIFICATION_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_TRIGGER_NOTIFICATION);
         /** @hide */
-        public static final Validator DOZE_TRIGGER_HAND_WAVE_VALIDATOR = sBooleanValidator;
+        public static final Validator DOZE_TRIGGER_HAND_WAVE_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_TRIGGER_HAND_WAVE);
         /** @hide */
-        public static final Validator DOZE_TRIGGER_POCKET_VALIDATOR = sBooleanValidator;
+        public static final Validator DOZE_TRIGGER_POCKET_VALIDATOR =
+                SettingsSchema.SYSTEM.get(DOZE_TRIGGER_POCKET);
         /** @hide */
-//        public static final Validator DOZE_TRIGGER_DOUBLETAP_VALIDATOR = sBooleanValidator;
+//        public static final Validator DOZE_TRIGGER_DOUBLETAP_VALIDATOR =
+//                SettingsSchema.SYSTEM.get(DOZE_TRIGGER_DOUBLETAP);
         /** @hide */
-        public static final Validator PROXIMITY_ON_WAKE_VALIDATOR = sBooleanValidator;
+        public static final Validator PROXIMITY_ON_WAKE_VALIDATOR =
+                SettingsSchema.SYSTEM.get(PROXIMITY_ON_WAKE);
 
         /**
          * These are all public system settings
@@ -869,42 +2029,13 @@ public final class SlimSettings {
          * Mapping of validators for all system settings.  This map is used to validate both valid
          * keys as well as validating the values for those keys.
          *
-         * Note: Make sure if you add a new System setting you create a Validator for it and add
-         *       it to this map.
+         * Note: Make sure if you add a new System setting you declare its type in
+         *       {@link SettingsSchema#SYSTEM}.
          *
          * @hide
          */
         public static final Map<String, Validator> VALIDATORS =
-                new ArrayMap<String, Validator>();
-        static {
-            VALIDATORS.put(WAKEUP_WHEN_PLUGGED_UNPLUGGED, WAKEUP_WHEN_PLUGGED_UNPLUGGED_VALIDATOR);
-            VALIDATORS.put(PROXIMITY_AUTO_SPEAKER, PROXIMITY_AUTO_SPEAKER_VALIDATOR);
-            VALIDATORS.put(PROXIMITY_AUTO_SPEAKER_DELAY, PROXIMITY_AUTO_SPEAKER_DELAY_VALIDATOR);
-            VALIDATORS.put(PROXIMITY_AUTO_SPEAKER_INCALL_ONLY,
-                    PROXIMITY_AUTO_SPEAKER_INCALL_ONLY_VALIDATOR);
-            VALIDATORS.put(STATUS_BAR_CLOCK, STATUS_BAR_CLOCK_VALIDATOR);
-            VALIDATORS.put(STATUSBAR_CLOCK_AM_PM_STYLE, STATUSBAR_CLOCK_AM_PM_STYLE_VALIDATOR);
-            VALIDATORS.put(STATUSBAR_CLOCK_STYLE, STATUSBAR_CLOCK_STYLE_VALIDATOR);
-            VALIDATORS.put(STATUSBAR_CLOCK_COLOR_OVERRIDE,
-                    STATUSBAR_CLOCK_COLOR_OVERRIDE_VALIDATOR);
-            VALIDATORS.put(STATUSBAR_CLOCK_DATE_DISPLAY, STATUSBAR_CLOCK_DATE_DISPLAY_VALIDATOR);
-            VALIDATORS.put(STATUSBAR_CLOCK_DATE_STYLE, STATUSBAR_CLOCK_DATE_STYLE_VALIDATOR);
-            VALIDATORS.put(STATUSBAR_CLOCK_DATE_POSITION, STATUSBAR_CLOCK_DATE_POSITION_VALIDATOR);
-            VALIDATORS.put(DOZE_FADE_IN_PICKUP, DOZE_FADE_IN_PICKUP_VALIDATOR);
-            VALIDATORS.put(DOZE_FADE_IN_DOUBLETAP, DOZE_FADE_IN_DOUBLETAP_VALIDATOR);
-            VALIDATORS.put(DOZE_TIMEOUT, DOZE_TIMEOUT_VALIDATOR);
-            VALIDATORS.put(DOZE_FADE_OUT, DOZE_FADE_OUT_VALIDATOR);
-            VALIDATORS.put(DOZE_BRIGHTNESS, DOZE_BRIGHTNESS_VALIDATOR);
-            VALIDATORS.put(DOZE_WAKEUP_DOUBLETAP, DOZE_WAKEUP_DOUBLETAP_VALIDATOR);
-            VALIDATORS.put(DOZE_TRIGGER_PICKUP, DOZE_TRIGGER_PICKUP_VALIDATOR);
-            VALIDATORS.put(DOZE_TRIGGER_TILT, DOZE_TRIGGER_TILT_VALIDATOR);
-            VALIDATORS.put(DOZE_TRIGGER_SIGMOTION, DOZE_TRIGGER_SIGMOTION_VALIDATOR);
-            VALIDATORS.put(DOZE_TRIGGER_NOTIFICATION, DOZE_TRIGGER_NOTIFICATION_VALIDATOR);
-            VALIDATORS.put(DOZE_TRIGGER_HAND_WAVE, DOZE_TRIGGER_HAND_WAVE_VALIDATOR);
-            VALIDATORS.put(DOZE_TRIGGER_POCKET, DOZE_TRIGGER_POCKET_VALIDATOR);
-//            VALIDATORS.put(DOZE_TRIGGER_DOUBLETAP, DOZE_TRIGGER_DOUBLETAP_VALIDATOR);
-            VALIDATORS.put(PROXIMITY_ON_WAKE, PROXIMITY_ON_WAKE_VALIDATOR);
-        };
+                Collections.<String, Validator>unmodifiableMap(SettingsSchema.SYSTEM);
     }
 
     /**
@@ -915,6 +2046,11 @@ public final class SlimSettings {
      */
     public static final class Secure extends Settings.NameValueTable
             implements SlimSettingsKeys.Secure {
+        /**
+         * @deprecated Table versions are published through the shared generation registry;
+         * this property is no longer updated.
+         */
+        @Deprecated
         public static final String SYS_PROP_SLIM_SETTING_VERSION
                 = "sys.slim_setting_secure_version";
 
@@ -926,10 +2062,20 @@ public final class SlimSettings {
 
         // Populated lazily, guarded by class object:
         private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_SLIM_SETTING_VERSION,
+                GenerationRegistry.TABLE_SECURE,
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE);
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_PUT_MULTI_SECURE,
+                CALL_METHOD_GET_MULTI_SECURE,
+                CALL_METHOD_GET_ALL_SECURE,
+                CALL_METHOD_GET_PREFIX_SECURE,
+                CALL_METHOD_CHANGES_SECURE,
+                CALL_METHOD_SNAPSHOT_SECURE,
+                SettingsSchema.SECURE);
+
+        private static final ListenerRegistry sListenerRegistry =
+                new ListenerRegistry(sNameValueCache, CONTENT_URI);
 
         private static ILockSettings sLockSettings = null;
 
@@ -960,10 +2106,15 @@ public final class SlimSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userHandle) {
+            return getEntryForUser(resolver, name, userHandle).value;
+        }
+
+        private static CacheEntry getEntryForUser(ContentResolver resolver,
+                String name, int userHandle) {
             if (MOVED_TO_GLOBAL.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.Secure"
                         + " to android.provider.Settings.Global.");
-                return Global.getStringForUser(resolver, name, userHandle);
+                return Global.getEntryForUser(resolver, name, userHandle);
             }
 
             if (MOVED_TO_LOCK_SETTINGS.contains(name)) {
@@ -985,7 +2136,8 @@ public final class SlimSettings {
                             <= VERSION_CODES.LOLLIPOP_MR1;
                     if (isPreMnc) {
                         try {
-                            return sLockSettings.getString(name, "0", userHandle);
+                            return CacheEntry.of(
+                                    sLockSettings.getString(name, "0", userHandle));
                         } catch (RemoteException re) {
                             // Fall through
                         }
@@ -997,7 +2149,156 @@ public final class SlimSettings {
                 }
             }
 
-            return sNameValueCache.getStringForUser(resolver, name, userHandle);
+            return sNameValueCache.getEntryForUser(resolver, name, userHandle);
+        }
+
+        /**
+         * Look up several names in the database at once. Names that are not cached yet
+         * are fetched from the provider in a single round-trip.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values in the order of {@code names}, with null for
+         * each name that is not present
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            for (String name : names) {
+                if (MOVED_TO_GLOBAL.contains(name) || MOVED_TO_LOCK_SETTINGS.contains(name)) {
+                    // Moved settings are redirected one by one
+                    final String[] values = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        values[i] = getStringForUser(resolver, names[i], userHandle);
+                    }
+                    return values;
+                }
+            }
+            return sNameValueCache.getStringsForUser(resolver, names, userHandle);
+        }
+
+        /**
+         * Registers a listener for changes of several secure settings.  All keys of the table
+         * are watched by a single observer, changes that arrive in a burst are delivered
+         * together, and only keys whose value actually changed are reported.
+         * @param resolver to access the database with
+         * @param keys the names of the settings to listen to
+         * @param executor runs the listener
+         * @param listener receives the changed keys with their new values
+         * @hide
+         */
+        public static void registerListener(ContentResolver resolver, String[] keys,
+                Executor executor, OnSettingsChangedListener listener) {
+            sListenerRegistry.register(resolver, keys, executor, listener);
+        }
+
+        /**
+         * Like {@link #registerListener(ContentResolver, String[], Executor,
+         * OnSettingsChangedListener)}, but runs the listener on a {@link Handler}.
+         * @hide
+         */
+        public static void registerListener(ContentResolver resolver, String[] keys,
+                Handler handler, OnSettingsChangedListener listener) {
+            registerListener(resolver, keys, handlerExecutor(handler), listener);
+        }
+
+        /**
+         * Stops delivering changes to a listener registered with registerListener().
+         * @hide
+         */
+        public static void unregisterListener(OnSettingsChangedListener listener) {
+            sListenerRegistry.unregister(listener);
+        }
+
+        /**
+         * Convenience function for retrieving several secure settings values
+         * as integers with a single provider round-trip.  The default value
+         * at the same index is used for each setting that is not defined or
+         * not an integer.
+         *
+         * @param cr The ContentResolver to access.
+         * @param names The names of the settings to retrieve.
+         * @param defs Values to return for settings that are not defined.
+         *
+         * @return The settings' current values in the order of {@code names}.
+         */
+        public static int[] getInts(ContentResolver cr, String[] names, int[] defs) {
+            return getIntsForUser(cr, names, defs, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static int[] getIntsForUser(ContentResolver cr, String[] names, int[] defs,
+                int userHandle) {
+            return parseInts(getStringsForUser(cr, names, userHandle), defs);
+        }
+
+        /**
+         * Convenience function for retrieving several secure settings values
+         * as {@code long}s with a single provider round-trip.  The default value
+         * at the same index is used for each setting that is not defined or
+         * not a {@code long}.
+         *
+         * @param cr The ContentResolver to access.
+         * @param names The names of the settings to retrieve.
+         * @param defs Values to return for settings that are not defined.
+         *
+         * @return The settings' current values in the order of {@code names}.
+         */
+        public static long[] getLongs(ContentResolver cr, String[] names, long[] defs) {
+            return getLongsForUser(cr, names, defs, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static long[] getLongsForUser(ContentResolver cr, String[] names, long[] defs,
+                int userHandle) {
+            return parseLongs(getStringsForUser(cr, names, userHandle), defs);
+        }
+
+        /**
+         * Convenience function for retrieving several secure settings values
+         * as floats with a single provider round-trip.  The default value
+         * at the same index is used for each setting that is not defined or
+         * not a valid float.
+         *
+         * @param cr The ContentResolver to access.
+         * @param names The names of the settings to retrieve.
+         * @param defs Values to return for settings that are not defined.
+         *
+         * @return The settings' current values in the order of {@code names}.
+         */
+        public static float[] getFloats(ContentResolver cr, String[] names, float[] defs) {
+            return getFloatsForUser(cr, names, defs, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static float[] getFloatsForUser(ContentResolver cr, String[] names, float[] defs,
+                int userHandle) {
+            return parseFloats(getStringsForUser(cr, names, userHandle), defs);
+        }
+
+        /**
+         * Retrieves every secure setting whose name starts with a prefix, such as
+         * {@code "navigation_bar_"}, with a single provider round-trip.  Settings that
+         * moved to another table are not included.
+         *
+         * @param cr The ContentResolver to access.
+         * @param prefix The prefix of the names; empty for all settings.
+         *
+         * @return The names of the matching settings that are set, mapped to their values,
+         *     or {@code null} if they could not be read.
+         */
+        public static Map<String, String> getStringsWithPrefix(ContentResolver cr,
+                String prefix) {
+            return getStringsWithPrefixForUser(cr, prefix, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Map<String, String> getStringsWithPrefixForUser(ContentResolver cr,
+                String prefix, int userHandle) {
+            return sNameValueCache.getStringsWithPrefixForUser(cr, prefix, userHandle);
         }
 
         /**
@@ -1022,6 +2323,40 @@ public final class SlimSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userHandle);
         }
 
+        /**
+         * Store several name/value pairs into the database at once.  Either all of them
+         * are written or none, and observers of the table are notified once.
+         * @param resolver to access the database with
+         * @param values the names to store, mapped to the values to associate with them
+         * @return true if the values were set, false on database errors
+         */
+        public static boolean putStrings(ContentResolver resolver, Map<String, String> values) {
+            return putStringsForUser(resolver, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userHandle) {
+            final ArrayMap<String, String> secureValues = new ArrayMap<String, String>(
+                    values.size());
+            final ArrayMap<String, String> globalValues = new ArrayMap<String, String>();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (MOVED_TO_GLOBAL.contains(entry.getKey())) {
+                    Log.w(TAG, "Setting " + entry.getKey() + " has moved from"
+                            + " android.provider.Settings.Secure"
+                            + " to android.provider.Settings.Global");
+                    globalValues.put(entry.getKey(), entry.getValue());
+                } else {
+                    secureValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (!globalValues.isEmpty()
+                    && !Global.putStringsForUser(resolver, globalValues, userHandle)) {
+                return false;
+            }
+            return sNameValueCache.putStringsForUser(resolver, secureValues, userHandle);
+        }
+
         /**
          * Construct the content URI for a particular name/value pair,
          * useful for monitoring changes with a ContentObserver.
@@ -1057,12 +2392,7 @@ public final class SlimSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userHandle) {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, userHandle).getInt(def);
         }
 
         /**
@@ -1091,12 +2421,11 @@ public final class SlimSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userHandle)
                 throws SlimSettingNotFoundException {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userHandle);
+            if (!entry.isInt()) {
                 throw new SlimSettingNotFoundException(name);
             }
+            return entry.getInt(0);
         }
 
         /**
@@ -1143,14 +2472,7 @@ public final class SlimSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userHandle) {
-            String valString = getStringForUser(cr, name, userHandle);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getEntryForUser(cr, name, userHandle).getLong(def);
         }
 
         /**
@@ -1178,12 +2500,11 @@ public final class SlimSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userHandle)
                 throws SlimSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userHandle);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userHandle);
+            if (!entry.isLong()) {
                 throw new SlimSettingNotFoundException(name);
             }
+            return entry.getLong(0);
         }
 
         /**
@@ -1230,12 +2551,7 @@ public final class SlimSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userHandle) {
-            String v = getStringForUser(cr, name, userHandle);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, userHandle).getFloat(def);
         }
 
         /**
@@ -1264,15 +2580,11 @@ public final class SlimSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userHandle)
                 throws SlimSettingNotFoundException {
-            String v = getStringForUser(cr, name, userHandle);
-            if (v == null) {
-                throw new SlimSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userHandle);
+            if (!entry.isFloat()) {
                 throw new SlimSettingNotFoundException(name);
             }
+            return entry.getFloat(0);
         }
 
         /**
@@ -1300,21 +2612,19 @@ public final class SlimSettings {
 
         /** @hide */
         public static final Validator CHAMBER_OF_SECRETS_VALIDATOR =
-                sBooleanValidator;
+                SettingsSchema.SECURE.get(CHAMBER_OF_SECRETS);
 
         /**
          * Mapping of validators for all secure settings.  This map is used to validate both valid
          * keys as well as validating the values for those keys.
          *
-         * Note: Make sure if you add a new Secure setting you create a Validator for it and add
-         *       it to this map.
+         * Note: Make sure if you add a new Secure setting you declare its type in
+         *       {@link SettingsSchema#SECURE}.
          *
          * @hide
          */
-        public static final Map<String, Validator> VALIDATORS = new ArrayMap<>();
-        static {
-            VALIDATORS.put(CHAMBER_OF_SECRETS, CHAMBER_OF_SECRETS_VALIDATOR);
-        }
+        public static final Map<String, Validator> VALIDATORS =
+                Collections.<String, Validator>unmodifiableMap(SettingsSchema.SECURE);
     }
 
     /**
@@ -1325,6 +2635,11 @@ public final class SlimSettings {
      */
     public static final class Global extends Settings.NameValueTable
             implements SlimSettingsKeys.Global {
+        /**
+         * @deprecated Table versions are published through the shared generation registry;
+         * this property is no longer updated.
+         */
+        @Deprecated
         public static final String SYS_PROP_SLIM_SETTING_VERSION
                 = "sys.slim_setting_global_version";
 
@@ -1335,10 +2650,20 @@ public final class SlimSettings {
 
         // Populated lazily, guarded by class object:
         private static NameValueCache sNameValueCache = new NameValueCache(
-                    SYS_PROP_SLIM_SETTING_VERSION,
+                    GenerationRegistry.TABLE_GLOBAL,
                     CONTENT_URI,
                     CALL_METHOD_GET_GLOBAL,
-                    CALL_METHOD_PUT_GLOBAL);
+                    CALL_METHOD_PUT_GLOBAL,
+                    CALL_METHOD_PUT_MULTI_GLOBAL,
+                    CALL_METHOD_GET_MULTI_GLOBAL,
+                    CALL_METHOD_GET_ALL_GLOBAL,
+                    CALL_METHOD_GET_PREFIX_GLOBAL,
+                    CALL_METHOD_CHANGES_GLOBAL,
+                    CALL_METHOD_SNAPSHOT_GLOBAL,
+                    SettingsSchema.GLOBAL);
+
+        private static final ListenerRegistry sListenerRegistry =
+                new ListenerRegistry(sNameValueCache, CONTENT_URI);
 
         // Certain settings have been moved from global to the per-user secure namespace
         private static final HashSet<String> MOVED_TO_SECURE;
@@ -1364,12 +2689,166 @@ public final class SlimSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userHandle) {
+            return getEntryForUser(resolver, name, userHandle).value;
+        }
+
+        private static CacheEntry getEntryForUser(ContentResolver resolver,
+                String name, int userHandle) {
             if (MOVED_TO_SECURE.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from android.provider.Settings.Global"
                         + " to android.provider.Settings.Secure, returning read-only value.");
-                return Secure.getStringForUser(resolver, name, userHandle);
+                return Secure.getEntryForUser(resolver, name, userHandle);
+            }
+            return sNameValueCache.getEntryForUser(resolver, name, userHandle);
+        }
+
+        /**
+         * Look up several names in the database at once. Names that are not cached yet
+         * are fetched from the provider in a single round-trip.
+         * @param resolver to access the database with
+         * @param names to look up in the table
+         * @return the corresponding values in the order of {@code names}, with null for
+         * each name that is not present
+         */
+        public static String[] getStrings(ContentResolver resolver, String[] names) {
+            return getStringsForUser(resolver, names, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static String[] getStringsForUser(ContentResolver resolver, String[] names,
+                int userHandle) {
+            for (String name : names) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    // Moved settings are redirected one by one
+                    final String[] values = new String[names.length];
+                    for (int i = 0; i < names.length; i++) {
+                        values[i] = getStringForUser(resolver, names[i], userHandle);
+                    }
+                    return values;
+                }
             }
-            return sNameValueCache.getStringForUser(resolver, name, userHandle);
+            return sNameValueCache.getStringsForUser(resolver, names, userHandle);
+        }
+
+        /**
+         * Registers a listener for changes of several global settings.  All keys of the table
+         * are watched by a single observer, changes that arrive in a burst are delivered
+         * together, and only keys whose value actually changed are reported.
+         * @param resolver to access the database with
+         * @param keys the names of the settings to listen to
+         * @param executor runs the listener
+         * @param listener receives the changed keys with their new values
+         * @hide
+         */
+        public static void registerListener(ContentResolver resolver, String[] keys,
+                Executor executor, OnSettingsChangedListener listener) {
+            sListenerRegistry.register(resolver, keys, executor, listener);
+        }
+
+        /**
+         * Like {@link #registerListener(ContentResolver, String[], Executor,
+         * OnSettingsChangedListener)}, but runs the listener on a {@link Handler}.
+         * @hide
+         */
+        public static void registerListener(ContentResolver resolver, String[] keys,
+                Handler handler, OnSettingsChangedListener listener) {
+            registerListener(resolver, keys, handlerExecutor(handler), listener);
+        }
+
+        /**
+         * Stops delivering changes to a listener registered with registerListener().
+         * @hide
+         */
+        public static void unregisterListener(OnSettingsChangedListener listener) {
+            sListenerRegistry.unregister(listener);
+        }
+
+        /**
+         * Convenience function for retrieving several global settings values
+         * as integers with a single provider round-trip.  The default value
+         * at the same index is used for each setting that is not defined or
+         * not an integer.
+         *
+         * @param cr The ContentResolver to access.
+         * @param names The names of the settings to retrieve.
+         * @param defs Values to return for settings that are not defined.
+         *
+         * @return The settings' current values in the order of {@code names}.
+         */
+        public static int[] getInts(ContentResolver cr, String[] names, int[] defs) {
+            return getIntsForUser(cr, names, defs, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static int[] getIntsForUser(ContentResolver cr, String[] names, int[] defs,
+                int userHandle) {
+            return parseInts(getStringsForUser(cr, names, userHandle), defs);
+        }
+
+        /**
+         * Convenience function for retrieving several global settings values
+         * as {@code long}s with a single provider round-trip.  The default value
+         * at the same index is used for each setting that is not defined or
+         * not a {@code long}.
+         *
+         * @param cr The ContentResolver to access.
+         * @param names The names of the settings to retrieve.
+         * @param defs Values to return for settings that are not defined.
+         *
+         * @return The settings' current values in the order of {@code names}.
+         */
+        public static long[] getLongs(ContentResolver cr, String[] names, long[] defs) {
+            return getLongsForUser(cr, names, defs, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static long[] getLongsForUser(ContentResolver cr, String[] names, long[] defs,
+                int userHandle) {
+            return parseLongs(getStringsForUser(cr, names, userHandle), defs);
+        }
+
+        /**
+         * Convenience function for retrieving several global settings values
+         * as floats with a single provider round-trip.  The default value
+         * at the same index is used for each setting that is not defined or
+         * not a valid float.
+         *
+         * @param cr The ContentResolver to access.
+         * @param names The names of the settings to retrieve.
+         * @param defs Values to return for settings that are not defined.
+         *
+         * @return The settings' current values in the order of {@code names}.
+         */
+        public static float[] getFloats(ContentResolver cr, String[] names, float[] defs) {
+            return getFloatsForUser(cr, names, defs, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static float[] getFloatsForUser(ContentResolver cr, String[] names, float[] defs,
+                int userHandle) {
+            return parseFloats(getStringsForUser(cr, names, userHandle), defs);
+        }
+
+        /**
+         * Retrieves every global setting whose name starts with a prefix, such as
+         * {@code "navigation_bar_"}, with a single provider round-trip.  Settings that
+         * moved to another table are not included.
+         *
+         * @param cr The ContentResolver to access.
+         * @param prefix The prefix of the names; empty for all settings.
+         *
+         * @return The names of the matching settings that are set, mapped to their values,
+         *     or {@code null} if they could not be read.
+         */
+        public static Map<String, String> getStringsWithPrefix(ContentResolver cr,
+                String prefix) {
+            return getStringsWithPrefixForUser(cr, prefix, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static Map<String, String> getStringsWithPrefixForUser(ContentResolver cr,
+                String prefix, int userHandle) {
+            return sNameValueCache.getStringsWithPrefixForUser(cr, prefix, userHandle);
         }
 
         /**
@@ -1400,6 +2879,41 @@ public final class SlimSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userHandle);
         }
 
+        /**
+         * Store several name/value pairs into the database at once.  Either all of them
+         * are written or none, and observers of the table are notified once.
+         * @param resolver to access the database with
+         * @param values the names to store, mapped to the values to associate with them
+         * @return true if the values were set, false on database errors
+         */
+        public static boolean putStrings(ContentResolver resolver, Map<String, String> values) {
+            return putStringsForUser(resolver, values, UserHandle.myUserId());
+        }
+
+        /** @hide */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userHandle) {
+            // Global and Secure have the same access policy so we can forward writes
+            final ArrayMap<String, String> globalValues = new ArrayMap<String, String>(
+                    values.size());
+            final ArrayMap<String, String> secureValues = new ArrayMap<String, String>();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (MOVED_TO_SECURE.contains(entry.getKey())) {
+                    Log.w(TAG, "Setting " + entry.getKey() + " has moved from"
+                            + " android.provider.Settings.Global"
+                            + " to android.provider.Settings.Secure");
+                    secureValues.put(entry.getKey(), entry.getValue());
+                } else {
+                    globalValues.put(entry.getKey(), entry.getValue());
+                }
+            }
+            if (!secureValues.isEmpty()
+                    && !Secure.putStringsForUser(resolver, secureValues, userHandle)) {
+                return false;
+            }
+            return sNameValueCache.putStringsForUser(resolver, globalValues, userHandle);
+        }
+
         /**
          * Construct the content URI for a particular name/value pair,
          * useful for monitoring changes with a ContentObserver.
@@ -1425,12 +2939,7 @@ public final class SlimSettings {
          * or not a valid integer.
          */
         public static int getInt(ContentResolver cr, String name, int def) {
-            String v = getString(cr, name);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, UserHandle.myUserId()).getInt(def);
         }
 
         /**
@@ -1453,12 +2962,11 @@ public final class SlimSettings {
          */
         public static int getInt(ContentResolver cr, String name)
                 throws SlimSettingNotFoundException {
-            String v = getString(cr, name);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, UserHandle.myUserId());
+            if (!entry.isInt()) {
                 throw new SlimSettingNotFoundException(name);
             }
+            return entry.getInt(0);
         }
 
         /**
@@ -1493,14 +3001,7 @@ public final class SlimSettings {
          * or not a valid {@code long}.
          */
         public static long getLong(ContentResolver cr, String name, long def) {
-            String valString = getString(cr, name);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            return getEntryForUser(cr, name, UserHandle.myUserId()).getLong(def);
         }
 
         /**
@@ -1522,12 +3023,11 @@ public final class SlimSettings {
          */
         public static long getLong(ContentResolver cr, String name)
                 throws SlimSettingNotFoundException {
-            String valString = getString(cr, name);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, UserHandle.myUserId());
+            if (!entry.isLong()) {
                 throw new SlimSettingNotFoundException(name);
             }
+            return entry.getLong(0);
         }
 
         /**
@@ -1562,12 +3062,7 @@ public final class SlimSettings {
          * or not a valid float.
          */
         public static float getFloat(ContentResolver cr, String name, float def) {
-            String v = getString(cr, name);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            return getEntryForUser(cr, name, UserHandle.myUserId()).getFloat(def);
         }
 
         /**
@@ -1590,15 +3085,11 @@ public final class SlimSettings {
          */
         public static float getFloat(ContentResolver cr, String name)
                 throws SlimSettingNotFoundException {
-            String v = getString(cr, name);
-            if (v == null) {
-                throw new SlimSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, UserHandle.myUserId());
+            if (!entry.isFloat()) {
                 throw new SlimSettingNotFoundException(name);
             }
+            return entry.getFloat(0);
         }
 
         /**
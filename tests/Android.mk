@@ -0,0 +1,35 @@
+# Copyright (C) 2017 SlimRoms Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+LOCAL_PATH := $(call my-dir)
+
+# Host tests and benchmarks of the framework classes that don't depend on Android
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := org.slim.framework-hosttests
+LOCAL_MODULE_TAGS := tests
+
+# SettingsSchema only needs SlimSettings for its Validator interface, which stubs/ declares
+LOCAL_SRC_FILES := $(call all-java-files-under,src) \
+    $(call all-java-files-under,stubs) \
+    ../src/slim/provider/CacheEntry.java \
+    ../src/slim/provider/CacheStats.java \
+    ../src/slim/provider/GenerationRegistry.java \
+    ../src/slim/provider/SettingsSchema.java \
+    ../src/slim/provider/SettingsSnapshot.java \
+    ../src/slim/provider/SlimSettingsKeys.java
+
+LOCAL_STATIC_JAVA_LIBRARIES := junit-host
+
+include $(BUILD_HOST_JAVA_LIBRARY)
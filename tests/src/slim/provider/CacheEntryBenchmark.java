@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Times typed reads of a cached value, parsing the string on every read as the typed
+ * getters of {@link SlimSettings} used to, and through the parsed forms a
+ * {@link CacheEntry} keeps. Bytes allocated per read come from the host JVM's per-thread
+ * allocation counter.
+ * <p>
+ * Run with:
+ * <pre>
+ *   java -cp org.slim.framework-hosttests.jar slim.provider.CacheEntryBenchmark
+ * </pre>
+ */
+public class CacheEntryBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final long ROUND_NANOS = 1000L * 1000 * 1000;
+
+    // Keeps the JIT from dropping the reads
+    private static volatile long sSink;
+
+    private interface Op {
+        long run(int i);
+    }
+
+    public static void main(String[] args) {
+        // A few values each, so the JIT can't hoist the parsing out of the loop
+        final String[] intValues = { "3000", "1", "255", "-16777216" };
+        final String[] longValues = { "1500000000000", "86400000", "0", "-1" };
+        final String[] floatValues = { "0.35", "1.0", "0.5", "2" };
+        final CacheEntry[] intEntries = entries(intValues);
+        final CacheEntry[] longEntries = entries(longValues);
+        final CacheEntry[] floatEntries = entries(floatValues);
+
+        System.out.println(String.format("%-24s %10s %12s", "read", "ns/op", "bytes/op"));
+        run("int, parse each read", new Op() {
+            @Override
+            public long run(int i) {
+                return Integer.parseInt(intValues[i & 3]);
+            }
+        });
+        run("int, cached", new Op() {
+            @Override
+            public long run(int i) {
+                return intEntries[i & 3].getInt(0);
+            }
+        });
+        run("long, parse each read", new Op() {
+            @Override
+            public long run(int i) {
+                return Long.parseLong(longValues[i & 3]);
+            }
+        });
+        run("long, cached", new Op() {
+            @Override
+            public long run(int i) {
+                return longEntries[i & 3].getLong(0);
+            }
+        });
+        run("float, parse each read", new Op() {
+            @Override
+            public long run(int i) {
+                return Float.floatToRawIntBits(Float.parseFloat(floatValues[i & 3]));
+            }
+        });
+        run("float, cached", new Op() {
+            @Override
+            public long run(int i) {
+                return Float.floatToRawIntBits(floatEntries[i & 3].getFloat(0));
+            }
+        });
+    }
+
+    private static CacheEntry[] entries(String[] values) {
+        final CacheEntry[] entries = new CacheEntry[values.length];
+        for (int i = 0; i < values.length; i++) {
+            entries[i] = new CacheEntry(values[i], null);
+        }
+        return entries;
+    }
+
+    private static void run(String name, Op op) {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        double best = Double.MAX_VALUE;
+        double bytes = 0;
+        // The first round warms up the JIT and is not reported
+        for (int round = 0; round <= ROUNDS; round++) {
+            long sink = 0;
+            long count = 0;
+            final long allocated = threads.getThreadAllocatedBytes(thread);
+            final long start = System.nanoTime();
+            long elapsed;
+            do {
+                for (int i = 0; i < 1000; i++) {
+                    sink += op.run(i);
+                }
+                count += 1000;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ROUND_NANOS);
+            final long allocatedBytes = threads.getThreadAllocatedBytes(thread) - allocated;
+            sSink = sink;
+            if (round > 0 && (double) elapsed / count < best) {
+                best = (double) elapsed / count;
+                bytes = (double) allocatedBytes / count;
+            }
+        }
+        System.out.println(String.format("%-24s %10.1f %12.1f", name, best, bytes));
+    }
+}
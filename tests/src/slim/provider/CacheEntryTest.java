@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CacheEntryTest {
+
+    @Test
+    public void testInt() {
+        final CacheEntry entry = CacheEntry.of("42");
+        assertTrue(entry.isInt());
+        assertEquals(42, entry.getInt(-1));
+        // Asked again, the parsed form is used
+        assertEquals(42, entry.getInt(-1));
+        assertTrue(entry.isLong());
+        assertEquals(42L, entry.getLong(-1));
+        assertTrue(entry.isFloat());
+        assertEquals(42f, entry.getFloat(-1), 0f);
+    }
+
+    @Test
+    public void testEachFormParsesOnItsOwn() {
+        final CacheEntry longValue = CacheEntry.of("9999999999");
+        assertFalse(longValue.isInt());
+        assertEquals(-1, longValue.getInt(-1));
+        assertEquals(9999999999L, longValue.getLong(-1));
+
+        final CacheEntry floatValue = CacheEntry.of("0.5");
+        assertFalse(floatValue.isInt());
+        assertFalse(floatValue.isLong());
+        assertEquals(0.5f, floatValue.getFloat(-1), 0f);
+    }
+
+    @Test
+    public void testNotANumber() {
+        final CacheEntry entry = CacheEntry.of("abc");
+        assertFalse(entry.isInt());
+        assertFalse(entry.isLong());
+        assertFalse(entry.isFloat());
+        assertEquals(7, entry.getInt(7));
+        assertEquals(7L, entry.getLong(7));
+        assertEquals(7f, entry.getFloat(7), 0f);
+        assertEquals("abc", entry.value);
+    }
+
+    @Test
+    public void testNotSet() {
+        assertSame(CacheEntry.NULL, CacheEntry.of(null));
+        final CacheEntry entry = new CacheEntry(null, null);
+        assertNull(entry.value);
+        assertFalse(entry.isInt());
+        assertFalse(entry.isLong());
+        assertFalse(entry.isFloat());
+        assertEquals(3, entry.getInt(3));
+    }
+
+    @Test
+    public void testConcurrentReadersAgree() throws InterruptedException {
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        for (int i = 0; i < 1000; i++) {
+            final int expected = i * 31;
+            final CacheEntry entry = new CacheEntry(Integer.toString(expected), null);
+            final Thread[] readers = new Thread[3];
+            for (int r = 0; r < readers.length; r++) {
+                readers[r] = new Thread() {
+                    @Override
+                    public void run() {
+                        if (entry.getInt(-1) != expected || entry.getLong(-1) != expected) {
+                            failure.compareAndSet(null, "Wrong value for " + entry.value);
+                        }
+                    }
+                };
+                readers[r].start();
+            }
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertNull(failure.get());
+    }
+}
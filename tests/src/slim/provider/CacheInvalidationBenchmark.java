@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+
+/**
+ * Measures the hit rate of a reader that never reads the key being written, while the
+ * provider keeps writing it, as when a seek bar is dragged. The reader's cache follows a
+ * {@link GenerationRegistry} mapped from a temp file, the way a client's NameValueCache
+ * does, and is invalidated either per key or, as before the registry, as a whole table.
+ * Every miss stands for a binder call to the provider.
+ * <p>
+ * Run with:
+ * <pre>
+ *   java -cp org.slim.framework-hosttests.jar slim.provider.CacheInvalidationBenchmark \
+ *       [reader keys]
+ * </pre>
+ */
+public class CacheInvalidationBenchmark {
+
+    private static final int TABLE = GenerationRegistry.TABLE_SYSTEM;
+    private static final String WRITTEN_KEY = "navigation_bar_height";
+
+    // Reads the reader makes between two writes
+    private static final int[] READS_PER_WRITE = { 1, 10, 100 };
+    private static final int WRITES = 20000;
+
+    public static void main(String[] args) throws IOException {
+        final int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        final String[] keys = new String[keyCount];
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "slim_setting_" + i;
+        }
+
+        final File file = File.createTempFile("generations", null);
+        final RandomAccessFile writerFile = new RandomAccessFile(file, "rw");
+        final RandomAccessFile readerFile = new RandomAccessFile(file, "r");
+        try {
+            writerFile.setLength(GenerationRegistry.SIZE);
+            final GenerationRegistry writer = GenerationRegistry.map(writerFile.getChannel(),
+                    true);
+            writer.initialize();
+            final GenerationRegistry reader = GenerationRegistry.map(readerFile.getChannel(),
+                    false);
+
+            System.out.println(keyCount + " keys read, " + WRITES + " writes of "
+                    + WRITTEN_KEY);
+            System.out.println(String.format("%-16s %-12s %10s %10s %12s",
+                    "reads/write", "invalidate", "hit rate", "misses", "ns/read"));
+            // The first pass warms up the JIT and is not reported
+            for (int pass = 0; pass < 2; pass++) {
+                for (int readsPerWrite : READS_PER_WRITE) {
+                    run(writer, reader, keys, readsPerWrite, false, pass > 0);
+                    run(writer, reader, keys, readsPerWrite, true, pass > 0);
+                }
+            }
+        } finally {
+            readerFile.close();
+            writerFile.close();
+            file.delete();
+        }
+    }
+
+    private static void run(GenerationRegistry writer, GenerationRegistry reader,
+            String[] keys, int readsPerWrite, boolean perKey, boolean report) {
+        final String[] written = new String[] { WRITTEN_KEY };
+        final HashMap<String, String> cache = new HashMap<String, String>();
+        long cachedVersion = -1;
+        long hits = 0;
+        long misses = 0;
+        int next = 0;
+
+        final long start = System.nanoTime();
+        for (int w = 0; w < WRITES; w++) {
+            writer.bump(TABLE, written);
+            for (int r = 0; r < readsPerWrite; r++) {
+                final long version = reader.getVersion(TABLE);
+                if (version != cachedVersion) {
+                    final String[] changed = perKey && !cache.isEmpty()
+                            ? reader.getChangedKeys(TABLE, cachedVersion, version,
+                                    cache.keySet())
+                            : null;
+                    if (changed == null) {
+                        cache.clear();
+                    } else {
+                        for (String key : changed) {
+                            cache.remove(key);
+                        }
+                    }
+                    cachedVersion = version;
+                }
+
+                final String key = keys[next++ % keys.length];
+                if (cache.containsKey(key)) {
+                    hits++;
+                } else {
+                    // A client would ask the provider here
+                    misses++;
+                    cache.put(key, key);
+                }
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        if (!report) {
+            return;
+        }
+        final long reads = hits + misses;
+        System.out.println(String.format("%-16d %-12s %9.1f%% %10d %12.1f", readsPerWrite,
+                perKey ? "per key" : "whole table", hits * 100.0 / reads, misses,
+                (double) elapsed / reads));
+    }
+}
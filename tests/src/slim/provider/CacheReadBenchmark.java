@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the throughput of cache hits from several threads, through the read path
+ * NameValueCache used to have, which took its lock twice per read, and through the
+ * lock-free one it has now. Both check the table version in a {@link GenerationRegistry}
+ * first; only the cache around it differs.
+ * <p>
+ * Run with:
+ * <pre>
+ *   java -cp org.slim.framework-hosttests.jar slim.provider.CacheReadBenchmark [threads...]
+ * </pre>
+ */
+public class CacheReadBenchmark {
+
+    private static final int TABLE = GenerationRegistry.TABLE_SYSTEM;
+    private static final int USER = 0;
+    private static final int KEY_COUNT = 40;
+
+    private static final int ROUNDS = 3;
+    private static final long ROUND_MILLIS = 1000;
+
+    private interface Cache {
+        String get(String name);
+    }
+
+    /**
+     * The read path before: a HashMap guarded by the cache, one locked version check and
+     * one locked lookup.
+     */
+    private static final class LockedCache implements Cache {
+        private final GenerationRegistry mRegistry;
+        private final HashMap<String, String> mValues = new HashMap<String, String>();
+        private long mValuesVersion;
+
+        LockedCache(GenerationRegistry registry, String[] keys) {
+            mRegistry = registry;
+            mValuesVersion = registry.getVersion(TABLE);
+            for (String key : keys) {
+                mValues.put(key, key);
+            }
+        }
+
+        @Override
+        public String get(String name) {
+            final long version = mRegistry.getVersion(TABLE);
+            synchronized (this) {
+                if (mValuesVersion != version) {
+                    mValues.clear();
+                    mValuesVersion = version;
+                }
+            }
+            synchronized (this) {
+                if (mValuesVersion == version && mValues.containsKey(name)) {
+                    return mValues.get(name);
+                }
+            }
+            throw new IllegalStateException("Miss on " + name);
+        }
+    }
+
+    /**
+     * The read path now: per-user holders of one table version, swapped atomically, with
+     * entries in a ConcurrentHashMap.
+     */
+    private static final class LockFreeCache implements Cache {
+        private static final class Entry {
+            final String value;
+            final CacheStats.KeyStats stats;
+
+            Entry(String value, CacheStats.KeyStats stats) {
+                this.value = value;
+                this.stats = stats;
+            }
+        }
+
+        private static final class Values {
+            final long version;
+            final ConcurrentHashMap<String, Entry> map;
+
+            Values(long version, ConcurrentHashMap<String, Entry> map) {
+                this.version = version;
+                this.map = map;
+            }
+        }
+
+        private final GenerationRegistry mRegistry;
+        private final CacheStats mStats = new CacheStats("system");
+        private final ConcurrentHashMap<Integer, AtomicReference<Values>> mUserValues =
+                new ConcurrentHashMap<Integer, AtomicReference<Values>>();
+
+        LockFreeCache(GenerationRegistry registry, String[] keys) {
+            mRegistry = registry;
+            final ConcurrentHashMap<String, Entry> map = new ConcurrentHashMap<String, Entry>();
+            for (String key : keys) {
+                map.put(key, new Entry(key, mStats.getKey(key)));
+            }
+            mUserValues.put(USER, new AtomicReference<Values>(
+                    new Values(registry.getVersion(TABLE), map)));
+        }
+
+        @Override
+        public String get(String name) {
+            final long version = mRegistry.getVersion(TABLE);
+            final Values values = mUserValues.get(USER).get();
+            if (values.version == version) {
+                final Entry entry = values.map.get(name);
+                if (entry != null) {
+                    mStats.onHit(entry.stats);
+                    return entry.value;
+                }
+            }
+            throw new IllegalStateException("Miss on " + name);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] threadCounts = { 1, 2, 4 };
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        final String[] keys = new String[KEY_COUNT];
+        for (int i = 0; i < KEY_COUNT; i++) {
+            keys[i] = "slim_setting_" + i;
+        }
+        final GenerationRegistry registry = new GenerationRegistry(
+                ByteBuffer.allocateDirect(GenerationRegistry.SIZE));
+        registry.initialize();
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " cpu(s), "
+                + KEY_COUNT + " keys");
+        System.out.println(String.format("%-12s %8s %16s", "cache", "threads",
+                "hits/s"));
+        // The first pass warms up the JIT and is not reported
+        for (int pass = 0; pass < 2; pass++) {
+            for (int threads : threadCounts) {
+                run("locked", new LockedCache(registry, keys), keys, threads, pass > 0);
+                run("lock-free", new LockFreeCache(registry, keys), keys, threads, pass > 0);
+            }
+        }
+    }
+
+    private static void run(String name, final Cache cache, final String[] keys, int threads,
+            boolean report) throws InterruptedException {
+        double best = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final AtomicBoolean stop = new AtomicBoolean();
+            final long[] counts = new long[threads];
+            final Thread[] readers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int reader = t;
+                readers[t] = new Thread("reader " + t) {
+                    @Override
+                    public void run() {
+                        long count = 0;
+                        int i = reader;
+                        while (!stop.get()) {
+                            for (int j = 0; j < 1000; j++) {
+                                cache.get(keys[i++ % keys.length]);
+                            }
+                            count += 1000;
+                        }
+                        counts[reader] = count;
+                    }
+                };
+            }
+
+            final long start = System.nanoTime();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            Thread.sleep(ROUND_MILLIS);
+            stop.set(true);
+            long total = 0;
+            for (int t = 0; t < threads; t++) {
+                readers[t].join();
+                total += counts[t];
+            }
+            best = Math.max(best, total * 1e9 / (System.nanoTime() - start));
+        }
+        if (report) {
+            System.out.println(String.format("%-12s %8d %16.0f", name, threads, best));
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class GenerationRegistryTest {
+
+    private static final int TABLE = GenerationRegistry.TABLE_SYSTEM;
+
+    private static final String[] KEYS = new String[64];
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            KEYS[i] = "key_" + i;
+        }
+    }
+    private static final List<String> KEY_LIST = Arrays.asList(KEYS);
+
+    private ByteBuffer mBuffer;
+    private GenerationRegistry mRegistry;
+
+    @Before
+    public void setUp() {
+        // Direct, like the mapping the provider and clients share
+        mBuffer = ByteBuffer.allocateDirect(GenerationRegistry.SIZE);
+        mRegistry = new GenerationRegistry(mBuffer);
+        mRegistry.initialize();
+    }
+
+    @Test
+    public void testChangedKeys() {
+        assertEquals(0, mRegistry.getVersion(TABLE));
+        assertEquals(1, mRegistry.bump(TABLE, new String[] { "a" }));
+        assertEquals(2, mRegistry.bump(TABLE, new String[] { "b" }));
+        assertEquals(2, mRegistry.getVersion(TABLE));
+
+        final List<String> keys = Arrays.asList("a", "b");
+        assertArrayEquals(new String[] { "b" }, mRegistry.getChangedKeys(TABLE, 1, 2, keys));
+        assertArrayEquals(new String[] { "a", "b" },
+                mRegistry.getChangedKeys(TABLE, 0, 2, keys));
+        assertArrayEquals(new String[0], mRegistry.getChangedKeys(TABLE, 2, 2, keys));
+    }
+
+    @Test
+    public void testResetNeedsProvider() {
+        mRegistry.bump(TABLE, new String[] { "a" });
+        mRegistry.bump(TABLE, null);
+        assertNull(mRegistry.getChangedKeys(TABLE, 1, 2, Arrays.asList("a")));
+        assertArrayEquals(new String[0],
+                mRegistry.getChangedKeys(TABLE, 2, 2, Arrays.asList("a")));
+    }
+
+    @Test
+    public void testVersionsSurviveRestart() {
+        mRegistry.bump(TABLE, new String[] { "a" });
+        mRegistry.bump(TABLE, new String[] { "b" });
+
+        final GenerationRegistry restarted = new GenerationRegistry(mBuffer);
+        restarted.initialize();
+        assertEquals(2, restarted.getVersion(TABLE));
+        assertArrayEquals(new String[] { "b" },
+                restarted.getChangedKeys(TABLE, 1, 2, Arrays.asList("a", "b")));
+    }
+
+    /**
+     * A reader on another core may see any subset of the writer's stores. Whichever single
+     * value it still sees from before a bump, it must not report the bumped key unchanged.
+     */
+    @Test
+    public void testTornReadIsNotTrusted() {
+        mRegistry.bump(TABLE, new String[] { "a" });
+        final byte[] before = copy(mBuffer);
+        final long version = mRegistry.bump(TABLE, new String[] { "b" });
+        final byte[] after = copy(mBuffer);
+
+        int torn = 0;
+        for (int offset = 0; offset < GenerationRegistry.SIZE; offset += 8) {
+            if (Arrays.equals(Arrays.copyOfRange(before, offset, offset + 8),
+                    Arrays.copyOfRange(after, offset, offset + 8))) {
+                continue;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(GenerationRegistry.SIZE);
+            buffer.put(after);
+            buffer.position(offset);
+            buffer.put(before, offset, 8);
+            final String[] changed = new GenerationRegistry(buffer)
+                    .getChangedKeys(TABLE, 1, version, Arrays.asList("a", "b"));
+            assertTrue("Stale value at " + offset + " was trusted",
+                    changed == null || Arrays.asList(changed).contains("b"));
+            torn++;
+        }
+        // Sequence, checksum, version and the key slot
+        assertTrue(torn >= 4);
+    }
+
+    @Test
+    public void testConcurrentReadersSeeEveryWrite() throws InterruptedException {
+        final int writes = 200000;
+        // Version -> 1 + index of the key bumped to it
+        final AtomicIntegerArray written = new AtomicIntegerArray(writes + 1);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+
+        final Thread writer = new Thread("writer") {
+            @Override
+            public void run() {
+                for (int i = 1; i <= writes; i++) {
+                    final int key = (i * 31) % KEYS.length;
+                    written.set(i, key + 1);
+                    mRegistry.bump(TABLE, new String[] { KEYS[key] });
+                }
+            }
+        };
+
+        final Thread[] readers = new Thread[2];
+        final int[] checked = new int[readers.length];
+        for (int r = 0; r < readers.length; r++) {
+            final int reader = r;
+            readers[r] = new Thread("reader " + r) {
+                @Override
+                public void run() {
+                    long since = 0;
+                    while (since < writes && failure.get() == null) {
+                        final long version = mRegistry.getVersion(TABLE);
+                        if (version <= since) {
+                            continue;
+                        }
+                        final String[] changed =
+                                mRegistry.getChangedKeys(TABLE, since, version, KEY_LIST);
+                        if (changed == null) {
+                            // Couldn't tell; a client would ask the provider
+                            continue;
+                        }
+                        final HashSet<String> reported =
+                                new HashSet<String>(Arrays.asList(changed));
+                        for (long v = since + 1; v <= version; v++) {
+                            int key;
+                            while ((key = written.get((int) v)) == 0) {
+                                Thread.yield();
+                            }
+                            if (!reported.contains(KEYS[key - 1])) {
+                                failure.compareAndSet(null, KEYS[key - 1] + " written at " + v
+                                        + " not reported between " + since + " and "
+                                        + version);
+                            }
+                        }
+                        checked[reader]++;
+                        since = version;
+                    }
+                }
+            };
+        }
+
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join(60000);
+            assertTrue(reader.getName() + " did not catch up", !reader.isAlive());
+        }
+
+        assertNull(failure.get());
+        for (int count : checked) {
+            assertTrue(count > 0);
+        }
+    }
+
+    private static byte[] copy(ByteBuffer buffer) {
+        final byte[] bytes = new byte[GenerationRegistry.SIZE];
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(0);
+        duplicate.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.regex.Pattern;
+
+/**
+ * Times validation of each kind of value through {@link SettingsSchema} and through the
+ * validators SlimSettings had before it, which parsed with the platform and split lists
+ * with a regex into a set. The old validators are rebuilt here on plain Java collections,
+ * HashSet standing in for ArraySet. Bytes allocated per call come from the host JVM's
+ * per-thread allocation counter.
+ * <p>
+ * All validators are called from the same place, so the JIT inlines them less well the more
+ * of them ran before. For numbers that can be compared, run one at a time:
+ * <pre>
+ *   java -cp org.slim.framework-hosttests.jar slim.provider.SettingsSchemaBenchmark \
+ *       [boolean|int|float|list [schema|before]]
+ * </pre>
+ */
+public class SettingsSchemaBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final long ROUND_NANOS = 1000L * 1000 * 1000;
+
+    // Keeps the JIT from dropping the calls
+    private static volatile long sSink;
+
+    private static final class DiscreteValueValidator implements SlimSettings.Validator {
+        private final String[] mValues;
+
+        DiscreteValueValidator(String[] values) {
+            mValues = values;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            for (String candidate : mValues) {
+                if (candidate.equals(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class InclusiveIntegerRangeValidator
+            implements SlimSettings.Validator {
+        private final int mMin;
+        private final int mMax;
+
+        InclusiveIntegerRangeValidator(int min, int max) {
+            mMin = min;
+            mMax = max;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            try {
+                final int intValue = Integer.parseInt(value);
+                return intValue >= mMin && intValue <= mMax;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+
+    private static final class InclusiveFloatRangeValidator implements SlimSettings.Validator {
+        private final float mMin;
+        private final float mMax;
+
+        InclusiveFloatRangeValidator(float min, float max) {
+            mMin = min;
+            mMax = max;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            try {
+                final float floatValue = Float.parseFloat(value);
+                return floatValue >= mMin && floatValue <= mMax;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+
+    private static final class DelimitedListValidator implements SlimSettings.Validator {
+        private final HashSet<String> mValidValueSet;
+        private final String mDelimiter;
+        private final boolean mAllowEmptyList;
+
+        DelimitedListValidator(String[] validValues, String delimiter,
+                boolean allowEmptyList) {
+            mValidValueSet = new HashSet<String>(Arrays.asList(validValues));
+            mDelimiter = delimiter;
+            mAllowEmptyList = allowEmptyList;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            final HashSet<String> values = new HashSet<String>();
+            if (value != null && value.length() > 0) {
+                for (String item : value.split(Pattern.quote(mDelimiter))) {
+                    if (item.length() > 0) {
+                        values.add(item);
+                    }
+                }
+            }
+            if (values.size() > 0) {
+                values.removeAll(mValidValueSet);
+                return values.size() == 0;
+            }
+            return mAllowEmptyList;
+        }
+    }
+
+    private static String sValue;
+    private static String sValidator;
+
+    public static void main(String[] args) {
+        sValue = args.length > 0 ? args[0] : null;
+        sValidator = args.length > 1 ? args[1] : null;
+        final String[] items = { "wifi", "bt", "cell", "data", "flashlight", "location" };
+
+        System.out.println(String.format("%-10s %-10s %10s %12s", "value", "validator",
+                "ns/op", "bytes/op"));
+        compare("boolean", new String[] { "0", "1", "1", "0" },
+                new DiscreteValueValidator(new String[] { "0", "1" }),
+                SettingsSchema.BOOLEAN);
+        compare("int", new String[] { "3000", "0", "255", "86400000" },
+                new InclusiveIntegerRangeValidator(0, Integer.MAX_VALUE),
+                SettingsSchema.intRange(0, Integer.MAX_VALUE));
+        compare("float", new String[] { "0.35", "1.0", "0.5", "0" },
+                new InclusiveFloatRangeValidator(0, 1),
+                SettingsSchema.floatRange(0, 1));
+        compare("list", new String[] { "wifi|bt|cell", "flashlight", "cell|location",
+                "wifi|bt|cell|data|flashlight|location" },
+                new DelimitedListValidator(items, "|", false),
+                SettingsSchema.list(items, "|", false));
+    }
+
+    private static void compare(String value, String[] values, SlimSettings.Validator before,
+            SlimSettings.Validator after) {
+        if (sValue != null && !sValue.equals(value)) {
+            return;
+        }
+        if (sValidator == null || sValidator.equals("schema")) {
+            run(value, "schema", values, after);
+        }
+        if (sValidator == null || sValidator.equals("before")) {
+            run(value, "before", values, before);
+        }
+    }
+
+    private static void run(String value, String name, String[] values,
+            SlimSettings.Validator validator) {
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        double best = Double.MAX_VALUE;
+        double bytes = 0;
+        // The first round warms up the JIT and is not reported
+        for (int round = 0; round <= ROUNDS; round++) {
+            long valid = 0;
+            long count = 0;
+            final long allocated = threads.getThreadAllocatedBytes(thread);
+            final long start = System.nanoTime();
+            long elapsed;
+            do {
+                for (int i = 0; i < 1000; i++) {
+                    if (validator.validate(values[i & 3])) {
+                        valid++;
+                    }
+                }
+                count += 1000;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ROUND_NANOS);
+            final long allocatedBytes = threads.getThreadAllocatedBytes(thread) - allocated;
+            if (valid != count) {
+                throw new IllegalStateException(name + " rejected a valid " + value);
+            }
+            sSink = valid;
+            if (round > 0 && (double) elapsed / count < best) {
+                best = (double) elapsed / count;
+                bytes = (double) allocatedBytes / count;
+            }
+        }
+        System.out.println(String.format("%-10s %-10s %10.1f %12.1f", value, name, best,
+                bytes));
+    }
+}
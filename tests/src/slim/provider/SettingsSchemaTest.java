@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+
+public class SettingsSchemaTest {
+
+    @Test
+    public void testEveryKeyHasAType() throws IllegalAccessException {
+        assertDeclared(SlimSettingsKeys.System.class, SettingsSchema.SYSTEM);
+        assertDeclared(SlimSettingsKeys.Secure.class, SettingsSchema.SECURE);
+        assertDeclared(SlimSettingsKeys.Global.class, SettingsSchema.GLOBAL);
+    }
+
+    @Test
+    public void testBoolean() {
+        assertTrue(SettingsSchema.BOOLEAN.validate("0"));
+        assertTrue(SettingsSchema.BOOLEAN.validate("1"));
+        assertFalse(SettingsSchema.BOOLEAN.validate("2"));
+        assertFalse(SettingsSchema.BOOLEAN.validate("10"));
+        assertFalse(SettingsSchema.BOOLEAN.validate(""));
+        assertFalse(SettingsSchema.BOOLEAN.validate(null));
+    }
+
+    @Test
+    public void testIntMatchesParseInt() {
+        final SettingsSchema.Type type = SettingsSchema.INT;
+        final String[] values = { "0", "-1", "+5", "2147483647", "-2147483648", "2147483648",
+                "-2147483649", "99999999999999999999", "", "-", "+", "1.0", "0x10", " 1",
+                "-16777216" };
+        for (String value : values) {
+            boolean parses;
+            try {
+                Integer.parseInt(value);
+                parses = true;
+            } catch (NumberFormatException e) {
+                parses = false;
+            }
+            assertTrue(value, parses == type.validate(value));
+        }
+        assertFalse(type.validate(null));
+    }
+
+    @Test
+    public void testIntRange() {
+        final SettingsSchema.Type type = SettingsSchema.intRange(0, 100);
+        assertTrue(type.validate("0"));
+        assertTrue(type.validate("100"));
+        assertFalse(type.validate("-1"));
+        assertFalse(type.validate("101"));
+    }
+
+    @Test
+    public void testFloatRange() {
+        final SettingsSchema.Type type = SettingsSchema.floatRange(0, 1);
+        assertTrue(type.validate("0"));
+        assertTrue(type.validate("0.35"));
+        assertTrue(type.validate(".5"));
+        assertTrue(type.validate("1.0"));
+        assertTrue(type.validate("1e-1"));
+        assertTrue(type.validate("0.5f"));
+        assertFalse(type.validate("1.01"));
+        assertFalse(type.validate("-0.1"));
+        assertFalse(type.validate("2e0"));
+        assertFalse(type.validate("abc"));
+        assertFalse(type.validate(""));
+        assertFalse(type.validate("."));
+        assertFalse(type.validate(null));
+    }
+
+    @Test
+    public void testEnum() {
+        final SettingsSchema.Type type = SettingsSchema.oneOf("left", "right");
+        assertTrue(type.validate("left"));
+        assertTrue(type.validate("right"));
+        assertFalse(type.validate("lef"));
+        assertFalse(type.validate("leftt"));
+        assertFalse(type.validate(null));
+    }
+
+    @Test
+    public void testList() {
+        final SettingsSchema.Type type = SettingsSchema.list(
+                new String[] { "wifi", "bt", "cell" }, "|", false);
+        assertTrue(type.validate("wifi"));
+        assertTrue(type.validate("wifi|bt|cell"));
+        assertTrue(type.validate("|wifi||bt|"));
+        assertFalse(type.validate("wifi|gps"));
+        assertFalse(type.validate("wif"));
+        assertFalse(type.validate("wifi,bt"));
+        assertFalse(type.validate(""));
+        assertFalse(type.validate("||"));
+        assertFalse(type.validate(null));
+
+        final SettingsSchema.Type emptyAllowed = SettingsSchema.list(
+                new String[] { "a" }, "::", true);
+        assertTrue(emptyAllowed.validate(""));
+        assertTrue(emptyAllowed.validate(null));
+        assertTrue(emptyAllowed.validate("a::a"));
+        assertFalse(emptyAllowed.validate("a:a"));
+    }
+
+    @Test
+    public void testString() {
+        assertTrue(SettingsSchema.STRING.validate(null));
+        assertTrue(SettingsSchema.STRING.validate(""));
+        assertTrue(SettingsSchema.STRING.validate("anything"));
+    }
+
+    private static void assertDeclared(Class<?> keys, Map<String, SettingsSchema.Type> types)
+            throws IllegalAccessException {
+        for (Field field : keys.getFields()) {
+            if (field.getType() == String.class && Modifier.isStatic(field.getModifiers())) {
+                final String key = (String) field.get(null);
+                assertNotNull(keys.getSimpleName() + "." + field.getName() + " has no type",
+                        types.get(key));
+            }
+        }
+    }
+}
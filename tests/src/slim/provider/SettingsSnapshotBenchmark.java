@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Times reads of a {@link SettingsSnapshot} mapped from a temp file, the way a client maps
+ * the provider's snapshot file, and republishing the whole table after a write.
+ * <p>
+ * Run with:
+ * <pre>
+ *   java -cp org.slim.framework-hosttests.jar slim.provider.SettingsSnapshotBenchmark [keys]
+ * </pre>
+ */
+public class SettingsSnapshotBenchmark {
+
+    private static final int ROUNDS = 5;
+    private static final long ROUND_NANOS = 1000L * 1000 * 1000;
+
+    private interface Op {
+        void run(int i);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+
+        final String[] keys = new String[keyCount];
+        final String[] missing = new String[keyCount];
+        final Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i < keyCount; i++) {
+            keys[i] = "slim_setting_" + i;
+            missing[i] = "unset_setting_" + i;
+            values.put(keys[i], Integer.toString(i * 7));
+        }
+
+        final File file = File.createTempFile("snapshot", null);
+        final RandomAccessFile writerFile = new RandomAccessFile(file, "rw");
+        final RandomAccessFile readerFile = new RandomAccessFile(file, "r");
+        try {
+            writerFile.setLength(SettingsSnapshot.DEFAULT_SIZE);
+            final SettingsSnapshot writer = SettingsSnapshot.map(writerFile.getChannel(), true,
+                    SettingsSnapshot.DEFAULT_SIZE);
+            final SettingsSnapshot reader = SettingsSnapshot.map(readerFile.getChannel(),
+                    false, SettingsSnapshot.DEFAULT_SIZE);
+            if (!writer.publish(values)) {
+                System.out.println(keyCount + " keys don't fit into a snapshot");
+                return;
+            }
+
+            final String[] out = new String[1];
+            System.out.println(keyCount + " keys");
+            run("read, key set", new Op() {
+                @Override
+                public void run(int i) {
+                    if (!reader.read(keys[i % keys.length], out)) {
+                        throw new IllegalStateException("Snapshot not readable");
+                    }
+                }
+            });
+            run("read, key not set", new Op() {
+                @Override
+                public void run(int i) {
+                    if (!reader.read(missing[i % missing.length], out)) {
+                        throw new IllegalStateException("Snapshot not readable");
+                    }
+                }
+            });
+            run("publish", new Op() {
+                @Override
+                public void run(int i) {
+                    values.put(keys[i % keys.length], Integer.toString(i));
+                    writer.publish(values);
+                }
+            });
+        } finally {
+            readerFile.close();
+            writerFile.close();
+            file.delete();
+        }
+    }
+
+    private static void run(String name, Op op) {
+        double best = Double.MAX_VALUE;
+        // The first round warms up the JIT and is not reported
+        for (int round = 0; round <= ROUNDS; round++) {
+            int count = 0;
+            final long start = System.nanoTime();
+            long elapsed;
+            do {
+                for (int i = 0; i < 1000; i++) {
+                    op.run(count++);
+                }
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < ROUND_NANOS);
+            if (round > 0) {
+                best = Math.min(best, (double) elapsed / count);
+            }
+        }
+        System.out.println(String.format("%-20s %10.1f ns/op", name, best));
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SettingsSnapshotTest {
+
+    // Byte offset of the sequence counter and size of the header
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int HEADER_SIZE = 20;
+
+    private File mFile;
+    private RandomAccessFile mWriterFile;
+    private RandomAccessFile mReaderFile;
+    private SettingsSnapshot mWriter;
+    private SettingsSnapshot mReader;
+
+    @Before
+    public void setUp() throws IOException {
+        // A temp file stands in for the provider's snapshot file
+        mFile = File.createTempFile("snapshot", null);
+        mWriterFile = new RandomAccessFile(mFile, "rw");
+        mWriterFile.setLength(SettingsSnapshot.DEFAULT_SIZE);
+        mWriter = SettingsSnapshot.map(mWriterFile.getChannel(), true,
+                SettingsSnapshot.DEFAULT_SIZE);
+        mReaderFile = new RandomAccessFile(mFile, "r");
+        mReader = SettingsSnapshot.map(mReaderFile.getChannel(), false,
+                SettingsSnapshot.DEFAULT_SIZE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mReaderFile.close();
+        mWriterFile.close();
+        mFile.delete();
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put("navigation_bar_height", "48");
+        values.put("empty", "");
+        values.put("unset", null);
+        values.put("unicode", "\u00e9t\u00e9 \u2603");
+        for (int i = 0; i < 200; i++) {
+            values.put("key_" + i, "value_" + i);
+        }
+        assertTrue(mWriter.publish(values));
+
+        final String[] out = new String[1];
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            out[0] = "not read";
+            assertTrue(mReader.read(entry.getKey(), out));
+            assertEquals(entry.getValue(), out[0]);
+        }
+
+        // Keys that are not set are answered too, so readers don't ask the provider
+        out[0] = "not read";
+        assertTrue(mReader.read("missing", out));
+        assertNull(out[0]);
+    }
+
+    @Test
+    public void testNeverPublished() {
+        assertFalse(mReader.read("a", new String[1]));
+    }
+
+    @Test
+    public void testTooLarge() {
+        final Map<String, String> values = new HashMap<String, String>();
+        final String value = new String(new char[1024]).replace('\0', 'x');
+        for (int i = 0; i < 64; i++) {
+            values.put("key_" + i, value);
+        }
+        assertFalse(mWriter.publish(values));
+        assertFalse(mReader.read("key_0", new String[1]));
+
+        // A later table that fits makes it valid again
+        values.clear();
+        values.put("a", "1");
+        assertTrue(mWriter.publish(values));
+        final String[] out = new String[1];
+        assertTrue(mReader.read("a", out));
+        assertEquals("1", out[0]);
+    }
+
+    @Test
+    public void testRepublishDropsStaleValues() {
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put("a", "1");
+        values.put("b", "2");
+        mWriter.publish(values);
+
+        values.put("a", "3");
+        values.remove("b");
+        mWriter.publish(values);
+
+        final String[] out = new String[1];
+        assertTrue(mReader.read("a", out));
+        assertEquals("3", out[0]);
+        assertTrue(mReader.read("b", out));
+        assertNull(out[0]);
+    }
+
+    @Test
+    public void testWriterBusyIsNotTrusted() throws IOException {
+        publish("a", "1");
+        final int sequence = getSequence();
+        setSequence(sequence + 1);
+        assertFalse(mReader.read("a", new String[1]));
+
+        setSequence(sequence + 2);
+        assertTrue(mReader.read("a", new String[1]));
+    }
+
+    /**
+     * A reader may see a value half written even though the sequence did not change, since
+     * the two processes share no memory barriers. The hash of the value must catch it.
+     */
+    @Test
+    public void testTornValueIsNotTrusted() {
+        final ByteBuffer buffer = ByteBuffer.allocate(SettingsSnapshot.DEFAULT_SIZE);
+        final SettingsSnapshot snapshot = new SettingsSnapshot(buffer);
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put("a", "abcdef");
+        snapshot.publish(values);
+
+        // The value chars are the last thing written
+        int offset = SettingsSnapshot.DEFAULT_SIZE - 2;
+        while (buffer.getChar(offset) != 'f') {
+            offset--;
+        }
+        buffer.putChar(offset, 'g');
+        assertFalse(snapshot.read("a", new String[1]));
+    }
+
+    /**
+     * A restarted provider reuses the file a client still has mapped. The client must fall
+     * back to the provider until the new run published the table again.
+     */
+    @Test
+    public void testInvalidateAfterRestart() throws IOException {
+        publish("a", "1");
+        final String[] out = new String[1];
+        assertTrue(mReader.read("a", out));
+
+        // The previous run died while publishing
+        final int sequence = getSequence();
+        setSequence(sequence + 1);
+
+        final RandomAccessFile restartedFile = new RandomAccessFile(mFile, "rw");
+        try {
+            final SettingsSnapshot restarted = SettingsSnapshot.map(
+                    restartedFile.getChannel(), true, SettingsSnapshot.DEFAULT_SIZE);
+            restarted.invalidate();
+            assertFalse(mReader.read("a", out));
+
+            final Map<String, String> values = new HashMap<String, String>();
+            values.put("a", "2");
+            assertTrue(restarted.publish(values));
+            assertTrue(mReader.read("a", out));
+            assertEquals("2", out[0]);
+        } finally {
+            restartedFile.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentReadersSeeConsistentValues() throws InterruptedException {
+        final int publishes = 20000;
+        final String[] keys = new String[32];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "key_" + i;
+        }
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final AtomicBoolean done = new AtomicBoolean();
+
+        final Thread writer = new Thread("writer") {
+            @Override
+            public void run() {
+                final Map<String, String> values = new HashMap<String, String>();
+                for (int p = 1; p <= publishes; p++) {
+                    for (String key : keys) {
+                        values.put(key, key + "@" + p);
+                    }
+                    mWriter.publish(values);
+                }
+                done.set(true);
+            }
+        };
+
+        final Thread[] readers = new Thread[2];
+        final int[] answered = new int[readers.length];
+        for (int r = 0; r < readers.length; r++) {
+            final int reader = r;
+            readers[r] = new Thread("reader " + r) {
+                @Override
+                public void run() {
+                    final String[] out = new String[1];
+                    int last = 0;
+                    for (int i = 0; !done.get() && failure.get() == null; i++) {
+                        final String key = keys[i % keys.length];
+                        if (!mReader.read(key, out)) {
+                            // A client would ask the provider
+                            continue;
+                        }
+                        if (out[0] == null) {
+                            if (last > 0) {
+                                failure.compareAndSet(null, key + " lost after " + last);
+                            }
+                            continue;
+                        }
+                        final int at = out[0].indexOf('@');
+                        final int version = at < 0 ? -1
+                                : Integer.parseInt(out[0].substring(at + 1));
+                        if (at < 0 || !out[0].startsWith(key + "@") || version < last) {
+                            failure.compareAndSet(null, "Read " + out[0] + " for " + key
+                                    + " after version " + last);
+                        }
+                        last = version;
+                        answered[reader]++;
+                    }
+                }
+            };
+        }
+
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join(60000);
+            assertFalse(reader.getName() + " did not finish", reader.isAlive());
+        }
+
+        assertNull(failure.get());
+        for (int count : answered) {
+            assertTrue(count > 0);
+        }
+    }
+
+    private void publish(String name, String value) {
+        final Map<String, String> values = new HashMap<String, String>();
+        values.put(name, value);
+        assertTrue(mWriter.publish(values));
+    }
+
+    private int getSequence() throws IOException {
+        return mWriterFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+                .getInt(OFFSET_SEQUENCE);
+    }
+
+    private void setSequence(int sequence) throws IOException {
+        mWriterFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE)
+                .putInt(OFFSET_SEQUENCE, sequence);
+    }
+}
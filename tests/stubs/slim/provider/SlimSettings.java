@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2017 SlimRoms Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package slim.provider;
+
+/**
+ * Stands in for the framework class on the host. Only declares what the framework classes
+ * built into the host tests use.
+ */
+public final class SlimSettings {
+
+    public static interface Validator {
+        public boolean validate(String value);
+    }
+
+    private SlimSettings() {
+    }
+}